@@ -5,7 +5,9 @@ import queries.ApiResult;
 import queries.BookQueryConditions;
 
 import java.sql.PreparedStatement;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Note:
@@ -51,6 +53,20 @@ public interface LibraryManagementSystem {
      */
     ApiResult incBookStock(int bookId, int deltaStock);
 
+    /**
+     * add to the stock of many books at once.
+     *
+     * Note:
+     *      (1) all deltas are applied in one transaction, in order of
+     *          book_id; if a book does not exist or its stock would become
+     *          negative, none of them is applied.
+     *      (2) the failed book_ids are returned by ApiResult.payload as a
+     *          {@link queries.StockChangeResults}.
+     *
+     * @param deltas book_id -> increase count to the book's stock
+     */
+    ApiResult incBookStocks(Map<Integer, Integer> deltas);
+
     /**
      * batch store books.
      *
@@ -69,6 +85,24 @@ public interface LibraryManagementSystem {
      */
     ApiResult storeBook(List<Book> books);
 
+    /**
+     * batch store books, adding to the stock of the ones already stored.
+     *
+     * Note:
+     *      (1) a book is already stored if a book with the same category,
+     *          press, author, title and publish_year exists; its stock is
+     *          increased by the given stock, its other fields are kept.
+     *      (2) repeated books in the list are stored once with the sum
+     *          of their stocks.
+     *      (3) all books are stored in one transaction, book_id of each
+     *          book is set to the one it was stored as.
+     *
+     * @param books list of books to be stored
+     * @return per-book results should be returned by ApiResult.payload
+     *         and should be an instance of {@link queries.BatchResults}
+     */
+    ApiResult upsertBooks(List<Book> books);
+
     /**
      * remove this book from library system.
      *
@@ -107,6 +141,41 @@ public interface LibraryManagementSystem {
      */
     ApiResult queryBook(BookQueryConditions conditions);
 
+    /**
+     * query books like {@link #queryBook}, but read them from the
+     * database lazily instead of loading all of them into memory.
+     *
+     * Note that:
+     *      (1) the page size of conditions is ignored, all books
+     *          after the page token (if any) are returned.
+     *      (2) the returned cursor holds a database connection,
+     *          it must be closed after use.
+     *
+     * @param conditions query conditions
+     * @param fetchSize number of rows fetched per round trip, it is
+     *                  ignored by mysql which streams rows one by one
+     *
+     * @return query results should be returned by ApiResult.payload
+     *         and should be an instance of {@link queries.BookCursor}
+     */
+    ApiResult queryBookStream(BookQueryConditions conditions, int fetchSize);
+
+    /**
+     * count the books satisfying the conditions, in total and per
+     * category, press, author and publish year, without reading the
+     * books themselves.
+     *
+     * Note that:
+     *      (1) sort & page fields of conditions are ignored.
+     *      (2) the counts should be computed by one aggregate query.
+     *
+     * @param conditions query conditions
+     *
+     * @return counts should be returned by ApiResult.payload
+     *         and should be an instance of {@link queries.BookFacets}
+     */
+    ApiResult queryBookFacets(BookQueryConditions conditions);
+
     /* Interface for borrow & return books */
 
     /**
@@ -127,6 +196,33 @@ public interface LibraryManagementSystem {
      */
     ApiResult returnBook(Borrow borrow);
 
+    /**
+     * borrow many books at once, each item follows the rules of
+     * {@link #borrowBook} as if the items were borrowed in order.
+     *
+     * Note that:
+     *      (1) items are sent in jdbc batches and committed in chunks,
+     *          so there are far fewer round trips & commits.
+     *      (2) an item which fails does not fail the other items.
+     *
+     * @param borrows borrow information of each item
+     *
+     * @return per-item results should be returned by ApiResult.payload
+     *         and should be an instance of {@link queries.BatchResults}
+     */
+    ApiResult borrowBooks(List<Borrow> borrows);
+
+    /**
+     * return many books at once, each item follows the rules of
+     * {@link #returnBook}. see {@link #borrowBooks} for the notes.
+     *
+     * @param borrows borrow information of each item, include return time
+     *
+     * @return per-item results should be returned by ApiResult.payload
+     *         and should be an instance of {@link queries.BatchResults}
+     */
+    ApiResult returnBooks(List<Borrow> borrows);
+
     /**
      * list all borrow histories for a specific card.
      * the returned records should be sorted by borrow_time DESC, book_id ASC
@@ -137,6 +233,40 @@ public interface LibraryManagementSystem {
      */
     ApiResult showBorrowHistory(int cardId);
 
+    /**
+     * list one page of the borrow histories of a card, in the same
+     * order as {@link #showBorrowHistory(int)}.
+     *
+     * Note:
+     *      (1) the first page is requested with a null pageToken, each
+     *          page carries the token of the next one, which is null on
+     *          the last page.
+     *      (2) a page starts right after the (borrow_time, book_id) of
+     *          the previous one, so records borrowed meanwhile do not
+     *          shift the pages.
+     *
+     * @param pageSize most records of one page, must be positive
+     * @return query results should be returned by ApiResult.payload
+     *         and should be an instance of {@link queries.BorrowHistories}
+     */
+    ApiResult showBorrowHistory(int cardId, int pageSize, String pageToken);
+
+    /**
+     * list the borrow histories of many cards at once, e.g. for reports.
+     * each history is sorted like {@link #showBorrowHistory(int)}.
+     *
+     * Note:
+     *      (1) cards are read in chunks, one query per chunk, and the
+     *          chunks run in parallel on pooled connections.
+     *      (2) a card without records, or which does not exist, gets an
+     *          empty history.
+     *
+     * @param cardIds cards to list, duplicates are listed once
+     * @return query results should be returned by ApiResult.payload
+     *         and should be an instance of {@link queries.CardBorrowHistories}
+     */
+    ApiResult showBorrowHistories(Collection<Integer> cardIds);
+
     /**
      * create a new borrow card. do nothing and return failed if
      * the card already exists.
@@ -148,6 +278,21 @@ public interface LibraryManagementSystem {
      */
     ApiResult registerCard(Card card);
 
+    /**
+     * batch register cards.
+     *
+     * Note:
+     *      (1) if one of the cards already exists (same department, type
+     *          and name) or is repeated in the list, no card is registered.
+     *      (2) all cards are registered in one transaction, card_id of
+     *          each card is set after it.
+     *
+     * @param cards list of cards to be registered
+     * @return per-card results are returned by ApiResult.payload as a
+     *         {@link queries.BatchResults} if some card already exists
+     */
+    ApiResult registerCard(List<Card> cards);
+
     /**
      * simply remove a card.
      *
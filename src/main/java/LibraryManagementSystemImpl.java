@@ -4,26 +4,298 @@ import entities.Card;
 import entities.Card.CardType;
 import queries.*;
 import queries.BorrowHistories.Item;
+import caches.BorrowHistoryCache;
+import caches.CatalogReplica;
+import caches.OpenLoanIndex;
+import caches.OpenLoanIndex.Claim;
+import caches.OpenLoanIndex.Removal;
+import caches.QueryResultCache;
+import caches.StockReservations;
+import caches.StockReservations.Outcome;
+import utils.CatalogImporter;
 import utils.DBInitializer;
+import utils.ConnectConfig;
 import utils.DatabaseConnector;
+import utils.GroupCommitter;
+import utils.RetryStats;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.sql.*;
 import java.util.List;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
 public class LibraryManagementSystemImpl implements LibraryManagementSystem {
 
+    /* rows of one multi-row insert into book_trigram */
+    private static final int TRIGRAM_ROWS = 64;
+    /* range of book_ids re-indexed by one transaction of rebuildTrigramIndex */
+    private static final int TRIGRAM_REBUILD_BOOKS = 1000;
+    /* items of a bulk operation committed together */
+    private static final int BATCH_CHUNK = 128;
+    /* stripes of the stock reservation counters */
+    private static final int STOCK_STRIPES = 64;
+    /* most cards of one showBorrowHistories query, a chunk is padded to a power of 2 */
+    private static final int HISTORY_CHUNK = 256;
+    /* unique keys of books looked up by one query */
+    private static final int KEY_LOOKUP_ROWS = 128;
+    /* rows from which a batch insert goes through the bulk loader of the database */
+    private static final int BULK_LOAD_ROWS = 1000;
+    private static final String[] BOOK_LOAD_COLUMNS = {"category", "title", "press", "publish_year", "author", "price", "stock"};
+    private static final String[] CARD_LOAD_COLUMNS = {"name", "department", "type"};
+    /* most transactions of one group commit */
+    private static final int GROUP_COMMIT_SIZE = 256;
+    /*
+     * short single-row writes, the ones which may share a group commit.
+     * batch writes (storeBooks, upsertBooks, registerCards, ...) run on
+     * their own so that they never hold up the committer thread.
+     */
+    private static final Set<String> GROUPED_OPERATIONS = new HashSet<>(Arrays.asList(
+            "storeBook", "incBookStock", "removeBook", "modifyBookInfo",
+            "borrowBook", "returnBook", "registerCard", "removeCard"));
+
+    /* the open-loan index has already checked that the card does not hold the book */
+    private static final String SQL_BORROW_STOCK_ONLY = "UPDATE book SET stock = stock - 1 WHERE book_id = ? AND stock > 0";
+    private static final String SQL_BORROW_STOCK = "UPDATE book SET stock = stock - 1 WHERE book_id = ? AND stock > 0" +
+            " AND NOT EXISTS (SELECT * FROM borrow WHERE book_id = ? AND card_id = ? AND return_time = 0)";
+    private static final String SQL_BORROW_INSERT = "INSERT INTO borrow (card_id, book_id, borrow_time) VALUES (?, ?, ?)";
+    private static final String SQL_RETURN = "UPDATE borrow SET return_time = ?" +
+            " WHERE card_id = ? AND book_id = ? AND borrow_time = ? AND return_time = 0";
+    private static final String SQL_RETURN_STOCK = "UPDATE book SET stock = stock + 1 WHERE book_id = ?";
+    /* KEY_LOOKUP_ROWS unique keys of book, matched by the unique index */
+    private static final String SQL_BOOK_KEYS_LOOKUP = "SELECT " + BookQueryBuilder.BOOK_COLUMNS + " FROM book WHERE " +
+            String.join(" OR ", Collections.nCopies(KEY_LOOKUP_ROWS,
+                    "(category = ? AND press = ? AND author = ? AND title = ? AND publish_year = ?)"));
+    private static final String SQL_CARD_KEYS_LOOKUP = "SELECT card_id, name, department, type FROM card WHERE " +
+            String.join(" OR ", Collections.nCopies(KEY_LOOKUP_ROWS, "(department = ? AND type = ? AND name = ?)"));
+    private static final String SQL_HISTORY = "SELECT r.card_id, r.book_id, r.borrow_time, r.return_time," +
+            " b.category, b.title, b.press, b.publish_year, b.author, b.price" +
+            " FROM borrow r JOIN book b ON b.book_id = r.book_id WHERE r.card_id = ?";
+    /* keyset of the page after (borrow_time, book_id) */
+    private static final String SQL_HISTORY_SEEK = " AND (r.borrow_time < ? OR (r.borrow_time = ? AND r.book_id > ?))";
+    private static final String SQL_HISTORY_ORDER = " ORDER BY r.borrow_time DESC, r.book_id ASC";
+    private static final String SQL_HISTORIES = "SELECT r.card_id, r.book_id, r.borrow_time, r.return_time," +
+            " b.category, b.title, b.press, b.publish_year, b.author, b.price" +
+            " FROM borrow r JOIN book b ON b.book_id = r.book_id WHERE r.card_id IN (%s)" +
+            " ORDER BY r.card_id, r.borrow_time DESC, r.book_id ASC";
+
     private final DatabaseConnector connector;
+    /* optional in-memory copy of the book table, null if disabled */
+    private volatile CatalogReplica catalog;
+    /* optional cache of queryBook results, null if disabled */
+    private volatile QueryResultCache queryCache;
+    /* optional in-memory stock counters, null if disabled */
+    private volatile StockReservations reservations;
+    /* optional in-memory index of open loans, null if disabled */
+    private volatile OpenLoanIndex openLoans;
+    /* optional cache of borrow histories per card, null if disabled */
+    private volatile BorrowHistoryCache historyCache;
+    /* optional committer coalescing short writes, null if disabled */
+    private volatile GroupCommitter groupCommitter;
+    /* (card_id, book_id) of borrows admitted by the reservations but not committed yet */
+    private final Set<Long> borrowing = ConcurrentHashMap.newKeySet();
+    /* runs the chunks of showBorrowHistories in parallel, created on first use */
+    private volatile ExecutorService historyReaders;
+    /* retries of transactions failed by deadlocks or lock timeouts */
+    private final RetryStats retryStats = new RetryStats();
+    /* cleared once the bulk loader turns out to be unavailable, batches are inserted then */
+    private volatile boolean bulkLoad = true;
+    /* rows inserted through the bulk loader rather than batch inserts */
+    private final AtomicLong bulkLoadedRows = new AtomicLong();
+    /* set once book_trigram is known to exist, writes keep it up to date from then on */
+    private volatile boolean trigramTable;
+    /* set once book_trigram covers every book, fuzzy conditions are answered by LIKE alone until then */
+    private volatile boolean trigramIndexComplete;
 
     public LibraryManagementSystemImpl(DatabaseConnector connector) {
         this.connector = connector;
     }
 
+    /**
+     * load the book table into an in-memory replica, then queryBook
+     * is answered by the replica, which is kept up to date write-through.
+     * call it before the library starts to serve requests, changes
+     * committed while the table is being loaded would be missed.
+     */
+    public ApiResult enableCatalogReplica() {
+        ApiResult flushed = flushReservations();
+        if (!flushed.ok) {
+            return flushed;
+        }
+        List<Book> books = new ArrayList<>();
+        ApiResult result = execute("enableCatalogReplica", conn -> {
+            ResultSet rs = prepare(conn, "SELECT " + BookQueryBuilder.BOOK_COLUMNS + " FROM book").executeQuery();
+            while (rs.next()) {
+                books.add(BookQueryBuilder.readBook(rs));
+            }
+            return new ApiResult(true, "enable catalog replica successfully");
+        });
+        if (result.ok) {
+            catalog = new CatalogReplica(books);
+        }
+        return result;
+    }
+
+    public void disableCatalogReplica() {
+        catalog = null;
+    }
+
+    /**
+     * cache the results of queryBook, at most capacity of them, each
+     * for at most ttlMillis. changes of books drop the affected results.
+     */
+    public void enableQueryCache(int capacity, long ttlMillis) {
+        queryCache = new QueryResultCache(capacity, ttlMillis);
+    }
+
+    public void disableQueryCache() {
+        queryCache = null;
+    }
+
+    /**
+     * keep the available stock of books in memory: borrow, return and
+     * incBookStock are decided by atomic counters without locking the
+     * book row, stock changes are written back every flushIntervalMillis.
+     * call it before the library starts to serve requests. counters
+     * enabled before are written back and closed first.
+     */
+    public ApiResult enableStockReservations(long flushIntervalMillis) {
+        //新的计数器从数据库加载库存，所以旧的计数器要先写回
+        ApiResult closed = disableStockReservations();
+        if (!closed.ok) {
+            return closed;
+        }
+        reservations = new StockReservations(STOCK_STRIPES, flushIntervalMillis, this::loadStock, this::writeStock);
+        return new ApiResult(true, null);
+    }
+
+    /* write back pending stock changes and go back to the database */
+    public ApiResult disableStockReservations() {
+        StockReservations res = reservations;
+        reservations = null;
+        if (res != null) {
+            try {
+                res.close();
+            } catch (IllegalStateException e) {
+                return new ApiResult(false, e.getMessage());
+            }
+        }
+        return new ApiResult(true, null);
+    }
+
+    /**
+     * let concurrent short writes (borrow, return, stock changes, ...)
+     * share one commit: the first one waits up to windowMicros for others,
+     * then they run on one connection and are committed together. each
+     * call still returns only after its changes are committed.
+     */
+    public void enableGroupCommit(long windowMicros) {
+        GroupCommitter old = groupCommitter;
+        groupCommitter = new GroupCommitter(connector, windowMicros, GROUP_COMMIT_SIZE);
+        closeGroupCommitter(old);
+    }
+
+    /* commit what is waiting, then each write commits on its own again */
+    public void disableGroupCommit() {
+        GroupCommitter old = groupCommitter;
+        groupCommitter = null;
+        closeGroupCommitter(old);
+    }
+
+    /* the committer with its group statistics, null if disabled */
+    public GroupCommitter getGroupCommitter() {
+        return groupCommitter;
+    }
+
+    private void closeGroupCommitter(GroupCommitter committer) {
+        if (committer == null) {
+            return;
+        }
+        committer.close();
+    }
+
+    /**
+     * load all open loans into memory, then the open-loan checks of
+     * borrowBook, removeBook and removeCard no longer query borrow.
+     * call it before the library starts to serve requests.
+     */
+    public ApiResult enableOpenLoanIndex() {
+        OpenLoanIndex index = new OpenLoanIndex();
+        ApiResult result = execute("enableOpenLoanIndex", conn -> {
+            ResultSet rs = prepare(conn, "SELECT card_id, book_id FROM borrow WHERE return_time = 0").executeQuery();
+            while (rs.next()) {
+                index.tryOpen(rs.getInt("card_id"), rs.getInt("book_id"));
+            }
+            return new ApiResult(true, "enable open loan index successfully");
+        });
+        if (result.ok) {
+            openLoans = index;
+        }
+        return result;
+    }
+
+    public void disableOpenLoanIndex() {
+        openLoans = null;
+    }
+
+    public OpenLoanIndex getOpenLoanIndex() {
+        return openLoans;
+    }
+
+    /* the stock counters with their flush statistics, null if disabled */
+    public StockReservations getStockReservations() {
+        return reservations;
+    }
+
+    /* rows of batch inserts which went through the bulk loader of the database, rolled back ones included */
+    public long getBulkLoadedRows() {
+        return bulkLoadedRows.get();
+    }
+
+    /* retry counters of the write operations, keyed by operation name */
+    public RetryStats getRetryStats() {
+        return retryStats;
+    }
+
+    /**
+     * cache the borrow histories of up to maxItems records in total, the
+     * cached ones are patched by borrows, returns and book changes, so
+     * showBorrowHistory of an active card is answered from memory.
+     */
+    public void enableBorrowHistoryCache(int maxItems) {
+        historyCache = new BorrowHistoryCache(maxItems);
+    }
+
+    public void disableBorrowHistoryCache() {
+        historyCache = null;
+    }
+
+    /* the history cache with its hit & eviction counters, null if disabled */
+    public BorrowHistoryCache getBorrowHistoryCache() {
+        return historyCache;
+    }
+
+    /* the result cache with its hit & eviction counters, null if disabled */
+    public QueryResultCache getQueryCache() {
+        return queryCache;
+    }
+
+    /**
+     * estimated heap usage of each bitmap index of the catalog replica,
+     * keyed by column. empty if the replica is disabled.
+     */
+    public Map<String, Long> getCatalogIndexMemory() {
+        CatalogReplica replica = catalog;
+        return replica == null ? Collections.emptyMap() : replica.indexMemoryReport();
+    }
+
     @Override
     public ApiResult storeBook(Book book) {
-        Connection conn = connector.getConn();
-        //test if the book already exists
-        try {
-            PreparedStatement stmt = conn.prepareStatement("SELECT * FROM book WHERE category=? AND title=? AND press=? AND publish_year=? AND author=? AND price=? AND stock=?");
+        ApiResult result = execute("storeBook", conn -> {
+            //test if the book already exists
+            PreparedStatement stmt = prepare(conn, "SELECT * FROM book WHERE category=? AND title=? AND press=? AND publish_year=? AND author=? AND price=? AND stock=?");
             stmt.setString(1, book.getCategory());
             stmt.setString(2, book.getTitle());
             stmt.setString(3, book.getPress());
@@ -35,12 +307,8 @@ public class LibraryManagementSystemImpl implements LibraryManagementSystem {
             if (rs.next()) {//if exist
                 return new ApiResult(false, "Book already exists");
             }
-        } catch (Exception e) {
-            return new ApiResult(false, e.getMessage());
-        }
-        //insert the book
-        try {
-            PreparedStatement stmt = conn.prepareStatement("INSERT INTO book (category,title,press,publish_year,author,price,stock) VALUES ( ?, ?, ?, ?, ?, ?, ?)", Statement.RETURN_GENERATED_KEYS);//最后一句话是返回主键
+            //insert the book
+            stmt = prepare(conn, "INSERT INTO book (category,title,press,publish_year,author,price,stock) VALUES ( ?, ?, ?, ?, ?, ?, ?)", Statement.RETURN_GENERATED_KEYS);//最后一句话是返回主键
             stmt.setString(1, book.getCategory());
             stmt.setString(2, book.getTitle());
             stmt.setString(3, book.getPress());
@@ -50,23 +318,33 @@ public class LibraryManagementSystemImpl implements LibraryManagementSystem {
             stmt.setInt(7, book.getStock());
             stmt.executeUpdate();//得到记录的条数
             //得到自动生成的主键
-            ResultSet rs = stmt.getGeneratedKeys();
+            rs = stmt.getGeneratedKeys();
             if (rs.next()) {
                 book.setBookId(rs.getInt(1));//返回得到的主键给book
             }
-            commit(conn);
-        } catch (Exception e) {
-            rollback(conn);
-            return new ApiResult(false, e.getMessage());
+            insertTrigrams(conn, Collections.singletonList(book));
+            return new ApiResult(true, "store book successfully");
+        });
+        if (result.ok) {
+            onBookStored(book);
         }
-        return new ApiResult(true, "store book successfully");
+        return result;
     }
 
     @Override
     public ApiResult incBookStock(int bookId, int deltaStock) {
-        Connection conn = connector.getConn();
-        try {
-            PreparedStatement stmt = conn.prepareStatement("SELECT * FROM book WHERE book_id=?");//find the book
+        StockReservations res = reservations;
+        if (res != null) {
+            ApiResult result = reserve(res, bookId, deltaStock);
+            if (result.ok) {
+                onStockChanged(bookId, deltaStock);
+                return new ApiResult(true, "inc book stock successfully");
+            }
+            return result.message != null ? result : new ApiResult(false,
+                    result.payload == Outcome.NO_BOOK ? "inc book stock failed because no book exist" : "Stock is not enough");
+        }
+        ApiResult result = execute("incBookStock", conn -> {
+            PreparedStatement stmt = prepare(conn, "SELECT * FROM book WHERE book_id=?");//find the book
             stmt.setInt(1, bookId);
             ResultSet rs = stmt.executeQuery();
             if (!rs.next()) {//if not exist
@@ -77,99 +355,459 @@ public class LibraryManagementSystemImpl implements LibraryManagementSystem {
             if (stock < 0) {
                 return new ApiResult(false, "Stock is not enough");
             }
-            stmt = conn.prepareStatement("UPDATE book SET stock=? WHERE book_id=?");
+            stmt = prepare(conn, "UPDATE book SET stock=? WHERE book_id=?");
             stmt.setInt(1, stock);
             stmt.setInt(2, bookId);
             stmt.executeUpdate();
-            commit(conn);
-        } catch (Exception e) {
-            rollback(conn);
-            return new ApiResult(false, e.getMessage());
+            return new ApiResult(true, "inc book stock successfully");
+        });
+        if (result.ok) {
+            onStockChanged(bookId, deltaStock);
+        }
+        return result;
+    }
+
+    @Override
+    public ApiResult incBookStocks(Map<Integer, Integer> deltas) {
+        if (deltas.containsKey(null) || deltas.containsValue(null)) {
+            return new ApiResult(false, "Invalid stock delta");
+        }
+        //按book_id排序加锁，避免与其他批量操作死锁
+        TreeMap<Integer, Integer> sorted = new TreeMap<>(deltas);
+        StockReservations res = reservations;
+        ApiResult result = res != null ? reserveAll(res, sorted) : execute("incBookStocks", conn -> {
+            PreparedStatement stmt = prepare(conn, "UPDATE book SET stock = stock + ? WHERE book_id = ? AND stock + ? >= 0");
+            for (Map.Entry<Integer, Integer> entry : sorted.entrySet()) {
+                stmt.setInt(1, entry.getValue());
+                stmt.setInt(2, entry.getKey());
+                stmt.setInt(3, entry.getValue());
+                stmt.addBatch();
+            }
+            int[] counts = stmt.executeBatch();
+            //没有更新到的书再查一次，区分不存在和库存不足
+            List<Integer> missing = new ArrayList<>();
+            List<Integer> notEnough = new ArrayList<>();
+            int i = 0;
+            for (int bookId : sorted.keySet()) {
+                if (counts[i++] == 0) {
+                    PreparedStatement query = prepare(conn, "SELECT stock FROM book WHERE book_id = ?");
+                    query.setInt(1, bookId);
+                    (query.executeQuery().next() ? notEnough : missing).add(bookId);
+                }
+            }
+            return stockChangeResult(missing, notEnough);
+        });
+        if (result.ok) {
+            for (Map.Entry<Integer, Integer> entry : sorted.entrySet()) {
+                onStockChanged(entry.getKey(), entry.getValue());
+            }
+        }
+        return result;
+    }
+
+    /*
+     * incBookStocks on the stock reservations. each delta is reserved on
+     * its own by tryAdd, decrements first and then increments, both in
+     * order of book_id, so that nothing added by this call can be taken
+     * by a concurrent borrow before every decrement has passed. on the
+     * first failure all reserved deltas are undone in reverse order and
+     * the remaining ones are only checked, to report them as well.
+     */
+    private static ApiResult reserveAll(StockReservations res, TreeMap<Integer, Integer> deltas) {
+        List<Map.Entry<Integer, Integer>> order = new ArrayList<>(deltas.size());
+        for (Map.Entry<Integer, Integer> entry : deltas.entrySet()) {
+            if (entry.getValue() < 0) {
+                order.add(entry);
+            }
+        }
+        for (Map.Entry<Integer, Integer> entry : deltas.entrySet()) {
+            if (entry.getValue() >= 0) {
+                order.add(entry);
+            }
+        }
+        List<Integer> missing = new ArrayList<>();
+        List<Integer> notEnough = new ArrayList<>();
+        int applied = 0;
+        for (; applied < order.size(); applied++) {
+            Map.Entry<Integer, Integer> entry = order.get(applied);
+            ApiResult result = reserve(res, entry.getKey(), entry.getValue());
+            if (!result.ok) {
+                if (result.message != null) {
+                    undo(res, order, applied);
+                    return result;
+                }
+                (result.payload == Outcome.NO_BOOK ? missing : notEnough).add(entry.getKey());
+                break;
+            }
+        }
+        if (applied == order.size()) {
+            return new ApiResult(true, "inc book stocks successfully");
+        }
+        undo(res, order, applied);
+        for (Map.Entry<Integer, Integer> entry : order.subList(applied + 1, order.size())) {
+            //只检查不预留
+            ApiResult result = reserve(res, entry.getKey(), 0);
+            if (result.payload == Outcome.NO_BOOK) {
+                missing.add(entry.getKey());
+            } else if (result.ok) {
+                Integer stock = res.peek(entry.getKey());
+                if (stock != null && stock + entry.getValue() < 0) {
+                    notEnough.add(entry.getKey());
+                }
+            }
         }
-        return new ApiResult(true, "inc book stock successfully");
+        Collections.sort(missing);
+        Collections.sort(notEnough);
+        return stockChangeResult(missing, notEnough);
+    }
+
+    /* give back the first n deltas of order reserved by reserveAll, last first */
+    private static void undo(StockReservations res, List<Map.Entry<Integer, Integer>> order, int n) {
+        for (int i = n - 1; i >= 0; i--) {
+            res.undo(order.get(i).getKey(), order.get(i).getValue());
+        }
+    }
+
+    private static ApiResult stockChangeResult(List<Integer> missing, List<Integer> notEnough) {
+        if (!missing.isEmpty()) {
+            return new ApiResult(false, "inc book stock failed because no book exist", new StockChangeResults(missing, notEnough));
+        }
+        if (!notEnough.isEmpty()) {
+            return new ApiResult(false, "Stock is not enough", new StockChangeResults(missing, notEnough));
+        }
+        return new ApiResult(true, "inc book stocks successfully");
     }
 
     @Override
     public ApiResult storeBook(List<Book> books) {
-        Connection conn = connector.getConn();
-        try {
-            PreparedStatement stmt = conn.prepareStatement("INSERT INTO book (category,title,press,publish_year,author,price,stock) VALUES ( ?, ?, ?, ?, ?, ?, ?)", Statement.RETURN_GENERATED_KEYS);
-            for (Book book : books) {//遍历list中的所有book
-                PreparedStatement stmt1 = conn.prepareStatement("SELECT * FROM book WHERE category=? AND title=? AND press=? AND publish_year=? AND author=? AND price=? AND stock=?");
-                stmt1.setString(1, book.getCategory());
-                stmt1.setString(2, book.getTitle());
-                stmt1.setString(3, book.getPress());
-                stmt1.setInt(4, book.getPublishYear());
-                stmt1.setString(5, book.getAuthor());
-                stmt1.setDouble(6, book.getPrice());
-                stmt1.setInt(7, book.getStock());
-                ResultSet rs = stmt1.executeQuery();
-                if (rs.next()) {//if exist
-                    return new ApiResult(false, "Book already exists");
+        ApiResult result = execute("storeBooks", conn -> {
+            //列表内部查重，再按唯一键成批查出已存在的书，不再逐本查询
+            Map<String, Integer> existing = findExistingBooks(conn, books);
+            List<ApiResult> rowResults = new ArrayList<>(books.size());
+            Set<String> keys = new HashSet<>();
+            boolean conflict = false;
+            for (Book book : books) {
+                String key = bookKey(book);
+                if (existing.containsKey(key) || !keys.add(key)) {
+                    rowResults.add(new ApiResult(false, "Book already exists"));
+                    conflict = true;
+                } else {
+                    rowResults.add(new ApiResult(true, null));
+                }
+            }
+            if (conflict) {
+                return new ApiResult(false, "Book already exists", new BatchResults(rowResults));
+            }
+            insertBooks(conn, books);
+            return new ApiResult(true, "store books successfully");
+        });
+        if (result.ok) {
+            onBooksStored(books);
+        }
+        return result;
+    }
+
+    @Override
+    public ApiResult upsertBooks(List<Book> books) {
+        StockReservations res = reservations;
+        List<Book> inserted = new ArrayList<>();
+        Map<Integer, Integer> added = new TreeMap<>();
+        ApiResult result = execute("upsertBooks", conn -> {
+            inserted.clear();
+            added.clear();
+            Map<String, Integer> existing = findExistingBooks(conn, books);
+            //列表中第一次出现的新书被插入（库存合并了后面重复的行），其余的都只增加库存
+            Map<String, Book> fresh = new HashMap<>();
+            List<ApiResult> rowResults = new ArrayList<>(books.size());
+            for (Book book : books) {
+                String key = bookKey(book);
+                Integer bookId = existing.get(key);
+                Book first = fresh.get(key);
+                if (bookId != null) {
+                    added.merge(bookId, book.getStock(), Integer::sum);
+                    rowResults.add(new ApiResult(true, "Stock added"));
+                } else if (first != null) {
+                    first.setStock(first.getStock() + book.getStock());
+                    rowResults.add(new ApiResult(true, "Stock added"));
+                } else {
+                    first = book.clone();
+                    fresh.put(key, first);
+                    inserted.add(first);
+                    rowResults.add(new ApiResult(true, "Book stored"));
                 }
-                stmt.setString(1, book.getCategory());
-                stmt.setString(2, book.getTitle());
-                stmt.setString(3, book.getPress());
-                stmt.setInt(4, book.getPublishYear());
-                stmt.setString(5, book.getAuthor());
-                stmt.setDouble(6, book.getPrice());
-                stmt.setInt(7, book.getStock());
-                stmt.addBatch();//组装到一起
-            }
-            stmt.executeBatch();//一起执行
-            ResultSet rs = stmt.getGeneratedKeys();//得到自动生成的主键
-            int i = 0;//list中的第i本书
+            }
+            insertBooks(conn, inserted);
+            for (Book book : books) {
+                Book first = fresh.get(bookKey(book));
+                book.setBookId(first != null ? first.getBookId() : existing.get(bookKey(book)));
+            }
+            if (res == null && !added.isEmpty()) {
+                //按book_id顺序加锁
+                PreparedStatement stmt = prepare(conn, "UPDATE book SET stock = stock + ? WHERE book_id = ?");
+                for (Map.Entry<Integer, Integer> entry : added.entrySet()) {
+                    stmt.setInt(1, entry.getValue());
+                    stmt.setInt(2, entry.getKey());
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
+            }
+            return new ApiResult(true, "upsert books successfully", new BatchResults(rowResults));
+        });
+        if (result.ok) {
+            onBooksStored(inserted);
+            for (Map.Entry<Integer, Integer> entry : added.entrySet()) {
+                if (res != null) {
+                    ApiResult stocked = addStock(res, entry.getKey(), entry.getValue());
+                    if (!stocked.ok) {
+                        result = new ApiResult(false, "Books stored but stock of book " + entry.getKey()
+                                + " not updated: " + stocked.message);
+                    }
+                }
+                onStockChanged(entry.getKey(), entry.getValue());
+            }
+        }
+        return result;
+    }
+
+    /* batch insert books, set their book_id and index their trigrams */
+    private void insertBooks(Connection conn, List<Book> books) throws SQLException {
+        if (books.isEmpty()) {
+            return;
+        }
+        if (books.size() >= BULK_LOAD_ROWS && bulkLoadBooks(conn, books)) {
+            insertTrigrams(conn, books);
+            return;
+        }
+        PreparedStatement stmt = prepare(conn, "INSERT INTO book (category,title,press,publish_year,author,price,stock) VALUES ( ?, ?, ?, ?, ?, ?, ?)", Statement.RETURN_GENERATED_KEYS);
+        for (Book book : books) {//遍历list中的所有book
+            stmt.setString(1, book.getCategory());
+            stmt.setString(2, book.getTitle());
+            stmt.setString(3, book.getPress());
+            stmt.setInt(4, book.getPublishYear());
+            stmt.setString(5, book.getAuthor());
+            stmt.setDouble(6, book.getPrice());
+            stmt.setInt(7, book.getStock());
+            stmt.addBatch();//组装到一起
+        }
+        stmt.executeBatch();//一起执行
+        ResultSet rs = stmt.getGeneratedKeys();//得到自动生成的主键
+        int i = 0;//list中的第i本书
+        while (rs.next()) {
+            books.get(i).setBookId(rs.getInt(1));//主键总共只有一位
+            i++;
+        }
+        insertTrigrams(conn, books);
+    }
+
+    /*
+     * insert books with the bulk loader of the database and set their
+     * book_id, fetched back by one query over the ids above the largest
+     * one before the load. books must have distinct unique keys.
+     *
+     * @return false if the bulk loader is not available, nothing is inserted then
+     */
+    private boolean bulkLoadBooks(Connection conn, List<Book> books) throws SQLException {
+        List<Object[]> rows = new ArrayList<>(books.size());
+        for (Book book : books) {
+            rows.add(new Object[]{book.getCategory(), book.getTitle(), book.getPress(), book.getPublishYear(),
+                    book.getAuthor(), book.getPrice(), book.getStock()});
+        }
+        int maxId = bulkLoad(conn, "book", "book_id", BOOK_LOAD_COLUMNS, rows);
+        if (maxId < 0) {
+            return false;
+        }
+        //按唯一键把取回的id对应到书上，其他事务插入的书对应不上
+        Map<String, Book> byKey = new HashMap<>();
+        for (Book book : books) {
+            byKey.put(bookKey(book), book);
+        }
+        PreparedStatement stmt = prepare(conn, "SELECT " + BookQueryBuilder.BOOK_COLUMNS + " FROM book WHERE book_id > ?");
+        stmt.setInt(1, maxId);
+        ResultSet rs = stmt.executeQuery();
+        while (rs.next()) {
+            Book loaded = BookQueryBuilder.readBook(rs);
+            Book book = byKey.remove(bookKey(loaded));
+            if (book != null) {
+                book.setBookId(loaded.getBookId());
+            }
+        }
+        if (!byKey.isEmpty()) {
+            throw new SQLException("Bulk load lost " + byKey.size() + " of " + books.size() + " books");
+        }
+        return true;
+    }
+
+    /* same as bulkLoadBooks, for cards */
+    private boolean bulkLoadCards(Connection conn, List<Card> cards) throws SQLException {
+        List<Object[]> rows = new ArrayList<>(cards.size());
+        for (Card card : cards) {
+            rows.add(new Object[]{card.getName(), card.getDepartment(), card.getType().getStr()});
+        }
+        int maxId = bulkLoad(conn, "card", "card_id", CARD_LOAD_COLUMNS, rows);
+        if (maxId < 0) {
+            return false;
+        }
+        Map<String, Card> byKey = new HashMap<>();
+        for (Card card : cards) {
+            byKey.put(cardKey(card.getDepartment(), card.getType().getStr(), card.getName()), card);
+        }
+        PreparedStatement stmt = prepare(conn, "SELECT card_id, name, department, type FROM card WHERE card_id > ?");
+        stmt.setInt(1, maxId);
+        ResultSet rs = stmt.executeQuery();
+        while (rs.next()) {
+            Card card = byKey.remove(cardKey(rs.getString("department"), rs.getString("type"), rs.getString("name")));
+            if (card != null) {
+                card.setCardId(rs.getInt("card_id"));
+            }
+        }
+        if (!byKey.isEmpty()) {
+            throw new SQLException("Bulk load lost " + byKey.size() + " of " + cards.size() + " cards");
+        }
+        return true;
+    }
+
+    /*
+     * load rows into table with the bulk loader of the database.
+     *
+     * @return the largest idColumn before the load, which the generated
+     *         ids are above, or -1 if the bulk loader is not available
+     */
+    private int bulkLoad(Connection conn, String table, String idColumn, String[] columns,
+                         List<Object[]> rows) throws SQLException {
+        if (!bulkLoad) {
+            return -1;
+        }
+        //新行的id一定比装载前最大的id大
+        ResultSet rs = prepare(conn, "SELECT MAX(" + idColumn + ") FROM " + table).executeQuery();
+        int maxId = rs.next() ? rs.getInt(1) : 0;
+        try {
+            connector.getConf().getType().getBulkLoader().load(conn, table, columns, rows);
+        } catch (SQLFeatureNotSupportedException e) {
+            bulkLoad = false;
+            return -1;
+        }
+        bulkLoadedRows.addAndGet(rows.size());
+        return maxId;
+    }
+
+    /*
+     * book_id of the stored books having the unique key of some of books,
+     * keyed by bookKey. KEY_LOOKUP_ROWS keys are looked up per query.
+     */
+    private Map<String, Integer> findExistingBooks(Connection conn, List<Book> books) throws SQLException {
+        Map<String, Book> distinct = new LinkedHashMap<>();
+        for (Book book : books) {
+            distinct.putIfAbsent(bookKey(book), book);
+        }
+        List<Book> keys = new ArrayList<>(distinct.values());
+        Map<String, Integer> existing = new HashMap<>();
+        for (int from = 0; from < keys.size(); from += KEY_LOOKUP_ROWS) {
+            List<Book> chunk = keys.subList(from, Math.min(keys.size(), from + KEY_LOOKUP_ROWS));
+            //最后一块用重复的键补齐，只用一条缓存的语句
+            PreparedStatement stmt = prepare(conn, SQL_BOOK_KEYS_LOOKUP);
+            for (int i = 0; i < KEY_LOOKUP_ROWS; i++) {
+                Book book = chunk.get(Math.min(i, chunk.size() - 1));
+                stmt.setString(5 * i + 1, book.getCategory());
+                stmt.setString(5 * i + 2, book.getPress());
+                stmt.setString(5 * i + 3, book.getAuthor());
+                stmt.setString(5 * i + 4, book.getTitle());
+                stmt.setInt(5 * i + 5, book.getPublishYear());
+            }
+            ResultSet rs = stmt.executeQuery();
             while (rs.next()) {
-                books.get(i).setBookId(rs.getInt(1));//主键总共只有一位
-                i++;
+                Book found = BookQueryBuilder.readBook(rs);
+                existing.put(bookKey(found), found.getBookId());
             }
-            commit(conn);
-        } catch (Exception e) {
-            rollback(conn);
+        }
+        return existing;
+    }
+
+    /* the unique key of book, compared loosely (case & trailing spaces ignored) like the collation does */
+    private static String bookKey(Book book) {
+        StringBuilder sb = new StringBuilder(128);
+        for (String field : new String[]{book.getCategory(), book.getPress(), book.getAuthor(), book.getTitle()}) {
+            int end = field.length();
+            while (end > 0 && field.charAt(end - 1) == ' ') {
+                end--;
+            }
+            sb.append(end).append(':').append(field.substring(0, end).toLowerCase(Locale.ROOT)).append('|');
+        }
+        return sb.append(book.getPublishYear()).toString();
+    }
+
+    /**
+     * stream the books of a csv or json-lines file into the library,
+     * chunkSize books per batch, see {@link CatalogImporter}.
+     *
+     * @param upsert add to the stock of stored books instead of failing
+     *               their chunk
+     * @return an {@link CatalogImporter.ImportReport} in payload, failed
+     *         if the file could not be read
+     */
+    public ApiResult importBooks(Path file, CatalogImporter.Format format, int chunkSize, boolean upsert) {
+        try {
+            CatalogImporter importer = new CatalogImporter(format, chunkSize);
+            CatalogImporter.ImportReport report = importer.importFile(file, upsert ? this::upsertBooks : this::storeBook);
+            return new ApiResult(true, "import books successfully", report);
+        } catch (IOException | RuntimeException e) {
+            return new ApiResult(false, e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             return new ApiResult(false, e.getMessage());
         }
-        return new ApiResult(true, "store books successfully");
     }
 
     @Override
     public ApiResult removeBook(int bookId) {
-        Connection conn = connector.getConn();
-        try {
-            PreparedStatement stmt = conn.prepareStatement("SELECT * FROM book WHERE book_id=?");
+        OpenLoanIndex loans = openLoans;
+        Removal removal = loans == null ? Removal.OK : loans.tryRemoveBook(bookId);
+        if (removal == Removal.OPEN_LOANS) {
+            return new ApiResult(false, "Book has been borrowed");
+        }
+        if (removal == Removal.REMOVING) {
+            return new ApiResult(false, "Book is being removed");
+        }
+        ApiResult result = execute("removeBook", conn -> {
+            PreparedStatement stmt = prepare(conn, "SELECT * FROM book WHERE book_id=?");
             stmt.setInt(1, bookId);
             ResultSet rs = stmt.executeQuery();
             if (!rs.next()) {//if not exist
                 return new ApiResult(false, "Book does not exist");
             }
             //test whether the book had been borrowed
-            stmt = conn.prepareStatement("SELECT * FROM borrow WHERE book_id=? and return_time=0");
-            stmt.setInt(1, bookId);
-            rs = stmt.executeQuery();
-            if (rs.next()) {//if exist
-                return new ApiResult(false, "Book has been borrowed");
-            } 
-            stmt = conn.prepareStatement("DELETE FROM book WHERE book_id=?");
+            if (loans == null) {
+                stmt = prepare(conn, "SELECT * FROM borrow WHERE book_id=? and return_time=0");
+                stmt.setInt(1, bookId);
+                rs = stmt.executeQuery();
+                if (rs.next()) {//if exist
+                    return new ApiResult(false, "Book has been borrowed");
+                }
+            }
+            //book_trigram中的行由外键级联删除
+            stmt = prepare(conn, "DELETE FROM book WHERE book_id=?");
             stmt.setInt(1, bookId);
             stmt.executeUpdate();
-            commit(conn);
-        } catch (Exception e) {
-            rollback(conn);
-            return new ApiResult(false, e.getMessage());
+            return new ApiResult(true, "remove book successfully");
+        });
+        if (loans != null) {
+            loans.endRemoveBook(bookId);
+        }
+        if (result.ok) {
+            onBookRemoved(bookId);
         }
-        return new ApiResult(true, "remove book successfully");
+        return result;
     }
 
     @Override
     public ApiResult modifyBookInfo(Book book) {
-        Connection conn = connector.getConn();
-        try {
-            PreparedStatement stmt = conn.prepareStatement("SELECT * FROM book WHERE book_id=?");
+        ApiResult result = execute("modifyBookInfo", conn -> {
+            PreparedStatement stmt = prepare(conn, "SELECT * FROM book WHERE book_id=?");
             stmt.setInt(1, book.getBookId());
             ResultSet rs = stmt.executeQuery();
             if (!rs.next()) {//if not exist
                 return new ApiResult(false, "Book does not exist");
             }
-            stmt = conn.prepareStatement("UPDATE book SET category=?,title=?,press=?,publish_year=?,author=?,price=? WHERE book_id=?");
+            stmt = prepare(conn, "UPDATE book SET category=?,title=?,press=?,publish_year=?,author=?,price=? WHERE book_id=?");
             stmt.setString(1, book.getCategory());
             stmt.setString(2, book.getTitle());
             stmt.setString(3, book.getPress());
@@ -178,303 +816,935 @@ public class LibraryManagementSystemImpl implements LibraryManagementSystem {
             stmt.setDouble(6, book.getPrice());
             stmt.setInt(7, book.getBookId());
             stmt.executeUpdate();
-            commit(conn);
-        } catch (Exception e) {
-            rollback(conn);
-            return new ApiResult(false, e.getMessage());
+            if (!hasTrigramTable(conn)) {
+                return new ApiResult(true, "modify book info successfully");
+            }
+            //只重建变化了的字段的trigram
+            List<Object[]> trigramRows = new ArrayList<>();
+            char[] fields = {Trigrams.TITLE, Trigrams.PRESS, Trigrams.AUTHOR};
+            String[] oldValues = {rs.getString("title"), rs.getString("press"), rs.getString("author")};
+            String[] newValues = {book.getTitle(), book.getPress(), book.getAuthor()};
+            for (int i = 0; i < fields.length; i++) {
+                if (oldValues[i].equals(newValues[i])) {
+                    continue;
+                }
+                stmt = prepare(conn, "DELETE FROM book_trigram WHERE book_id=? AND field=?");
+                stmt.setInt(1, book.getBookId());
+                stmt.setString(2, String.valueOf(fields[i]));
+                stmt.executeUpdate();
+                addTrigramRows(trigramRows, book.getBookId(), fields[i], newValues[i]);
+            }
+            insertTrigramRows(conn, trigramRows);
+            return new ApiResult(true, "modify book info successfully");
+        });
+        if (result.ok) {
+            onBookModified(book);
         }
-        return new ApiResult(true, "modify book info successfully");
+        return result;
     }
 
-    
+
     @Override
     public ApiResult queryBook(BookQueryConditions conditions) {
-        Connection conn = connector.getConn();
-        String sort_by= conditions.getSortBy().getValue();
-        String sort_order= conditions.getSortOrder().getValue();
-        ResultSet rs[] = new ResultSet[7],result=null;
-        List <Book> bookList = new ArrayList<>();
-        int flag[]=new int[7];
-        for(int i=0;i<7;i++){
-            flag[i]=0;
-        }
-        try{
-            if(conditions.getCategory()!=null){
-                flag[0]=1;
-                PreparedStatement stmt = (sort_by=="book_id"? conn.prepareStatement("SELECT * FROM book WHERE category=? ORDER BY "+sort_by+" "+sort_order): conn.prepareStatement("SELECT * FROM book WHERE category=? ORDER BY "+sort_by+" "+sort_order +" ,book_id ASC"));//这里一定要把sort_by 和sort_order 单独分开，否则直接用？的话，sql语句中会带有引号
-                stmt.setString(1, conditions.getCategory());
-                rs[0] = stmt.executeQuery();
-            }
-            if(conditions.getTitle()!=null){
-                flag[1]=1;
-                PreparedStatement stmt = (sort_by=="book_id"? conn.prepareStatement("SELECT * FROM book WHERE title=? ORDER BY "+sort_by+" "+sort_order): conn.prepareStatement("SELECT * FROM book WHERE title=? ORDER BY "+sort_by+" "+sort_order +" ,book_id ASC"));
-                stmt.setString(1, conditions.getTitle());
-                rs[1] = stmt.executeQuery();
-            }
-            if(conditions.getPress()!=null){
-                flag[2]=1;
-                String presspattern=conditions.getPress();
-                PreparedStatement stmt = (sort_by=="book_id"? conn.prepareStatement("SELECT * FROM book WHERE (press like '%"+presspattern+"%')  ORDER BY "+sort_by+" "+sort_order): conn.prepareStatement("SELECT * FROM book WHERE (press like '%"+presspattern+"%') ORDER BY "+sort_by+" "+sort_order +" ,book_id ASC"));
-                rs[2] = stmt.executeQuery();
-            }
-            if(conditions.getMaxPublishYear()!=null||conditions.getMinPublishYear()!=null){
-                flag[3]=1;
-                PreparedStatement stmt = (sort_by=="book_id"?conn.prepareStatement("SELECT * FROM book WHERE publish_year>=? AND publish_year<=? order by "+sort_by+" "+sort_order):conn.prepareStatement("SELECT * FROM book WHERE publish_year>=? AND publish_year<=? order by "+sort_by+" "+sort_order +" ,book_id ASC"));
-                stmt.setInt(1, (conditions.getMinPublishYear()!=null)?conditions.getMinPublishYear():0);
-                stmt.setInt(2, (conditions.getMaxPublishYear()!=null)?conditions.getMaxPublishYear():999999);
-                rs[3] = stmt.executeQuery();
-            }
-            if(conditions.getAuthor()!=null){
-                flag[4]=1;
-                String presspattern=conditions.getAuthor();
-                PreparedStatement stmt = (sort_by=="book_id"? conn.prepareStatement("SELECT * FROM book WHERE (author like '%"+presspattern+"%')  ORDER BY "+sort_by+" "+sort_order): conn.prepareStatement("SELECT * FROM book WHERE (author like '%"+presspattern+"%') ORDER BY "+sort_by+" "+sort_order +" ,book_id ASC"));
-                rs[4] = stmt.executeQuery();
-            }
-            if(conditions.getMaxPrice()!=null||conditions.getMinPrice()!=null){
-                flag[5]=1;
-                PreparedStatement stmt = (sort_by=="book_id"?conn.prepareStatement("SELECT * FROM book WHERE price>=? AND price<=? order by "+sort_by+" "+sort_order):conn.prepareStatement("SELECT * FROM book WHERE price>=? AND price<=? order by "+sort_by+" "+sort_order +" ,book_id ASC"));
-                stmt.setDouble(1, (conditions.getMinPrice()==null)?0:conditions.getMinPrice());
-                stmt.setDouble(2, (conditions.getMaxPrice()==null)?999999:conditions.getMaxPrice());
-                rs[5] = stmt.executeQuery();
-            }
-            if(flag[0]==0&&flag[1]==0&&flag[2]==0&&flag[3]==0&&flag[4]==0&&flag[5]==0){
-                flag[6]=1;
-                PreparedStatement stmt = (sort_by=="book_id"? conn.prepareStatement("SELECT * FROM book order by "+sort_by+" "+sort_order): conn.prepareStatement("SELECT * FROM book order by "+sort_by+" "+sort_order +" ,book_id ASC"));
-                rs[6] = stmt.executeQuery();
-            }
-            int first=0;
-            for(int i=0;i<7;i++){
-                if(flag[i]==1){
-                    if(first==0){//第一个
-                        while(rs[i].next()){//这里顺便把空集也考虑了
-                            Book book = new Book();
-                            book.setBookId(rs[i].getInt("book_id"));
-                            book.setCategory(rs[i].getString("category"));
-                            book.setTitle(rs[i].getString("title"));
-                            book.setPress(rs[i].getString("press"));
-                            book.setPublishYear(rs[i].getInt("publish_year"));
-                            book.setAuthor(rs[i].getString("author"));
-                            book.setPrice(rs[i].getDouble("price"));
-                            book.setStock(rs[i].getInt("stock"));
-                            bookList.add(book);
-                        }
-                        first=1;
-                    }
-                    else{//第二个及以后,在前面的表中去除不在后面表中的元素
-                        List<Book> bookList2=new ArrayList<Book>();
-                        while(rs[i].next()){//这里顺便把空集也考虑了
-                            Book book = new Book();
-                            book.setBookId(rs[i].getInt("book_id"));
-                            book.setCategory(rs[i].getString("category"));
-                            book.setTitle(rs[i].getString("title"));
-                            book.setPress(rs[i].getString("press"));
-                            book.setPublishYear(rs[i].getInt("publish_year"));
-                            book.setAuthor(rs[i].getString("author"));
-                            book.setPrice(rs[i].getDouble("price"));
-                            book.setStock(rs[i].getInt("stock"));
-                            bookList2.add(book);
-                        }
-                        Iterator<Book> it = bookList.iterator();
-                        while(it.hasNext()){
-                            Book book = it.next();
-                            int flag2=0;
-                            for(int j=0;j<bookList2.size();j++){
-                                if(book.getBookId()==bookList2.get(j).getBookId()){
-                                    flag2=1;
-                                    break;
-                                }
-                            }
-                            if(flag2==0){
-                                it.remove();
-                            }
-                        }
-                    }
+        Integer pageSize = conditions.getPageSize();
+        if (pageSize != null && pageSize <= 0) {
+            return new ApiResult(false, "Page size must be positive");
+        }
+        QueryResultCache cache = queryCache;
+        if (cache == null) {
+            return queryBookUncached(conditions);
+        }
+        BookQueryResults cached = cache.get(conditions);
+        if (cached != null) {
+            return new ApiResult(true, "query book successfully", cached);
+        }
+        long generation = cache.generation();
+        ApiResult result = queryBookUncached(conditions);
+        if (result.ok) {
+            cache.put(conditions, (BookQueryResults) result.payload, generation);
+        }
+        return result;
+    }
+
+    private ApiResult queryBookUncached(BookQueryConditions conditions) {
+        Integer pageSize = conditions.getPageSize();
+        CatalogReplica replica = catalog;
+        if (replica != null) {
+            try {
+                BookQueryResults results = replica.query(conditions);
+                if (results != null) {
+                    return new ApiResult(true, "query book successfully", results);
                 }
+                //排序或匹配可能受数据库collation影响的查询交给数据库
+            } catch (IllegalArgumentException e) {
+                return new ApiResult(false, e.getMessage());
             }
-        }catch (Exception e) {
-            rollback(conn);
-            return new ApiResult(false, e.getMessage());
         }
-        
-        return new ApiResult(true, "inc book stock successfully", new BookQueryResults(bookList) );
+        ApiResult flushed = flushReservations();
+        if (!flushed.ok) {
+            return flushed;
+        }
+        return execute("queryBook", conn -> {
+            //所有条件拼成一条sql，由数据库完成过滤和排序
+            BookQueryBuilder query = new BookQueryBuilder(conditions, true, trigramIndexComplete);
+            String sql = query.selectSql();
+            if (pageSize != null) {
+                sql += connector.getConf().getType().limitClause();
+            }
+            PreparedStatement stmt = prepare(conn, sql);
+            int next = query.bind(stmt);
+            if (pageSize != null) {
+                stmt.setInt(next, pageSize + 1);//多取一行用来判断是否还有下一页
+            }
+            ResultSet rs = stmt.executeQuery();
+            List<Book> bookList = new ArrayList<>();
+            while (rs.next()) {
+                bookList.add(BookQueryBuilder.readBook(rs));
+            }
+            String nextPageToken = null;
+            if (pageSize != null && bookList.size() > pageSize) {
+                bookList.remove(bookList.size() - 1);
+                nextPageToken = BookQueryBuilder.nextPageToken(conditions, bookList.get(bookList.size() - 1));
+            }
+            return new ApiResult(true, "query book successfully", new BookQueryResults(bookList, nextPageToken));
+        });
     }
 
-    
-    @Override
-    public ApiResult borrowBook(Borrow borrow) {
-        Connection conn = connector.getConn();
-        try {
-            PreparedStatement stmt1 = conn.prepareStatement(   "SELECT stock FROM book WHERE book_id = ?");
-            stmt1.setInt(1, borrow.getBookId());
-            ResultSet rs1 = stmt1.executeQuery();
-            if (!rs1.next() || rs1.getInt("stock") == 0) {
-                return new ApiResult (false,"Book is not available.");
-            }
-
-            PreparedStatement stmt2 = conn.prepareStatement("SELECT * FROM borrow WHERE book_id = ? AND card_id = ? and return_time = 0");
-            stmt2.setInt(1, borrow.getBookId());
-            stmt2.setInt(2, borrow.getCardId());
-            ResultSet rs2 = stmt2.executeQuery();
-           if (rs2.next()) {
-                return new ApiResult(false, "Book is already borrowed.");
-            }
 
-            PreparedStatement stmt3 = conn.prepareStatement("INSERT INTO borrow (card_id, book_id, borrow_time) VALUES (?, ?, ?)");
-            stmt3.setInt(1, borrow.getCardId());
-            stmt3.setInt(2, borrow.getBookId());
-            stmt3.setLong(3, borrow.getBorrowTime());
-            stmt3.executeUpdate();
-
-            PreparedStatement stmt4 = conn.prepareStatement(
-                    "UPDATE `book` SET `stock` = `stock` - 1 WHERE `book_id` = ?");
-            stmt4.setInt(1, borrow.getBookId());
-            stmt4.executeUpdate();
-            //check again stock
-            PreparedStatement stmt5 = conn.prepareStatement(   "SELECT stock FROM book WHERE book_id = ?");
-            stmt5.setInt(1, borrow.getBookId());
-            ResultSet rs5 = stmt5.executeQuery();
-            rs5.next();
-            if (rs5.getInt("stock") < 0) {
-                rollback(conn);
-                return new ApiResult (false,"Book is not available.");
-            }
-        } catch (Exception e){
-            rollback(conn);
-            return new ApiResult(false, e.getMessage());
+    @Override
+    public ApiResult queryBookFacets(BookQueryConditions conditions) {
+        CatalogReplica replica = catalog;
+        BookFacets replicaFacets = replica == null ? null : replica.facets(conditions);
+        if (replicaFacets != null) {
+            return new ApiResult(true, "query book facets successfully", replicaFacets);
         }
-        commit(conn);
-        return new ApiResult(true, null);
+        return execute("queryBookFacets", conn -> {
+            //一次聚合查询得到每组(category, press, author, publish_year)的数量，再在内存中汇总
+            BookQueryBuilder query = new BookQueryBuilder(conditions, false, trigramIndexComplete);
+            PreparedStatement stmt = prepare(conn, query.facetSql());
+            query.bind(stmt);
+            ResultSet rs = stmt.executeQuery();
+            BookFacets facets = new BookFacets();
+            while (rs.next()) {
+                facets.add(rs.getString("category"), rs.getString("press"), rs.getString("author"),
+                        rs.getInt("publish_year"), rs.getInt("cnt"));
+            }
+            return new ApiResult(true, "query book facets successfully", facets);
+        });
     }
 
     @Override
-    public ApiResult returnBook(Borrow borrow) {
-        Connection conn = connector.getConn();
-        try{
-            PreparedStatement stmt = conn.prepareStatement("SELECT * FROM borrow WHERE card_id=? AND book_id=? and borrow_time=? and return_time=0");
-            stmt.setInt(1, borrow.getCardId());
-            stmt.setInt(2, borrow.getBookId());
-            stmt.setLong(3,borrow.getBorrowTime());
+    public ApiResult queryBookStream(BookQueryConditions conditions, int fetchSize) {
+        if (fetchSize <= 0) {
+            return new ApiResult(false, "Fetch size must be positive");
+        }
+        ApiResult flushed = flushReservations();
+        if (!flushed.ok) {
+            return flushed;
+        }
+        Connection conn;
+        try {
+            conn = connector.acquire();
+        } catch (SQLException e) {
+            return new ApiResult(false, e.getMessage());
+        }
+        try {
+            BookQueryBuilder query = new BookQueryBuilder(conditions, true, trigramIndexComplete);
+            //游标在整个遍历过程中占用这条连接，所以不放进语句缓存
+            PreparedStatement stmt = conn.prepareStatement(query.selectSql(),
+                    ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            stmt.setFetchSize(connector.getConf().getType().streamingFetchSize(fetchSize));
+            query.bind(stmt);
             ResultSet rs = stmt.executeQuery();
-            if (!rs.next()) {//if not exist such borrow record
-                return new ApiResult(false, "Book does not exist");
-            }
-            else{
-                PreparedStatement stmt2 = conn.prepareStatement("UPDATE book SET stock=stock+1 WHERE book_id=?");
-                stmt2.setInt(1, borrow.getBookId());
-                stmt2.executeUpdate();
-                PreparedStatement stmt3 = conn.prepareStatement("Update borrow SET return_time=? WHERE card_id=? AND book_id=? and return_time=0 and borrow_time<?");//选未还的第一个
-                stmt3.setLong(1,borrow.getReturnTime());
-                stmt3.setInt(2, borrow.getCardId());
-                stmt3.setInt(3, borrow.getBookId());
-                stmt3.setLong(4,borrow.getReturnTime());
-                stmt3.executeUpdate();
-                commit(conn);
-                return new ApiResult(true, "return book successfully");
-            }
-        }catch (Exception e) {
+            BookCursor cursor = new BookCursor(rs, () -> {
+                try {
+                    stmt.close();
+                    conn.commit();
+                } catch (SQLException e) {
+                    rollback(conn);
+                    throw e;
+                } finally {
+                    connector.release(conn);
+                }
+            });
+            return new ApiResult(true, "query book successfully", cursor);
+        } catch (Exception e) {
             rollback(conn);
+            connector.release(conn);
             return new ApiResult(false, e.getMessage());
         }
     }
 
     @Override
-    public ApiResult showBorrowHistory(int cardId) {
-        Connection conn = connector.getConn();
-        try{
-            PreparedStatement stmt = conn.prepareStatement("SELECT * FROM borrow WHERE card_id=? order by borrow_time desc,book_id asc");//莫忘排序
-            stmt.setInt(1, cardId);
-            ResultSet rs = stmt.executeQuery();
-            List<Item> borrowList = new ArrayList<Item>();
-                while(rs.next()){//这里要先用next，第一个没用
-                    Item item = new Item();
-                    item.setCardId(rs.getInt("card_id"));
-                    item.setBookId(rs.getInt("book_id"));
-                    item.setBorrowTime(rs.getLong("borrow_time"));
-                    item.setReturnTime(rs.getLong("return_time"));
-                    PreparedStatement stmt1= conn.prepareStatement("select * from book where book_id=?");
-                    stmt1.setInt(1, rs.getInt("book_id"));
-                    ResultSet rs1=stmt1.executeQuery();
-                    rs1.next();//这里也要next
-                    item.setAuthor(rs1.getString("author"));
-                    item.setCategory(rs1.getString("category"));
-                    item.setPress(rs1.getString("press"));
-                    item.setPrice(rs1.getDouble("price"));
-                    item.setPublishYear(rs1.getInt("publish_year"));
-                    item.setTitle(rs1.getString("title"));
-                    borrowList.add(item);
+    public ApiResult borrowBook(Borrow borrow) {
+        StockReservations res = reservations;
+        OpenLoanIndex loans = openLoans;
+        ApiResult claimed = claimLoan(loans, borrow);
+        if (!claimed.ok) {
+            return claimed;
+        }
+        ApiResult result = res != null ? borrowReserved(res, loans, borrow) : execute("borrowBook", conn -> {
+            //库存的检查和扣减在一条语句中完成，行锁只持有到插入借书记录后提交
+            PreparedStatement stmt;
+            if (loans != null) {
+                stmt = prepare(conn, SQL_BORROW_STOCK_ONLY);
+                stmt.setInt(1, borrow.getBookId());
+                if (stmt.executeUpdate() == 0) {
+                    return new ApiResult(false, "Book is not available.");
+                }
+            } else {
+                stmt = prepare(conn, SQL_BORROW_STOCK);
+                bindBorrowStock(stmt, borrow);
+                if (stmt.executeUpdate() == 0) {
+                    return borrowFailure(conn, borrow);
                 }
-                return new ApiResult(true, "show borrow history successfully", new BorrowHistories(borrowList));
-            }catch(Exception e){
-                return new ApiResult(false, e.getMessage());
             }
+            stmt = prepare(conn, SQL_BORROW_INSERT);
+            bindBorrowInsert(stmt, borrow);
+            stmt.executeUpdate();
+            return new ApiResult(true, null);
+        });
+        if (!result.ok && loans != null) {
+            loans.close(borrow.getCardId(), borrow.getBookId());
         }
-        
+        if (result.ok) {
+            onStockChanged(borrow.getBookId(), -1);
+            onBorrowed(borrow);
+        }
+        return result;
+    }
 
     @Override
-    public ApiResult registerCard(Card card) {
-        Connection conn = connector.getConn();
-        try{
-            PreparedStatement stmt = conn.prepareStatement("SELECT * FROM card WHERE name=? AND department=? and type=?");
-            stmt.setString(1, card.getName());
-            stmt.setString(2, card.getDepartment());
-            stmt.setString(3, card.getType().getStr());
-            ResultSet rs = stmt.executeQuery();
-            if (rs.next()) {//if exist
-                return new ApiResult(false, "Card already exists");
+    public ApiResult returnBook(Borrow borrow) {
+        if (borrow.getReturnTime() <= borrow.getBorrowTime()) {
+            return new ApiResult(false, "Invalid return time");
+        }
+        StockReservations res = reservations;
+        ApiResult result = execute("returnBook", conn -> {
+            //只有未归还的这条记录会被更新
+            PreparedStatement stmt = prepare(conn, SQL_RETURN);
+            bindReturn(stmt, borrow);
+            if (stmt.executeUpdate() == 0) {//if not exist such borrow record
+                return new ApiResult(false, "Book does not exist");
+            }
+            if (res == null) {
+                stmt = prepare(conn, SQL_RETURN_STOCK);
+                stmt.setInt(1, borrow.getBookId());
+                stmt.executeUpdate();
+            }
+            return new ApiResult(true, "return book successfully");
+        });
+        if (result.ok && res != null) {
+            //借出的书已经在计数器中，归还只会增加库存
+            ApiResult added = addStock(res, borrow.getBookId(), 1);
+            if (!added.ok) {
+                result = new ApiResult(false, "Book returned but stock not updated: " + added.message);
+            }
+        }
+        OpenLoanIndex loans = openLoans;
+        if (result.ok && loans != null) {
+            loans.close(borrow.getCardId(), borrow.getBookId());
+        }
+        if (result.ok) {
+            onStockChanged(borrow.getBookId(), 1);
+            onReturned(borrow);
+        }
+        return result;
+    }
+
+    @Override
+    public ApiResult borrowBooks(List<Borrow> borrows) {
+        if (reservations != null) {
+            //库存由计数器决定，逐项借阅已经不会争用book的行锁
+            List<ApiResult> results = new ArrayList<>();
+            for (Borrow borrow : borrows) {
+                results.add(borrowBook(borrow));
+            }
+            return new ApiResult(true, "borrow books successfully", new BatchResults(results));
+        }
+        ApiResult[] results = new ApiResult[borrows.size()];
+        for (int from = 0; from < borrows.size(); from += BATCH_CHUNK) {
+            List<Borrow> chunk = borrows.subList(from, Math.min(borrows.size(), from + BATCH_CHUNK));
+            ApiResult[] chunkResults = new ApiResult[chunk.size()];
+            //先在open-loan索引中占位，占位失败的项不再进入批处理
+            OpenLoanIndex loans = openLoans;
+            boolean[] claimed = new boolean[chunk.size()];
+            for (int i = 0; loans != null && i < chunk.size(); i++) {
+                ApiResult claim = claimLoan(loans, chunk.get(i));
+                claimed[i] = claim.ok;
+                if (!claim.ok) {
+                    chunkResults[i] = claim;
+                }
+            }
+            //占位失败的项已有结果；事务重试时不能把上一次的结果当成占位失败
+            boolean[] skip = new boolean[chunk.size()];
+            for (int i = 0; i < chunk.size(); i++) {
+                skip[i] = chunkResults[i] != null;
+            }
+            ApiResult result = execute("borrowBooks", conn -> borrowChunk(conn, chunk, skip, chunkResults));
+            for (int i = 0; i < chunk.size(); i++) {
+                Borrow borrow = chunk.get(i);
+                if (claimed[i] && (!result.ok || !chunkResults[i].ok)) {
+                    loans.close(borrow.getCardId(), borrow.getBookId());
+                }
+                if (!result.ok) {
+                    //整块已回滚，逐个重做以得到每一项的结果
+                    chunkResults[i] = borrowBook(borrow);
+                } else if (chunkResults[i].ok) {
+                    onStockChanged(borrow.getBookId(), -1);
+                    onBorrowed(borrow);
+                }
+                results[from + i] = chunkResults[i];
+            }
+        }
+        return new ApiResult(true, "borrow books successfully", new BatchResults(Arrays.asList(results)));
+    }
+
+    @Override
+    public ApiResult returnBooks(List<Borrow> borrows) {
+        if (reservations != null) {
+            List<ApiResult> results = new ArrayList<>();
+            for (Borrow borrow : borrows) {
+                results.add(returnBook(borrow));
+            }
+            return new ApiResult(true, "return books successfully", new BatchResults(results));
+        }
+        ApiResult[] results = new ApiResult[borrows.size()];
+        for (int from = 0; from < borrows.size(); from += BATCH_CHUNK) {
+            List<Borrow> chunk = borrows.subList(from, Math.min(borrows.size(), from + BATCH_CHUNK));
+            ApiResult[] chunkResults = new ApiResult[chunk.size()];
+            ApiResult result = execute("returnBooks", conn -> returnChunk(conn, chunk, chunkResults));
+            for (int i = 0; i < chunk.size(); i++) {
+                if (!result.ok) {
+                    chunkResults[i] = returnBook(chunk.get(i));
+                } else if (chunkResults[i].ok) {
+                    onStockChanged(chunk.get(i).getBookId(), 1);
+                    onReturned(chunk.get(i));
+                    OpenLoanIndex loans = openLoans;
+                    if (loans != null) {
+                        loans.close(chunk.get(i).getCardId(), chunk.get(i).getBookId());
+                    }
+                }
+                results[from + i] = chunkResults[i];
+            }
+        }
+        return new ApiResult(true, "return books successfully", new BatchResults(Arrays.asList(results)));
+    }
+
+    /*
+     * borrow one chunk in a single transaction: a batch of conditional
+     * stock decrements, then a batch of inserts for the winners. it fails
+     * as a whole if the database does not report per-item counts or a
+     * statement fails, e.g. for a missing card.
+     */
+    private ApiResult borrowChunk(Connection conn, List<Borrow> chunk, boolean[] skip, ApiResult[] results)
+            throws SQLException {
+        //同一批中同一张卡重复借同一本书，只有第一项可能成功
+        Map<Long, Integer> first = new HashMap<>();
+        int[] dupOf = new int[chunk.size()];
+        PreparedStatement stmt = prepare(conn, SQL_BORROW_STOCK);
+        List<Integer> queued = new ArrayList<>();
+        for (int i = 0; i < chunk.size(); i++) {
+            Borrow borrow = chunk.get(i);
+            if (skip[i]) {
+                dupOf[i] = -1;
+                continue;
+            }
+            Integer j = first.putIfAbsent(((long) borrow.getCardId() << 32) | borrow.getBookId(), i);
+            dupOf[i] = j == null ? -1 : j;
+            if (j == null) {
+                bindBorrowStock(stmt, borrow);
+                stmt.addBatch();
+                queued.add(i);
+            }
+        }
+        int[] counts = stmt.executeBatch();
+        PreparedStatement insert = prepare(conn, SQL_BORROW_INSERT);
+        for (int k = 0; k < counts.length; k++) {
+            int i = queued.get(k);
+            if (counts[k] == Statement.SUCCESS_NO_INFO) {
+                return new ApiResult(false, "Batch update counts are not available");
+            }
+            if (counts[k] > 0) {
+                bindBorrowInsert(insert, chunk.get(i));
+                insert.addBatch();
+                results[i] = new ApiResult(true, null);
+            } else {
+                results[i] = borrowFailure(conn, chunk.get(i));
+            }
+        }
+        insert.executeBatch();
+        for (int i = 0; i < chunk.size(); i++) {
+            if (dupOf[i] >= 0) {
+                results[i] = results[dupOf[i]].ok ? new ApiResult(false, "Book is already borrowed.") : results[dupOf[i]];
+            }
+        }
+        return new ApiResult(true, null);
+    }
+
+    /* see borrowChunk, each borrow record can only be returned once */
+    private ApiResult returnChunk(Connection conn, List<Borrow> chunk, ApiResult[] results) throws SQLException {
+        PreparedStatement stmt = prepare(conn, SQL_RETURN);
+        List<Integer> queued = new ArrayList<>();
+        for (int i = 0; i < chunk.size(); i++) {
+            Borrow borrow = chunk.get(i);
+            if (borrow.getReturnTime() <= borrow.getBorrowTime()) {
+                results[i] = new ApiResult(false, "Invalid return time");
+                continue;
+            }
+            bindReturn(stmt, borrow);
+            stmt.addBatch();
+            queued.add(i);
+        }
+        if (queued.isEmpty()) {
+            return new ApiResult(true, null);
+        }
+        int[] counts = stmt.executeBatch();
+        PreparedStatement stock = prepare(conn, SQL_RETURN_STOCK);
+        boolean returned = false;
+        for (int k = 0; k < counts.length; k++) {
+            int i = queued.get(k);
+            if (counts[k] == Statement.SUCCESS_NO_INFO) {
+                return new ApiResult(false, "Batch update counts are not available");
+            }
+            if (counts[k] > 0) {
+                stock.setInt(1, chunk.get(i).getBookId());
+                stock.addBatch();
+                returned = true;
+                results[i] = new ApiResult(true, "return book successfully");
+            } else {
+                results[i] = new ApiResult(false, "Book does not exist");
+            }
+        }
+        if (returned) {
+            stock.executeBatch();
+        }
+        return new ApiResult(true, null);
+    }
+
+    /*
+     * borrow with the stock decided by the counters: the card may only
+     * have one borrow of the book in flight, the copy is taken from the
+     * counter, then only the borrow record is written. the copy is put
+     * back if the transaction fails.
+     */
+    private ApiResult borrowReserved(StockReservations res, OpenLoanIndex loans, Borrow borrow) {
+        //有open-loan索引时借阅已经在索引中占位
+        long pair = ((long) borrow.getCardId() << 32) | borrow.getBookId();
+        if (loans == null && !borrowing.add(pair)) {
+            return new ApiResult(false, "Book is already borrowed.");
+        }
+        try {
+            ApiResult reserved = reserve(res, borrow.getBookId(), -1);
+            if (!reserved.ok) {
+                return reserved.message != null ? reserved : new ApiResult(false, "Book is not available.");
+            }
+            ApiResult result = execute("borrowBook", conn -> {
+                PreparedStatement stmt;
+                if (loans == null) {
+                    stmt = prepare(conn, "SELECT * FROM borrow WHERE book_id = ? AND card_id = ? AND return_time = 0");
+                    stmt.setInt(1, borrow.getBookId());
+                    stmt.setInt(2, borrow.getCardId());
+                    if (stmt.executeQuery().next()) {
+                        return new ApiResult(false, "Book is already borrowed.");
+                    }
+                }
+                stmt = prepare(conn, SQL_BORROW_INSERT);
+                bindBorrowInsert(stmt, borrow);
+                stmt.executeUpdate();
+                return new ApiResult(true, null);
+            });
+            if (!result.ok) {
+                reserve(res, borrow.getBookId(), 1);
+            }
+            return result;
+        } finally {
+            if (loans == null) {
+                borrowing.remove(pair);
+            }
+        }
+    }
+
+    /* claim the loan in the open-loan index, if there is one */
+    private static ApiResult claimLoan(OpenLoanIndex loans, Borrow borrow) {
+        Claim claim = loans == null ? Claim.OK : loans.tryOpen(borrow.getCardId(), borrow.getBookId());
+        switch (claim) {
+            case DUPLICATE:
+                return new ApiResult(false, "Book is already borrowed.");
+            case BOOK_REMOVED:
+                return new ApiResult(false, "Book is not available.");
+            case CARD_REMOVED:
+                return new ApiResult(false, "Card does not exist");
+            default:
+                return new ApiResult(true, null);
+        }
+    }
+
+    /* ok, or the outcome as payload, or a message if the stock could not be loaded */
+    private static ApiResult reserve(StockReservations res, int bookId, int delta) {
+        try {
+            Outcome outcome = res.tryAdd(bookId, delta);
+            return new ApiResult(outcome == Outcome.OK, null, outcome);
+        } catch (IllegalStateException e) {
+            return new ApiResult(false, e.getMessage());
+        }
+    }
+
+    /**
+     * add a positive delta to the stock of a book through the counters.
+     * if the counter cannot take it (its stock failed to load, or the book
+     * is gone) the delta is written to the database directly, a counter
+     * loaded later reads it from there.
+     */
+    private ApiResult addStock(StockReservations res, int bookId, int delta) {
+        ApiResult reserved = reserve(res, bookId, delta);
+        if (reserved.ok) {
+            return reserved;
+        }
+        try {
+            writeStock(Collections.singletonMap(bookId, delta));
+            return new ApiResult(true, null);
+        } catch (SQLException e) {
+            return new ApiResult(false, e.getMessage());
+        }
+    }
+
+    private Integer loadStock(int bookId) throws SQLException {
+        ApiResult result = execute("loadStock", conn -> {
+            PreparedStatement stmt = prepare(conn, "SELECT stock FROM book WHERE book_id = ?");
+            stmt.setInt(1, bookId);
+            ResultSet rs = stmt.executeQuery();
+            return new ApiResult(true, null, rs.next() ? rs.getInt("stock") : null);
+        });
+        if (!result.ok) {
+            throw new SQLException(result.message);
+        }
+        return (Integer) result.payload;
+    }
+
+    /* one transaction, rows are updated in order of book_id to avoid deadlocks */
+    private void writeStock(Map<Integer, Integer> deltas) throws SQLException {
+        ApiResult result = execute("flushStock", conn -> {
+            PreparedStatement stmt = prepare(conn, "UPDATE book SET stock = stock + ? WHERE book_id = ?");
+            for (Map.Entry<Integer, Integer> entry : new TreeMap<>(deltas).entrySet()) {
+                stmt.setInt(1, entry.getValue());
+                stmt.setInt(2, entry.getKey());
+                stmt.addBatch();
+            }
+            stmt.executeBatch();
+            return new ApiResult(true, null);
+        });
+        if (!result.ok) {
+            throw new SQLException(result.message);
+        }
+    }
+
+    /* book.stock lags behind the counters until they are flushed, readers of it flush first */
+    private ApiResult flushReservations() {
+        StockReservations res = reservations;
+        if (res != null) {
+            try {
+                res.flush();
+            } catch (Exception e) {
+                return new ApiResult(false, e.getMessage());
+            }
+        }
+        return new ApiResult(true, null);
+    }
+
+    /* the stock decrement of a borrow matched nothing, find out why */
+    private ApiResult borrowFailure(Connection conn, Borrow borrow) throws SQLException {
+        PreparedStatement stmt = prepare(conn, "SELECT stock FROM book WHERE book_id = ?");
+        stmt.setInt(1, borrow.getBookId());
+        ResultSet rs = stmt.executeQuery();
+        if (!rs.next() || rs.getInt("stock") == 0) {
+            return new ApiResult(false, "Book is not available.");
+        }
+        return new ApiResult(false, "Book is already borrowed.");
+    }
+
+    private static void bindBorrowStock(PreparedStatement stmt, Borrow borrow) throws SQLException {
+        stmt.setInt(1, borrow.getBookId());
+        stmt.setInt(2, borrow.getBookId());
+        stmt.setInt(3, borrow.getCardId());
+    }
+
+    private static void bindBorrowInsert(PreparedStatement stmt, Borrow borrow) throws SQLException {
+        stmt.setInt(1, borrow.getCardId());
+        stmt.setInt(2, borrow.getBookId());
+        stmt.setLong(3, borrow.getBorrowTime());
+    }
+
+    private static void bindReturn(PreparedStatement stmt, Borrow borrow) throws SQLException {
+        stmt.setLong(1, borrow.getReturnTime());
+        stmt.setInt(2, borrow.getCardId());
+        stmt.setInt(3, borrow.getBookId());
+        stmt.setLong(4, borrow.getBorrowTime());
+    }
+
+    @Override
+    public ApiResult showBorrowHistory(int cardId) {
+        BorrowHistoryCache histories = historyCache;
+        if (histories == null) {
+            return showBorrowHistoryUncached(cardId);
+        }
+        List<Item> cached = histories.get(cardId);
+        if (cached != null) {
+            return new ApiResult(true, "show borrow history successfully", new BorrowHistories(cached));
+        }
+        long generation = histories.generation();
+        ApiResult result = showBorrowHistoryUncached(cardId);
+        if (result.ok) {
+            histories.put(cardId, ((BorrowHistories) result.payload).getItems(), generation);
+        }
+        return result;
+    }
+
+    private ApiResult showBorrowHistoryUncached(int cardId) {
+        return execute("showBorrowHistory", conn -> {
+            //一次join取出借阅记录和书的信息，不再逐条查book
+            PreparedStatement stmt = prepare(conn, SQL_HISTORY + SQL_HISTORY_ORDER);
+            stmt.setInt(1, cardId);
+            ResultSet rs = stmt.executeQuery();
+            //按列存放，同一本书的字段只存一份
+            CompactBorrowHistories.Builder builder = new CompactBorrowHistories.Builder();
+            while (rs.next()) {
+                addHistoryRow(builder, rs);
+            }
+            return new ApiResult(true, "show borrow history successfully", builder.build());
+        });
+    }
+
+    @Override
+    public ApiResult showBorrowHistory(int cardId, int pageSize, String pageToken) {
+        if (pageSize <= 0) {
+            return new ApiResult(false, "Page size must be positive");
+        }
+        Item last;
+        try {
+            last = pageToken == null ? null : BorrowHistories.decodePageToken(pageToken);
+        } catch (IllegalArgumentException e) {
+            return new ApiResult(false, e.getMessage());
+        }
+        BorrowHistoryCache histories = historyCache;
+        List<Item> cached = histories == null ? null : histories.get(cardId);
+        if (cached != null) {
+            //在缓存的完整记录中定位这一页
+            int from = 0;
+            while (last != null && from < cached.size() && !(cached.get(from).getBorrowTime() < last.getBorrowTime()
+                    || (cached.get(from).getBorrowTime() == last.getBorrowTime()
+                    && cached.get(from).getBookId() > last.getBookId()))) {
+                from++;
+            }
+            int to = Math.min(cached.size(), from + pageSize);
+            String nextPageToken = to < cached.size() ? BorrowHistories.nextPageToken(cached.get(to - 1)) : null;
+            return new ApiResult(true, "show borrow history successfully",
+                    new BorrowHistories(new ArrayList<>(cached.subList(from, to)), nextPageToken));
+        }
+        return execute("showBorrowHistory", conn -> {
+            String sql = SQL_HISTORY + (last == null ? "" : SQL_HISTORY_SEEK) + SQL_HISTORY_ORDER
+                    + connector.getConf().getType().limitClause();
+            PreparedStatement stmt = prepare(conn, sql);
+            int index = 1;
+            stmt.setInt(index++, cardId);
+            if (last != null) {
+                stmt.setLong(index++, last.getBorrowTime());
+                stmt.setLong(index++, last.getBorrowTime());
+                stmt.setInt(index++, last.getBookId());
+            }
+            stmt.setInt(index, pageSize + 1);//多取一行用来判断是否还有下一页
+            ResultSet rs = stmt.executeQuery();
+            CompactBorrowHistories.Builder builder = new CompactBorrowHistories.Builder();
+            Item lastRow = new Item();
+            String nextPageToken = null;
+            while (rs.next()) {
+                if (builder.size() == pageSize) {
+                    nextPageToken = BorrowHistories.nextPageToken(lastRow);
+                    break;
+                }
+                addHistoryRow(builder, rs);
+                lastRow.setBorrowTime(rs.getLong("borrow_time"));
+                lastRow.setBookId(rs.getInt("book_id"));
+            }
+            return new ApiResult(true, "show borrow history successfully", builder.build(nextPageToken));
+        });
+    }
+
+    /* a book as stored, null if it does not exist or could not be read */
+    private Book loadBook(int bookId) {
+        ApiResult result = execute("loadBook", conn -> {
+            PreparedStatement stmt = prepare(conn, "SELECT " + BookQueryBuilder.BOOK_COLUMNS + " FROM book WHERE book_id = ?");
+            stmt.setInt(1, bookId);
+            ResultSet rs = stmt.executeQuery();
+            return new ApiResult(true, null, rs.next() ? BookQueryBuilder.readBook(rs) : null);
+        });
+        return result.ok ? (Book) result.payload : null;
+    }
+
+    @Override
+    public ApiResult showBorrowHistories(Collection<Integer> cardIds) {
+        Map<Integer, BorrowHistories> result = new LinkedHashMap<>();
+        for (Integer cardId : cardIds) {
+            result.put(cardId, null);
+        }
+        //缓存中有的卡直接取，其余的分块查询
+        BorrowHistoryCache histories = historyCache;
+        long generation = histories == null ? 0 : histories.generation();
+        List<Integer> missing = new ArrayList<>();
+        for (Integer cardId : result.keySet()) {
+            List<Item> cached = histories == null ? null : histories.get(cardId);
+            if (cached != null) {
+                result.put(cardId, new BorrowHistories(cached));
+            } else {
+                missing.add(cardId);
+            }
+        }
+        List<Future<ApiResult>> chunks = new ArrayList<>();
+        for (int from = 0; from < missing.size(); from += HISTORY_CHUNK) {
+            List<Integer> chunk = missing.subList(from, Math.min(missing.size(), from + HISTORY_CHUNK));
+            Transaction trx = conn -> showHistoryChunk(conn, chunk);
+            if (missing.size() <= HISTORY_CHUNK) {
+                chunks.add(CompletableFuture.completedFuture(execute("showBorrowHistories", trx)));
+            } else {
+                chunks.add(historyReaders().submit(() -> execute("showBorrowHistories", trx)));
+            }
+        }
+        ApiResult failure = null;
+        for (Future<ApiResult> future : chunks) {
+            ApiResult chunkResult;
+            try {
+                chunkResult = future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                chunkResult = new ApiResult(false, e.getMessage());
+            } catch (ExecutionException e) {
+                chunkResult = new ApiResult(false, e.getCause().getMessage());
+            }
+            if (!chunkResult.ok) {
+                failure = failure == null ? chunkResult : failure;
+                continue;
+            }
+            @SuppressWarnings("unchecked")
+            Map<Integer, BorrowHistories> chunkHistories = (Map<Integer, BorrowHistories>) chunkResult.payload;
+            result.putAll(chunkHistories);
+            if (histories != null) {
+                for (Map.Entry<Integer, BorrowHistories> entry : chunkHistories.entrySet()) {
+                    histories.put(entry.getKey(), entry.getValue().getItems(), generation);
+                }
+            }
+        }
+        if (failure != null) {
+            return failure;
+        }
+        return new ApiResult(true, "show borrow histories successfully", new CardBorrowHistories(result));
+    }
+
+    /* histories of one chunk of cards, card_id -> history, in one query */
+    private ApiResult showHistoryChunk(Connection conn, List<Integer> chunk) throws SQLException {
+        //补齐到2的幂，让不同大小的块共用少数几条缓存的语句
+        int n = chunk.size() == 1 ? 1 : Integer.highestOneBit(chunk.size() - 1) << 1;
+        StringBuilder marks = new StringBuilder();
+        for (int i = 0; i < n; i++) {
+            marks.append(i == 0 ? "?" : ", ?");
+        }
+        PreparedStatement stmt = prepare(conn, String.format(SQL_HISTORIES, marks));
+        for (int i = 0; i < n; i++) {
+            stmt.setInt(i + 1, chunk.get(Math.min(i, chunk.size() - 1)));
+        }
+        Map<Integer, CompactBorrowHistories.Builder> builders = new LinkedHashMap<>();
+        for (Integer cardId : chunk) {
+            builders.put(cardId, new CompactBorrowHistories.Builder());
+        }
+        ResultSet rs = stmt.executeQuery();
+        while (rs.next()) {
+            addHistoryRow(builders.get(rs.getInt("card_id")), rs);
+        }
+        Map<Integer, BorrowHistories> histories = new LinkedHashMap<>();
+        for (Map.Entry<Integer, CompactBorrowHistories.Builder> entry : builders.entrySet()) {
+            histories.put(entry.getKey(), entry.getValue().build());
+        }
+        return new ApiResult(true, null, histories);
+    }
+
+    private ExecutorService historyReaders() {
+        ExecutorService readers = historyReaders;
+        if (readers == null) {
+            synchronized (this) {
+                readers = historyReaders;
+                if (readers == null) {
+                    readers = Executors.newFixedThreadPool(connector.getConf().getPoolSize(), r -> {
+                        Thread thread = new Thread(r, "history-reader");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                    historyReaders = readers;
+                }
+            }
+        }
+        return readers;
+    }
+
+    /* add the current row of a result set selecting SQL_HISTORY */
+    private static void addHistoryRow(CompactBorrowHistories.Builder builder, ResultSet rs) throws SQLException {
+        builder.add(rs.getInt("card_id"), rs.getInt("book_id"), rs.getLong("borrow_time"),
+                rs.getLong("return_time"), rs.getString("category"), rs.getString("title"),
+                rs.getString("press"), rs.getInt("publish_year"), rs.getString("author"),
+                rs.getDouble("price"));
+    }
+
+    @Override
+    public ApiResult registerCard(Card card) {
+        return execute("registerCard", conn -> {
+            PreparedStatement stmt = prepare(conn, "SELECT * FROM card WHERE name=? AND department=? and type=?");
+            stmt.setString(1, card.getName());
+            stmt.setString(2, card.getDepartment());
+            stmt.setString(3, card.getType().getStr());
+            ResultSet rs = stmt.executeQuery();
+            if (rs.next()) {//if exist
+                return new ApiResult(false, "Card already exists");
             }
             else{
-                PreparedStatement stmt2 = conn.prepareStatement("INSERT INTO card (name, department, type) VALUES ( ?, ?, ?)",Statement.RETURN_GENERATED_KEYS);
+                PreparedStatement stmt2 = prepare(conn, "INSERT INTO card (name, department, type) VALUES ( ?, ?, ?)",Statement.RETURN_GENERATED_KEYS);
                 stmt2.setString(1, card.getName());
                 stmt2.setString(2, card.getDepartment());
                 stmt2.setString(3, card.getType().getStr());
                 stmt2.executeUpdate();
                 ResultSet rs2 = stmt2.getGeneratedKeys();
-            if (rs2.next()) {
-                card.setCardId(rs2.getInt(1));//返回得到的主键
-            }
-            commit(conn);
+                if (rs2.next()) {
+                    card.setCardId(rs2.getInt(1));//返回得到的主键
+                }
                 return new ApiResult(true, "register card successfully");
             }
-        }catch (Exception e) {
-            rollback(conn);
-            return new ApiResult(false, e.getMessage());
+        });
+    }
+
+    @Override
+    public ApiResult registerCard(List<Card> cards) {
+        return execute("registerCards", conn -> {
+            //列表内部查重，再按唯一键成批查出已存在的卡
+            Set<String> existing = findExistingCards(conn, cards);
+            List<ApiResult> rowResults = new ArrayList<>(cards.size());
+            Set<String> keys = new HashSet<>();
+            boolean conflict = false;
+            for (Card card : cards) {
+                String key = cardKey(card.getDepartment(), card.getType().getStr(), card.getName());
+                if (existing.contains(key) || !keys.add(key)) {
+                    rowResults.add(new ApiResult(false, "Card already exists"));
+                    conflict = true;
+                } else {
+                    rowResults.add(new ApiResult(true, null));
+                }
+            }
+            if (conflict) {
+                return new ApiResult(false, "Card already exists", new BatchResults(rowResults));
+            }
+            if (cards.isEmpty() || (cards.size() >= BULK_LOAD_ROWS && bulkLoadCards(conn, cards))) {
+                return new ApiResult(true, "register cards successfully");
+            }
+            PreparedStatement stmt = prepare(conn, "INSERT INTO card (name, department, type) VALUES ( ?, ?, ?)", Statement.RETURN_GENERATED_KEYS);
+            for (Card card : cards) {
+                stmt.setString(1, card.getName());
+                stmt.setString(2, card.getDepartment());
+                stmt.setString(3, card.getType().getStr());
+                stmt.addBatch();
+            }
+            stmt.executeBatch();
+            ResultSet rs = stmt.getGeneratedKeys();
+            for (int i = 0; rs.next(); i++) {
+                cards.get(i).setCardId(rs.getInt(1));
+            }
+            return new ApiResult(true, "register cards successfully");
+        });
+    }
+
+    /*
+     * unique keys (see cardKey) of the stored cards having the key of some
+     * of cards. KEY_LOOKUP_ROWS keys are looked up per query.
+     */
+    private Set<String> findExistingCards(Connection conn, List<Card> cards) throws SQLException {
+        Map<String, Card> distinct = new LinkedHashMap<>();
+        for (Card card : cards) {
+            distinct.putIfAbsent(cardKey(card.getDepartment(), card.getType().getStr(), card.getName()), card);
         }
+        List<Card> keys = new ArrayList<>(distinct.values());
+        Set<String> existing = new HashSet<>();
+        for (int from = 0; from < keys.size(); from += KEY_LOOKUP_ROWS) {
+            List<Card> chunk = keys.subList(from, Math.min(keys.size(), from + KEY_LOOKUP_ROWS));
+            //最后一块用重复的键补齐
+            PreparedStatement stmt = prepare(conn, SQL_CARD_KEYS_LOOKUP);
+            for (int i = 0; i < KEY_LOOKUP_ROWS; i++) {
+                Card card = chunk.get(Math.min(i, chunk.size() - 1));
+                stmt.setString(3 * i + 1, card.getDepartment());
+                stmt.setString(3 * i + 2, card.getType().getStr());
+                stmt.setString(3 * i + 3, card.getName());
+            }
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next()) {
+                existing.add(cardKey(rs.getString("department"), rs.getString("type"), rs.getString("name")));
+            }
+        }
+        return existing;
+    }
+
+    /* the unique key of a card, compared loosely like bookKey */
+    private static String cardKey(String department, String type, String name) {
+        StringBuilder sb = new StringBuilder(64).append(type).append('|');
+        for (String field : new String[]{department, name}) {
+            int end = field.length();
+            while (end > 0 && field.charAt(end - 1) == ' ') {
+                end--;
+            }
+            sb.append(end).append(':').append(field.substring(0, end).toLowerCase(Locale.ROOT)).append('|');
+        }
+        return sb.toString();
     }
     @Override
     public ApiResult removeCard(int cardId) {
-        Connection conn = connector.getConn();
-        try{
-            PreparedStatement stmt = conn.prepareStatement("SELECT * FROM card WHERE card_id=?");
+        OpenLoanIndex loans = openLoans;
+        Removal removal = loans == null ? Removal.OK : loans.tryRemoveCard(cardId);
+        if (removal == Removal.OPEN_LOANS) {
+            return new ApiResult(false, "Card has books that didn't returned");
+        }
+        if (removal == Removal.REMOVING) {
+            return new ApiResult(false, "Card is being removed");
+        }
+        ApiResult result = execute("removeCard", conn -> {
+            PreparedStatement stmt = prepare(conn, "SELECT * FROM card WHERE card_id=?");
             stmt.setInt(1, cardId);
             ResultSet rs = stmt.executeQuery();
             if (!rs.next()) {//if not exist
                 return new ApiResult(false, "Card does not exist");
             }
             else{//exist
-                PreparedStatement stmt1=conn.prepareStatement("select * from borrow where card_id=? and return_time=0");
-                stmt1.setInt(1, cardId);
-                ResultSet rs1=stmt1.executeQuery();
-                if(rs1.next()){//exist books that hasnt returned
-                    return new ApiResult(false,"Card has books that didn't returned");
+                if (loans == null) {
+                    PreparedStatement stmt1=prepare(conn, "select * from borrow where card_id=? and return_time=0");
+                    stmt1.setInt(1, cardId);
+                    ResultSet rs1=stmt1.executeQuery();
+                    if(rs1.next()){//exist books that hasnt returned
+                        return new ApiResult(false,"Card has books that didn't returned");
+                    }
                 }
                 //else
-                PreparedStatement stmt2 = conn.prepareStatement("DELETE FROM card WHERE card_id=?");
+                PreparedStatement stmt2 = prepare(conn, "DELETE FROM card WHERE card_id=?");
                 stmt2.setInt(1, cardId);
                 stmt2.executeUpdate();
-                commit(conn);
                 return new ApiResult(true, "remove card successfully");
             }
-        }catch (Exception e) {
-            rollback(conn);
-            return new ApiResult(false, e.getMessage());
+        });
+        if (loans != null) {
+            loans.endRemoveCard(cardId);
+        }
+        BorrowHistoryCache histories = historyCache;
+        if (result.ok && histories != null) {
+            histories.onCardRemoved(cardId);
         }
+        return result;
     }
 
     @Override
     public ApiResult showCards() {
-        Connection conn = connector.getConn();
-        try{
-            PreparedStatement stmt = conn.prepareStatement("SELECT * FROM card order by card_id asc");
+        return execute("showCards", conn -> {
+            PreparedStatement stmt = prepare(conn, "SELECT * FROM card order by card_id asc");
             ResultSet rs = stmt.executeQuery();
             if (!rs.next()) {//if not exist
                 return new ApiResult(true, "Card does not exist");
@@ -499,48 +1769,371 @@ public class LibraryManagementSystemImpl implements LibraryManagementSystem {
                 }while(rs.next());
                 return new ApiResult(true, "show cards successfully", new CardList(cardList));
             }
-        }catch(SQLException e){
-            e.printStackTrace();
-        }
-        return new ApiResult(false,"function not completed");
+        });
     }
 
     @Override
     public ApiResult resetDatabase() {
-        Connection conn = connector.getConn();
-        try {
-            Statement stmt = conn.createStatement();
-            DBInitializer initializer = connector.getConf().getType().getDbInitializer();
-            stmt.addBatch(initializer.sqlDropBorrow());
-            stmt.addBatch(initializer.sqlDropBook());
-            stmt.addBatch(initializer.sqlDropCard());
-            stmt.addBatch(initializer.sqlCreateCard());
-            stmt.addBatch(initializer.sqlCreateBook());
-            stmt.addBatch(initializer.sqlCreateBorrow());
+        StockReservations res = reservations;
+        if (res != null) {
+            //丢弃未写回的库存变化，避免写进重建后的表
+            res.clear();
+        }
+        ApiResult result = execute("resetDatabase", conn -> {
+            try (Statement stmt = conn.createStatement()) {
+                DBInitializer initializer = connector.getConf().getType().getDbInitializer();
+                stmt.addBatch(initializer.sqlDropBorrow());
+                stmt.addBatch(initializer.sqlDropBookTrigram());
+                stmt.addBatch(initializer.sqlDropBook());
+                stmt.addBatch(initializer.sqlDropCard());
+                stmt.addBatch(initializer.sqlCreateCard());
+                stmt.addBatch(initializer.sqlCreateBook());
+                stmt.addBatch(initializer.sqlCreateBorrow());
+                stmt.addBatch(initializer.sqlCreateBookTrigram());
+                stmt.executeBatch();
+            }
+            return new ApiResult(true, null);
+        });
+        if (result.ok) {
+            //新建的book_trigram和book一样是空的，即是完整的
+            trigramTable = true;
+            trigramIndexComplete = true;
+            onDatabaseReset();
+        }
+        return result;
+    }
+
+    /**
+     * create book_trigram if it is missing and index all stored books,
+     * fuzzy conditions of queryBook only use the index after this or
+     * resetDatabase. run it at startup on a database whose books were
+     * stored before the index existed.
+     */
+    public ApiResult rebuildTrigramIndex() {
+        trigramIndexComplete = false;
+        long[] maxId = {0};
+        ApiResult result = execute("rebuildTrigramIndex", conn -> {
+            if (!hasTrigramTable(conn)) {
+                try (Statement stmt = conn.createStatement()) {
+                    stmt.execute(connector.getConf().getType().getDbInitializer().sqlCreateBookTrigram());
+                }
+            }
+            ResultSet rs = prepare(conn, "SELECT MAX(book_id) FROM book").executeQuery();
+            maxId[0] = rs.next() ? rs.getLong(1) : 0;
+            return new ApiResult(true, null);
+        });
+        if (!result.ok) {
+            return result;
+        }
+        //从这里起写操作会维护book_trigram，之后按book_id分段重建已有的书
+        trigramTable = true;
+        for (long low = 0; low < maxId[0]; low += TRIGRAM_REBUILD_BOOKS) {
+            long from = low;
+            result = execute("rebuildTrigramIndex", conn -> {
+                PreparedStatement stmt = prepare(conn, "DELETE FROM book_trigram WHERE book_id > ? AND book_id <= ?");
+                stmt.setLong(1, from);
+                stmt.setLong(2, from + TRIGRAM_REBUILD_BOOKS);
+                stmt.executeUpdate();
+                stmt = prepare(conn, "SELECT " + BookQueryBuilder.BOOK_COLUMNS + " FROM book WHERE book_id > ? AND book_id <= ?");
+                stmt.setLong(1, from);
+                stmt.setLong(2, from + TRIGRAM_REBUILD_BOOKS);
+                ResultSet rs = stmt.executeQuery();
+                List<Book> books = new ArrayList<>();
+                while (rs.next()) {
+                    books.add(BookQueryBuilder.readBook(rs));
+                }
+                insertTrigrams(conn, books);
+                return new ApiResult(true, null);
+            });
+            if (!result.ok) {
+                return result;
+            }
+        }
+        trigramIndexComplete = true;
+        return new ApiResult(true, "rebuild trigram index successfully");
+    }
+
+    /* whether fuzzy conditions are prefiltered by book_trigram */
+    public boolean isTrigramIndexComplete() {
+        return trigramIndexComplete;
+    }
+
+    /* a missing table is looked up again each time, it may be created by another library */
+    private boolean hasTrigramTable(Connection conn) throws SQLException {
+        if (trigramTable) {
+            return true;
+        }
+        try (ResultSet rs = conn.getMetaData().getTables(conn.getCatalog(), null, "book_trigram", new String[]{"TABLE"})) {
+            if (rs.next()) {
+                trigramTable = true;
+            }
+        }
+        return trigramTable;
+    }
+
+    /* index title, press & author of books which already have their book_id */
+    private void insertTrigrams(Connection conn, List<Book> books) throws SQLException {
+        if (!hasTrigramTable(conn)) {
+            return;
+        }
+        List<Object[]> rows = new ArrayList<>();
+        for (Book book : books) {
+            addTrigramRows(rows, book.getBookId(), Trigrams.TITLE, book.getTitle());
+            addTrigramRows(rows, book.getBookId(), Trigrams.PRESS, book.getPress());
+            addTrigramRows(rows, book.getBookId(), Trigrams.AUTHOR, book.getAuthor());
+        }
+        insertTrigramRows(conn, rows);
+    }
+
+    private static void addTrigramRows(List<Object[]> rows, int bookId, char field, String text) {
+        for (byte[] trigram : Trigrams.ofValue(text)) {
+            rows.add(new Object[]{String.valueOf(field), trigram, bookId});
+        }
+    }
+
+    /* full chunks go through one multi-row insert, the rest row by row, both batched */
+    private void insertTrigramRows(Connection conn, List<Object[]> rows) throws SQLException {
+        int full = rows.size() / TRIGRAM_ROWS * TRIGRAM_ROWS;
+        if (full > 0) {
+            StringBuilder sql = new StringBuilder("INSERT INTO book_trigram (field, trigram, book_id) VALUES (?, ?, ?)");
+            for (int i = 1; i < TRIGRAM_ROWS; i++) {
+                sql.append(", (?, ?, ?)");
+            }
+            PreparedStatement stmt = prepare(conn, sql.toString());
+            for (int i = 0; i < full; i += TRIGRAM_ROWS) {
+                for (int j = 0; j < TRIGRAM_ROWS; j++) {
+                    bindTrigramRow(stmt, 3 * j + 1, rows.get(i + j));
+                }
+                stmt.addBatch();
+            }
+            stmt.executeBatch();
+        }
+        if (full < rows.size()) {
+            PreparedStatement stmt = prepare(conn, "INSERT INTO book_trigram (field, trigram, book_id) VALUES (?, ?, ?)");
+            for (int i = full; i < rows.size(); i++) {
+                bindTrigramRow(stmt, 1, rows.get(i));
+                stmt.addBatch();
+            }
             stmt.executeBatch();
-            commit(conn);
-        } catch (Exception e) {
-            rollback(conn);
-            return new ApiResult(false, e.getMessage());
         }
-        return new ApiResult(true, null);
     }
 
-    private void rollback(Connection conn) {
-        try {
-            conn.rollback();
-        } catch (Exception e) {
-            e.printStackTrace();
+    private static void bindTrigramRow(PreparedStatement stmt, int index, Object[] row) throws SQLException {
+        stmt.setString(index, (String) row[0]);
+        stmt.setBytes(index + 1, (byte[]) row[1]);
+        stmt.setInt(index + 2, (Integer) row[2]);
+    }
+
+    /*
+     * the following hooks run after a change has been committed, they
+     * keep all in-memory layers in step with the database.
+     */
+    private void onBookStored(Book book) {
+        CatalogReplica replica = catalog;
+        if (replica != null) {
+            replica.put(book);
+        }
+        QueryResultCache cache = queryCache;
+        if (cache != null) {
+            cache.onBookStored(book);
+        }
+    }
+
+    private void onBooksStored(List<Book> books) {
+        CatalogReplica replica = catalog;
+        if (replica != null) {
+            replica.putAll(books);
+        }
+        QueryResultCache cache = queryCache;
+        if (cache != null) {
+            cache.onBooksStored(books);
+        }
+    }
+
+    private void onBookModified(Book book) {
+        CatalogReplica replica = catalog;
+        if (replica != null) {
+            replica.modify(book);
+        }
+        QueryResultCache cache = queryCache;
+        if (cache != null) {
+            cache.onBookModified(book);
+        }
+        BorrowHistoryCache histories = historyCache;
+        if (histories != null) {
+            histories.onBookModified(book);
+        }
+    }
+
+    private void onStockChanged(int bookId, int deltaStock) {
+        CatalogReplica replica = catalog;
+        if (replica != null) {
+            replica.addStock(bookId, deltaStock);
+        }
+        QueryResultCache cache = queryCache;
+        if (cache != null) {
+            cache.onStockChanged(bookId);
+        }
+    }
+
+    private void onBookRemoved(int bookId) {
+        CatalogReplica replica = catalog;
+        if (replica != null) {
+            replica.remove(bookId);
+        }
+        QueryResultCache cache = queryCache;
+        if (cache != null) {
+            cache.onBookRemoved(bookId);
+        }
+        StockReservations res = reservations;
+        if (res != null) {
+            res.remove(bookId);
+        }
+        BorrowHistoryCache histories = historyCache;
+        if (histories != null) {
+            histories.onBookRemoved(bookId);
         }
     }
 
-    private void commit(Connection conn) {
+    private void onBorrowed(Borrow borrow) {
+        BorrowHistoryCache histories = historyCache;
+        if (histories == null) {
+            return;
+        }
+        //缓存中没有这本书的字段时才需要去取
+        Book book = null;
+        if (histories.needsBook(borrow.getCardId(), borrow.getBookId())) {
+            CatalogReplica replica = catalog;
+            book = replica != null ? replica.get(borrow.getBookId()) : loadBook(borrow.getBookId());
+        }
+        histories.onBorrowed(borrow, book);
+    }
+
+    private void onReturned(Borrow borrow) {
+        BorrowHistoryCache histories = historyCache;
+        if (histories != null) {
+            histories.onReturned(borrow);
+        }
+    }
+
+    private void onDatabaseReset() {
+        CatalogReplica replica = catalog;
+        if (replica != null) {
+            replica.clear();
+        }
+        QueryResultCache cache = queryCache;
+        if (cache != null) {
+            cache.clear();
+        }
+        StockReservations res = reservations;
+        if (res != null) {
+            res.clear();
+        }
+        OpenLoanIndex loans = openLoans;
+        if (loans != null) {
+            loans.clear();
+        }
+        BorrowHistoryCache histories = historyCache;
+        if (histories != null) {
+            histories.clear();
+        }
+    }
+
+    /* a unit of work which runs as one transaction on one pooled connection */
+    private interface Transaction {
+        ApiResult run(Connection conn) throws Exception;
+    }
+
+    /**
+     * borrow a connection from the pool, run the transaction on it and
+     * give the connection back. the transaction is committed iff it
+     * returns an ok result, otherwise it is rolled back.
+     *
+     * Note:
+     *      (1) a transaction failed by a deadlock, a serialization failure
+     *          or a lock timeout is rolled back and run again from the start,
+     *          so it must not leave side effects outside the database.
+     *      (2) the n-th retry waits a random time in [0, min(max delay,
+     *          base delay * 2^n)], which spreads out the transactions that
+     *          collided. no retry starts after the retry timeout.
+     *      (3) calls, retries and waits are counted per operation, see
+     *          {@link #getRetryStats()}.
+     *      (4) with group commit enabled, short writes are run by the
+     *          {@link GroupCommitter} first, and on their own only if their
+     *          group had to be rolled back as a whole.
+     */
+    private ApiResult execute(String operation, Transaction trx) {
+        ConnectConfig conf = connector.getConf();
+        long deadline = System.currentTimeMillis() + conf.getRetryTimeout();
+        retryStats.recordCall(operation);
+        GroupCommitter group = groupCommitter;
+        if (group != null && GROUPED_OPERATIONS.contains(operation)) {
+            ApiResult result = group.submit(trx::run);
+            if (result != null) {
+                return result;
+            }
+            //整组回滚了，单独执行（必要时重试）
+        }
+        for (int attempt = 0; ; attempt++) {
+            Connection conn;
+            try {
+                conn = connector.acquire();
+            } catch (SQLException e) {
+                return new ApiResult(false, e.getMessage());
+            }
+            SQLException failure;
+            try {
+                ApiResult result = trx.run(conn);
+                if (result.ok) {
+                    conn.commit();
+                } else {
+                    rollback(conn);
+                }
+                return result;
+            } catch (SQLException e) {
+                rollback(conn);
+                failure = e;
+            } catch (Exception e) {
+                rollback(conn);
+                return new ApiResult(false, e.getMessage());
+            } finally {
+                connector.release(conn);
+            }
+            if (!conf.getType().isTransient(failure)) {
+                return new ApiResult(false, failure.getMessage());
+            }
+            // 抖动的指数退避，超过期限则放弃
+            long bound = Math.min(conf.getRetryMaxDelay(), conf.getRetryBaseDelay() << Math.min(attempt, 20));
+            long delay = ThreadLocalRandom.current().nextLong(bound + 1);
+            if (System.currentTimeMillis() + delay > deadline) {
+                retryStats.recordExhausted(operation);
+                return new ApiResult(false, failure.getMessage());
+            }
+            retryStats.recordRetry(operation, delay);
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return new ApiResult(false, failure.getMessage());
+            }
+        }
+    }
+
+    /* statements come from the per-connection cache, never close them */
+    private PreparedStatement prepare(Connection conn, String sql) throws SQLException {
+        return connector.prepare(conn, sql);
+    }
+
+    private PreparedStatement prepare(Connection conn, String sql, int autoGeneratedKeys) throws SQLException {
+        return connector.prepare(conn, sql, autoGeneratedKeys);
+    }
+
+    private void rollback(Connection conn) {
         try {
-            conn.commit();
+            conn.rollback();
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
-
 }
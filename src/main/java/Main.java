@@ -5,6 +5,7 @@ import java.util.Scanner;
 import java.util.logging.Logger;
 
 import entities.Book;
+import queries.ApiResult;
 
 public class Main {
 
@@ -22,6 +23,12 @@ public class Main {
                 log.severe("Failed to connect database.");
                 System.exit(1);
             }
+            // books stored before the fuzzy query index existed are indexed here
+            LibraryManagementSystemImpl library = new LibraryManagementSystemImpl(connector);
+            ApiResult rebuilt = library.rebuildTrigramIndex();
+            if (!rebuilt.ok) {
+                log.warning("Failed to rebuild trigram index: " + rebuilt.message);
+            }
             /* do somethings */
             System.out.println("enter your choice");
             System.out.println("1. store book");
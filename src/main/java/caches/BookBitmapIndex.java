@@ -0,0 +1,181 @@
+package caches;
+
+import entities.Book;
+import queries.BookQueryConditions;
+
+import java.util.*;
+
+/**
+ * Bitmap indexes over the books of a {@link CatalogReplica}, keyed by
+ * book_id, which is the row ordinal of the replica.
+ *
+ * Note:
+ *      (1) category, press & author keep one bitmap per distinct value,
+ *          categories are keyed ignoring case. a fuzzy press/author is
+ *          the union of bitmaps of all values containing the pattern
+ *          ignoring case.
+ *      (2) publish_year & price keep one bitmap per bucket, a range is
+ *          the union of the buckets it touches, so the edge buckets may
+ *          hold books out of range.
+ *      (3) conditions are intersected, the result is a superset of the
+ *          matching books and callers still check each candidate.
+ *      (4) not thread safe, the replica guards it with its lock.
+ */
+public class BookBitmapIndex {
+
+    public static final int YEAR_BUCKET = 4;
+    public static final double PRICE_BUCKET = 10.0;
+
+    private static final CompressedBitmap EMPTY = new CompressedBitmap();
+
+    private final Map<String, CompressedBitmap> categories = new HashMap<>();
+    private final Map<String, CompressedBitmap> presses = new HashMap<>();
+    private final Map<String, CompressedBitmap> authors = new HashMap<>();
+    private final NavigableMap<Integer, CompressedBitmap> years = new TreeMap<>();
+    private final NavigableMap<Integer, CompressedBitmap> prices = new TreeMap<>();
+
+    public void add(Book book) {
+        int id = book.getBookId();
+        categories.computeIfAbsent(fold(book.getCategory()), k -> new CompressedBitmap()).add(id);
+        presses.computeIfAbsent(book.getPress(), k -> new CompressedBitmap()).add(id);
+        authors.computeIfAbsent(book.getAuthor(), k -> new CompressedBitmap()).add(id);
+        years.computeIfAbsent(yearBucket(book.getPublishYear()), k -> new CompressedBitmap()).add(id);
+        prices.computeIfAbsent(priceBucket(book.getPrice()), k -> new CompressedBitmap()).add(id);
+    }
+
+    /* book must hold the indexed values it was added with */
+    public void remove(Book book) {
+        int id = book.getBookId();
+        remove(categories, fold(book.getCategory()), id);
+        remove(presses, book.getPress(), id);
+        remove(authors, book.getAuthor(), id);
+        remove(years, yearBucket(book.getPublishYear()), id);
+        remove(prices, priceBucket(book.getPrice()), id);
+    }
+
+    public void clear() {
+        categories.clear();
+        presses.clear();
+        authors.clear();
+        years.clear();
+        prices.clear();
+    }
+
+    /**
+     * ids of the books which may match conditions. the bitmap must
+     * not be modified.
+     *
+     * @return null if no indexed condition is set
+     */
+    public CompressedBitmap candidates(BookQueryConditions conditions) {
+        CompressedBitmap result = null;
+        if (conditions.getCategory() != null) {
+            result = intersect(result, categories.getOrDefault(fold(conditions.getCategory()), EMPTY));
+        }
+        if (conditions.getPress() != null) {
+            result = intersect(result, containing(presses, conditions.getPress()));
+        }
+        if (conditions.getAuthor() != null) {
+            result = intersect(result, containing(authors, conditions.getAuthor()));
+        }
+        if (conditions.getMinPublishYear() != null || conditions.getMaxPublishYear() != null) {
+            Integer lo = conditions.getMinPublishYear() == null ? null : yearBucket(conditions.getMinPublishYear());
+            Integer hi = conditions.getMaxPublishYear() == null ? null : yearBucket(conditions.getMaxPublishYear());
+            result = intersect(result, range(years, lo, hi));
+        }
+        if (conditions.getMinPrice() != null || conditions.getMaxPrice() != null) {
+            Integer lo = conditions.getMinPrice() == null ? null : priceBucket(conditions.getMinPrice());
+            Integer hi = conditions.getMaxPrice() == null ? null : priceBucket(conditions.getMaxPrice());
+            result = intersect(result, range(prices, lo, hi));
+        }
+        return result;
+    }
+
+    /**
+     * estimated heap usage of each index in bytes, keyed by column.
+     */
+    public Map<String, Long> memoryReport() {
+        Map<String, Long> report = new LinkedHashMap<>();
+        report.put("category", memory(categories));
+        report.put("press", memory(presses));
+        report.put("author", memory(authors));
+        report.put("publish_year", memory(years));
+        report.put("price", memory(prices));
+        return report;
+    }
+
+    /* key of a category, equal for categories equal ignoring case */
+    private static String fold(String category) {
+        return category.toUpperCase(Locale.ROOT);
+    }
+
+    private static int yearBucket(int year) {
+        return Math.floorDiv(year, YEAR_BUCKET);
+    }
+
+    private static int priceBucket(double price) {
+        return (int) Math.floor(price / PRICE_BUCKET);
+    }
+
+    private static <K> void remove(Map<K, CompressedBitmap> index, K key, int id) {
+        CompressedBitmap bitmap = index.get(key);
+        if (bitmap == null) {
+            return;
+        }
+        bitmap.remove(id);
+        if (bitmap.isEmpty()) {
+            index.remove(key);
+        }
+    }
+
+    private static CompressedBitmap intersect(CompressedBitmap result, CompressedBitmap bitmap) {
+        if (result == null) {
+            return bitmap;
+        }
+        if (result.isEmpty()) {
+            return result;
+        }
+        return CompressedBitmap.and(result, bitmap);
+    }
+
+    private static CompressedBitmap containing(Map<String, CompressedBitmap> index, String pattern) {
+        CompressedBitmap result = EMPTY;
+        for (Map.Entry<String, CompressedBitmap> entry : index.entrySet()) {
+            if (BookQueryConditions.containsIgnoreCase(entry.getKey(), pattern)) {
+                result = result == EMPTY ? entry.getValue() : CompressedBitmap.or(result, entry.getValue());
+            }
+        }
+        return result;
+    }
+
+    private static CompressedBitmap range(NavigableMap<Integer, CompressedBitmap> index, Integer lo, Integer hi) {
+        if (lo != null && hi != null && lo > hi) {
+            return EMPTY;
+        }
+        Map<Integer, CompressedBitmap> buckets = index;
+        if (lo != null && hi != null) {
+            buckets = index.subMap(lo, true, hi, true);
+        } else if (lo != null) {
+            buckets = index.tailMap(lo, true);
+        } else if (hi != null) {
+            buckets = index.headMap(hi, true);
+        }
+        CompressedBitmap result = EMPTY;
+        for (CompressedBitmap bitmap : buckets.values()) {
+            result = result == EMPTY ? bitmap : CompressedBitmap.or(result, bitmap);
+        }
+        return result;
+    }
+
+    private static long memory(Map<?, CompressedBitmap> index) {
+        long bytes = 0;
+        for (Map.Entry<?, CompressedBitmap> entry : index.entrySet()) {
+            // a map entry, its key and the bitmap
+            bytes += 48 + entry.getValue().sizeInBytes();
+            if (entry.getKey() instanceof String) {
+                bytes += 40 + 2L * ((String) entry.getKey()).length();
+            }
+        }
+        return bytes;
+    }
+}
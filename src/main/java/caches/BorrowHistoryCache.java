@@ -0,0 +1,273 @@
+package caches;
+
+import entities.Book;
+import entities.Borrow;
+import queries.BorrowHistories.Item;
+
+import java.util.*;
+
+/**
+ * A bounded cache of the full borrow histories of cards, patched in
+ * place by borrows, returns and book changes instead of being dropped.
+ *
+ * Note:
+ *      (1) histories are evicted in LRU order of their cards once all of
+ *          them together hold more than maxItems records.
+ *      (2) items are kept in the order of showBorrowHistory, a borrow is
+ *          inserted at its position and a return sets the return_time of
+ *          its record.
+ *      (3) a borrowed book's fields are copied from the book passed in,
+ *          or from another cached record of the book. if neither is known
+ *          the history of the card is dropped.
+ *      (4) a history is only stored if nothing has changed since it was
+ *          read, see {@link #generation()}.
+ *      (5) all methods are thread safe, items are copied on the way in
+ *          and out.
+ */
+public class BorrowHistoryCache {
+
+    /* order of showBorrowHistory: borrow_time DESC, book_id ASC */
+    private static final Comparator<Item> ORDER = (lhs, rhs) -> {
+        if (lhs.getBorrowTime() != rhs.getBorrowTime()) {
+            return Long.compare(rhs.getBorrowTime(), lhs.getBorrowTime());
+        }
+        return Integer.compare(lhs.getBookId(), rhs.getBookId());
+    };
+
+    private final int maxItems;
+    private final LinkedHashMap<Integer, List<Item>> histories = new LinkedHashMap<>(16, 0.75f, true);
+    /* book_id -> number of cached records of the book */
+    private final Map<Integer, Integer> bookRefs = new HashMap<>();
+    private int items;
+    private long generation;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public BorrowHistoryCache(int maxItems) {
+        if (maxItems <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        this.maxItems = maxItems;
+    }
+
+    /**
+     * @return a copy of the cached history, or null on a miss
+     */
+    public synchronized List<Item> get(int cardId) {
+        List<Item> history = histories.get(cardId);
+        if (history == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        List<Item> copy = new ArrayList<>(history.size());
+        for (Item item : history) {
+            copy.add(copy(item));
+        }
+        return copy;
+    }
+
+    /* to be read before loading the history which is put */
+    public synchronized long generation() {
+        return generation;
+    }
+
+    /**
+     * store the full history of a card, as read at the given generation.
+     * it is dropped if any record or book has changed since then.
+     */
+    public synchronized void put(int cardId, List<Item> history, long generation) {
+        if (generation != this.generation || history.size() > maxItems) {
+            return;
+        }
+        drop(cardId);
+        List<Item> copy = new ArrayList<>(history.size());
+        for (Item item : history) {
+            copy.add(copy(item));
+            ref(item.getBookId(), 1);
+        }
+        histories.put(cardId, copy);
+        items += copy.size();
+        while (items > maxItems) {
+            Iterator<Map.Entry<Integer, List<Item>>> it = histories.entrySet().iterator();
+            List<Item> eldest = it.next().getValue();
+            it.remove();
+            unref(eldest);
+            evictions++;
+        }
+    }
+
+    /* whether a borrow of the card would need book to be passed to onBorrowed */
+    public synchronized boolean needsBook(int cardId, int bookId) {
+        return histories.containsKey(cardId) && !bookRefs.containsKey(bookId);
+    }
+
+    /**
+     * @param book the borrowed book, may be null if {@link #needsBook}
+     *             returned false
+     */
+    public synchronized void onBorrowed(Borrow borrow, Book book) {
+        generation++;
+        List<Item> history = histories.get(borrow.getCardId());
+        if (history == null) {
+            return;
+        }
+        Item item = book != null ? new Item(borrow.getCardId(), book, borrow) : itemOf(borrow);
+        if (item == null) {
+            drop(borrow.getCardId());
+            return;
+        }
+        item.setReturnTime(0);
+        int i = Collections.binarySearch(history, item, ORDER);
+        if (i >= 0) {
+            history.set(i, item);
+            return;
+        }
+        history.add(-i - 1, item);
+        ref(item.getBookId(), 1);
+        items++;
+    }
+
+    public synchronized void onReturned(Borrow borrow) {
+        generation++;
+        List<Item> history = histories.get(borrow.getCardId());
+        if (history == null) {
+            return;
+        }
+        Item key = new Item();
+        key.setBookId(borrow.getBookId());
+        key.setBorrowTime(borrow.getBorrowTime());
+        int i = Collections.binarySearch(history, key, ORDER);
+        if (i >= 0) {
+            history.get(i).setReturnTime(borrow.getReturnTime());
+        } else {
+            drop(borrow.getCardId());
+        }
+    }
+
+    /* copy the new fields of book into its records */
+    public synchronized void onBookModified(Book book) {
+        generation++;
+        if (!bookRefs.containsKey(book.getBookId())) {
+            return;
+        }
+        for (List<Item> history : histories.values()) {
+            for (Item item : history) {
+                if (item.getBookId() == book.getBookId()) {
+                    item.setCategory(book.getCategory());
+                    item.setTitle(book.getTitle());
+                    item.setPress(book.getPress());
+                    item.setPublishYear(book.getPublishYear());
+                    item.setAuthor(book.getAuthor());
+                    item.setPrice(book.getPrice());
+                }
+            }
+        }
+    }
+
+    /* the records of a removed book are deleted along with it */
+    public synchronized void onBookRemoved(int bookId) {
+        generation++;
+        if (!bookRefs.containsKey(bookId)) {
+            return;
+        }
+        for (List<Item> history : histories.values()) {
+            Iterator<Item> it = history.iterator();
+            while (it.hasNext()) {
+                if (it.next().getBookId() == bookId) {
+                    it.remove();
+                    items--;
+                }
+            }
+        }
+        bookRefs.remove(bookId);
+    }
+
+    public synchronized void onCardRemoved(int cardId) {
+        generation++;
+        drop(cardId);
+    }
+
+    public synchronized void clear() {
+        generation++;
+        histories.clear();
+        bookRefs.clear();
+        items = 0;
+    }
+
+    /* number of cards cached */
+    public synchronized int size() {
+        return histories.size();
+    }
+
+    /* number of records cached */
+    public synchronized int items() {
+        return items;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /* histories dropped for capacity */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /* must hold the monitor */
+    private void drop(int cardId) {
+        List<Item> history = histories.remove(cardId);
+        if (history != null) {
+            unref(history);
+        }
+    }
+
+    private void unref(List<Item> history) {
+        items -= history.size();
+        for (Item item : history) {
+            ref(item.getBookId(), -1);
+        }
+    }
+
+    private void ref(int bookId, int delta) {
+        bookRefs.merge(bookId, delta, (n, d) -> n + d == 0 ? null : n + d);
+    }
+
+    /* a record of borrow with the fields of a cached record of the same book */
+    private Item itemOf(Borrow borrow) {
+        if (!bookRefs.containsKey(borrow.getBookId())) {
+            return null;
+        }
+        for (List<Item> history : histories.values()) {
+            for (Item item : history) {
+                if (item.getBookId() == borrow.getBookId()) {
+                    Item copy = copy(item);
+                    copy.setCardId(borrow.getCardId());
+                    copy.setBorrowTime(borrow.getBorrowTime());
+                    return copy;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static Item copy(Item item) {
+        Item copy = new Item();
+        copy.setCardId(item.getCardId());
+        copy.setBookId(item.getBookId());
+        copy.setCategory(item.getCategory());
+        copy.setTitle(item.getTitle());
+        copy.setPress(item.getPress());
+        copy.setPublishYear(item.getPublishYear());
+        copy.setAuthor(item.getAuthor());
+        copy.setPrice(item.getPrice());
+        copy.setBorrowTime(item.getBorrowTime());
+        copy.setReturnTime(item.getReturnTime());
+        return copy;
+    }
+}
@@ -0,0 +1,594 @@
+package caches;
+
+import entities.Book;
+import queries.BookFacets;
+import queries.BookQueryBuilder;
+import queries.BookQueryConditions;
+import queries.BookQueryResults;
+import queries.SortOrder;
+import queries.Trigrams;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An in-process copy of the book table which answers book queries
+ * without touching the database.
+ *
+ * Note:
+ *      (1) it is loaded once and then kept up to date write-through,
+ *          the library applies every committed change of a book.
+ *      (2) for every sort column we keep all books sorted by
+ *          (column, book_id). a query walks the permutation of its
+ *          sort column and filters on the fly, so no sort is needed.
+ *      (3) a permutation is built lazily by the first query sorting by
+ *          its column. after that a changed book is taken out of it and
+ *          put back at its new position by binary search, which copies
+ *          the array once instead of sorting it again. a stock change,
+ *          the most frequent one, moves the book inside the stock order
+ *          in place and only shifts the books between its old and new
+ *          positions.
+ *      (4) books are mutated in place under the write lock and copied
+ *          under the read lock, callers never see a shared instance.
+ *      (5) a page token is located in the sorted books by binary search,
+ *          so a deep page costs the same as the first one.
+ *      (6) press, author, category, year & price conditions are first
+ *          evaluated on a {@link BookBitmapIndex}. if only a few books
+ *          can match they are sorted directly, otherwise the sorted
+ *          books are walked and the candidates picked out.
+ *      (7) strings are matched & sorted ignoring case, which is what every
+ *          case-insensitive collation does for plain ascii letters and
+ *          digits, but not for accents, punctuation or trailing spaces.
+ *          so a query is only answered if the collation cannot change its
+ *          result: its string conditions are plain, the columns they are
+ *          matched on hold only plain values, and no two neighbours in
+ *          the order of its sort column differ first in a character other
+ *          than a letter, digit or space. otherwise the caller asks the
+ *          database.
+ */
+public class CatalogReplica {
+
+    private static final Book.SortColumn[] COLUMNS = Book.SortColumn.values();
+    /* columns compared under the collation of the database */
+    private static final Book.SortColumn[] STRING_COLUMNS = {Book.SortColumn.CATEGORY, Book.SortColumn.TITLE,
+            Book.SortColumn.PRESS, Book.SortColumn.AUTHOR};
+    /* sort the candidates rather than walk all books if there are SPARSE_RATIO times fewer */
+    private static final int SPARSE_RATIO = 8;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<Integer, Book> books = new HashMap<>();
+    private final AtomicReferenceArray<Book[]> sorted = new AtomicReferenceArray<>(COLUMNS.length);
+    /* neighbours of each built permutation whose order the collation may decide otherwise */
+    private final AtomicIntegerArray ambiguousPairs = new AtomicIntegerArray(COLUMNS.length);
+    /* books whose value of each string column is not plain */
+    private final int[] unplain = new int[COLUMNS.length];
+    private final BookBitmapIndex index = new BookBitmapIndex();
+
+    public CatalogReplica(Collection<Book> books) {
+        for (Book book : books) {
+            Book b = book.clone();
+            this.books.put(b.getBookId(), b);
+            add(b);
+        }
+    }
+
+    /**
+     * @return null if the collation of the database may give another
+     *         result, see note (7)
+     * @throws IllegalArgumentException if the page token is invalid
+     */
+    public BookQueryResults query(BookQueryConditions conditions) throws IllegalArgumentException {
+        Integer pageSize = conditions.getPageSize();
+        Book last = conditions.getPageToken() == null ? null : BookQueryBuilder.decodePageToken(conditions);
+        int limit = pageSize == null ? Integer.MAX_VALUE : pageSize + 1;
+        List<Book> results = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            Book.SortColumn sortBy = conditions.getSortBy();
+            if (!answerable(conditions)) {
+                return null;
+            }
+            if (isString(sortBy)) {
+                permutation(sortBy);
+                if (ambiguousPairs.get(sortBy.ordinal()) > 0) {
+                    return null;
+                }
+            }
+            Comparator<Book> cmp = sortBy.getComparator();
+            boolean desc = conditions.getSortOrder() == SortOrder.DESC;
+            CompressedBitmap candidates = index.candidates(conditions);
+            Book[] order;
+            if (candidates != null && (long) candidates.cardinality() * SPARSE_RATIO < books.size()) {
+                order = select(candidates, sortBy);
+                candidates = null;
+            } else {
+                order = permutation(sortBy);
+            }
+            // a page starts right after the last row of the previous one, found by binary search
+            Comparator<Book> full = cmp.thenComparingInt(Book::getBookId);
+            if (!desc) {
+                int start = last == null ? 0 : upperBound(order, last, full);
+                for (int i = start; i < order.length && results.size() < limit; i++) {
+                    visit(order[i], conditions, candidates, results);
+                }
+            } else {
+                int hi = order.length;
+                if (last != null) {
+                    // the rest of the group of last, then the groups of smaller keys
+                    int groupEnd = upperBound(order, last, cmp);
+                    for (int i = upperBound(order, last, full); i < groupEnd && results.size() < limit; i++) {
+                        visit(order[i], conditions, candidates, results);
+                    }
+                    hi = lowerBound(order, last, cmp);
+                }
+                // walk groups of equal keys backwards, inside a group book_id stays ascending
+                while (hi > 0 && results.size() < limit) {
+                    int lo = hi - 1;
+                    while (lo > 0 && cmp.compare(order[lo - 1], order[hi - 1]) == 0) {
+                        lo--;
+                    }
+                    for (int i = lo; i < hi && results.size() < limit; i++) {
+                        visit(order[i], conditions, candidates, results);
+                    }
+                    hi = lo;
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        String nextPageToken = null;
+        if (pageSize != null && results.size() > pageSize) {
+            results.remove(results.size() - 1);
+            nextPageToken = BookQueryBuilder.nextPageToken(conditions, results.get(results.size() - 1));
+        }
+        return new BookQueryResults(results, nextPageToken);
+    }
+
+    /**
+     * count matching books in one pass, sort & page fields are ignored.
+     *
+     * @return null if the collation of the database may give another
+     *         result, see note (7)
+     */
+    public BookFacets facets(BookQueryConditions conditions) {
+        BookFacets facets = new BookFacets();
+        lock.readLock().lock();
+        try {
+            // values the collation may take as equal are grouped by the database
+            if (!answerable(conditions) || unplain[Book.SortColumn.CATEGORY.ordinal()] > 0
+                    || unplain[Book.SortColumn.PRESS.ordinal()] > 0 || unplain[Book.SortColumn.AUTHOR.ordinal()] > 0) {
+                return null;
+            }
+            CompressedBitmap candidates = index.candidates(conditions);
+            if (candidates != null) {
+                candidates.forEach(id -> count(facets, books.get(id), conditions));
+            } else {
+                for (Book book : books.values()) {
+                    count(facets, book, conditions);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return facets;
+    }
+
+    public void put(Book book) {
+        lock.writeLock().lock();
+        try {
+            store(book);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void putAll(Collection<Book> newBooks) {
+        lock.writeLock().lock();
+        try {
+            List<Book> stored = new ArrayList<>(newBooks.size());
+            for (Book book : newBooks) {
+                Book old = books.get(book.getBookId());
+                if (old != null) {
+                    unlink(old, COLUMNS);
+                    remove(old);
+                }
+                Book b = book.clone();
+                books.put(b.getBookId(), b);
+                add(b);
+                stored.add(b);
+            }
+            link(stored, COLUMNS);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /* apply modifyBookInfo, book_id & stock are kept */
+    public void modify(Book book) {
+        lock.writeLock().lock();
+        try {
+            Book b = books.get(book.getBookId());
+            if (b == null) {
+                return;
+            }
+            Book.SortColumn[] changed = {Book.SortColumn.CATEGORY, Book.SortColumn.TITLE, Book.SortColumn.PRESS,
+                    Book.SortColumn.PUBLISH_YEAR, Book.SortColumn.AUTHOR, Book.SortColumn.PRICE};
+            unlink(b, changed);
+            remove(b);
+            b.setCategory(book.getCategory());
+            b.setTitle(book.getTitle());
+            b.setPress(book.getPress());
+            b.setPublishYear(book.getPublishYear());
+            b.setAuthor(book.getAuthor());
+            b.setPrice(book.getPrice());
+            add(b);
+            link(Collections.singletonList(b), changed);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void addStock(int bookId, int deltaStock) {
+        lock.writeLock().lock();
+        try {
+            Book b = books.get(bookId);
+            if (b == null) {
+                return;
+            }
+            Book[] order = sorted.get(Book.SortColumn.STOCK.ordinal());
+            Comparator<Book> cmp = Book.SortColumn.STOCK.getComparator().thenComparingInt(Book::getBookId);
+            int from = order == null ? -1 : lowerBound(order, b, cmp);
+            b.setStock(b.getStock() + deltaStock);
+            if (order == null) {
+                return;
+            }
+            if (from == order.length || order[from] != b) {
+                // not where it should be, build it again
+                invalidate(Book.SortColumn.STOCK);
+                return;
+            }
+            move(order, from, cmp);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(int bookId) {
+        lock.writeLock().lock();
+        try {
+            Book b = books.remove(bookId);
+            if (b != null) {
+                unlink(b, COLUMNS);
+                remove(b);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            books.clear();
+            index.clear();
+            Arrays.fill(unplain, 0);
+            invalidate(COLUMNS);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /* copy of a book, or null if it does not exist */
+    public Book get(int bookId) {
+        lock.readLock().lock();
+        try {
+            Book b = books.get(bookId);
+            return b == null ? null : b.clone();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return books.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * estimated heap usage of the bitmap indexes in bytes, keyed by column.
+     */
+    public Map<String, Long> indexMemoryReport() {
+        lock.readLock().lock();
+        try {
+            return index.memoryReport();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /* must hold the write lock */
+    private void store(Book book) {
+        Book old = books.get(book.getBookId());
+        if (old != null) {
+            unlink(old, COLUMNS);
+            remove(old);
+        }
+        Book b = book.clone();
+        books.put(b.getBookId(), b);
+        add(b);
+        link(Collections.singletonList(b), COLUMNS);
+    }
+
+    /* must hold the write lock, index the values of a book */
+    private void add(Book book) {
+        index.add(book);
+        for (Book.SortColumn column : STRING_COLUMNS) {
+            if (!isPlain(value(column, book))) {
+                unplain[column.ordinal()]++;
+            }
+        }
+    }
+
+    /* must hold the write lock, book must hold the values it was added with */
+    private void remove(Book book) {
+        index.remove(book);
+        for (Book.SortColumn column : STRING_COLUMNS) {
+            if (!isPlain(value(column, book))) {
+                unplain[column.ordinal()]--;
+            }
+        }
+    }
+
+    /* must hold the read lock, whether the string conditions are matched as the collation does */
+    private boolean answerable(BookQueryConditions conditions) {
+        String[] values = {conditions.getCategory(), conditions.getTitle(), conditions.getPress(),
+                conditions.getAuthor()};
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null && (!isPlain(values[i]) || unplain[STRING_COLUMNS[i].ordinal()] > 0)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /* must hold the read lock */
+    private Book[] select(CompressedBitmap candidates, Book.SortColumn sortBy) {
+        int[] ids = candidates.toArray();
+        Book[] order = new Book[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            order[i] = books.get(ids[i]);
+        }
+        Arrays.sort(order, sortBy.getComparator().thenComparingInt(Book::getBookId));
+        return order;
+    }
+
+    /* must hold the read lock, writers are excluded so the result is always current */
+    private Book[] permutation(Book.SortColumn sortBy) {
+        Book[] order = sorted.get(sortBy.ordinal());
+        if (order == null) {
+            order = books.values().toArray(new Book[0]);
+            Arrays.sort(order, sortBy.getComparator().thenComparingInt(Book::getBookId));
+            int ambiguous = 0;
+            for (int i = 1; i < order.length; i++) {
+                ambiguous += ambiguous(sortBy, order[i - 1], order[i]);
+            }
+            // set before the order, a reader seeing the order also sees its count
+            ambiguousPairs.set(sortBy.ordinal(), ambiguous);
+            sorted.set(sortBy.ordinal(), order);
+        }
+        return order;
+    }
+
+    /* must hold the write lock, take book out of the built permutations before it changes */
+    private void unlink(Book book, Book.SortColumn... columns) {
+        for (Book.SortColumn column : columns) {
+            Book[] order = sorted.get(column.ordinal());
+            if (order == null) {
+                continue;
+            }
+            int i = lowerBound(order, book, column.getComparator().thenComparingInt(Book::getBookId));
+            if (i == order.length || order[i] != book) {
+                // not where it should be, build it again
+                sorted.set(column.ordinal(), null);
+                continue;
+            }
+            int delta = 0;
+            if (i > 0) {
+                delta -= ambiguous(column, order[i - 1], book);
+            }
+            if (i + 1 < order.length) {
+                delta -= ambiguous(column, book, order[i + 1]);
+            }
+            if (i > 0 && i + 1 < order.length) {
+                delta += ambiguous(column, order[i - 1], order[i + 1]);
+            }
+            Book[] rest = new Book[order.length - 1];
+            System.arraycopy(order, 0, rest, 0, i);
+            System.arraycopy(order, i + 1, rest, i, rest.length - i);
+            ambiguousPairs.addAndGet(column.ordinal(), delta);
+            sorted.set(column.ordinal(), rest);
+        }
+    }
+
+    /* must hold the write lock, merge books into the built permutations after they changed */
+    private void link(List<Book> added, Book.SortColumn... columns) {
+        for (Book.SortColumn column : columns) {
+            Book[] order = sorted.get(column.ordinal());
+            if (order == null) {
+                continue;
+            }
+            Comparator<Book> cmp = column.getComparator().thenComparingInt(Book::getBookId);
+            Book[] adds = added.toArray(new Book[0]);
+            Arrays.sort(adds, cmp);
+            Book[] merged = new Book[order.length + adds.length];
+            int[] at = new int[adds.length];
+            int i = 0, j = 0, k = 0;
+            while (j < adds.length) {
+                int end = upperBound(order, adds[j], cmp);
+                System.arraycopy(order, i, merged, k, end - i);
+                k += end - i;
+                i = end;
+                at[j] = k;
+                merged[k++] = adds[j++];
+            }
+            System.arraycopy(order, i, merged, k, order.length - i);
+            // a run of added books makes new pairs with its neighbours, which were one pair before
+            int delta = 0;
+            int runStart = 0;
+            for (j = 0; j < at.length; j++) {
+                int p = at[j];
+                if (j == 0 || at[j - 1] != p - 1) {
+                    runStart = p;
+                }
+                if (p > 0) {
+                    delta += ambiguous(column, merged[p - 1], merged[p]);
+                }
+                if ((j + 1 == at.length || at[j + 1] != p + 1) && p + 1 < merged.length) {
+                    delta += ambiguous(column, merged[p], merged[p + 1]);
+                    if (runStart > 0) {
+                        delta -= ambiguous(column, merged[runStart - 1], merged[p + 1]);
+                    }
+                }
+            }
+            ambiguousPairs.addAndGet(column.ordinal(), delta);
+            sorted.set(column.ordinal(), merged);
+        }
+    }
+
+    /* must hold the write lock, shift the book at from, whose key has changed, to its new position */
+    private static void move(Book[] order, int from, Comparator<Book> cmp) {
+        Book book = order[from];
+        int to;
+        if (from > 0 && cmp.compare(order[from - 1], book) > 0) {
+            to = upperBound(order, 0, from, book, cmp);
+            System.arraycopy(order, to, order, to + 1, from - to);
+        } else {
+            to = lowerBound(order, from + 1, order.length, book, cmp) - 1;
+            System.arraycopy(order, from + 1, order, from, to - from);
+        }
+        order[to] = book;
+    }
+
+    /* must hold the write lock */
+    private void invalidate(Book.SortColumn... columns) {
+        for (Book.SortColumn column : columns) {
+            sorted.set(column.ordinal(), null);
+        }
+    }
+
+    private static boolean isString(Book.SortColumn column) {
+        return Arrays.asList(STRING_COLUMNS).contains(column);
+    }
+
+    private static String value(Book.SortColumn column, Book book) {
+        switch (column) {
+            case CATEGORY:
+                return book.getCategory();
+            case TITLE:
+                return book.getTitle();
+            case PRESS:
+                return book.getPress();
+            default:
+                return book.getAuthor();
+        }
+    }
+
+    /* printable ascii without trailing spaces, which every case-insensitive collation matches alike */
+    private static boolean isPlain(String s) {
+        return Trigrams.isPlain(s) && !s.endsWith(" ");
+    }
+
+    /*
+     * 1 if the collation may order the neighbours a & b otherwise than
+     * IGNORE_CASE: they first differ in a character other than a letter,
+     * digit or space, or one is the other followed by spaces and then
+     * nothing or something else than a letter or digit.
+     */
+    private static int ambiguous(Book.SortColumn column, Book a, Book b) {
+        if (!isString(column)) {
+            return 0;
+        }
+        String l = value(column, a);
+        String r = value(column, b);
+        int n = Math.min(l.length(), r.length());
+        for (int i = 0; i < n; i++) {
+            char x = Character.toUpperCase(l.charAt(i));
+            char y = Character.toUpperCase(r.charAt(i));
+            if (x != y) {
+                return isOrdered(x) && isOrdered(y) ? 0 : 1;
+            }
+        }
+        if (l.length() == r.length()) {
+            return 0;
+        }
+        // the shorter one is first, also if padded with spaces, unless only spaces or punctuation follow
+        String longer = l.length() > n ? l : r;
+        while (n < longer.length() && longer.charAt(n) == ' ') {
+            n++;
+        }
+        return n < longer.length() && isOrdered(Character.toUpperCase(longer.charAt(n))) ? 0 : 1;
+    }
+
+    /* upper-cased characters all collations order the same way: space < digits < letters */
+    private static boolean isOrdered(char c) {
+        return c == ' ' || (c >= '0' && c <= '9') || (c >= 'A' && c <= 'Z');
+    }
+
+    private static void count(BookFacets facets, Book book, BookQueryConditions conditions) {
+        if (conditions.matches(book)) {
+            facets.add(book.getCategory(), book.getPress(), book.getAuthor(), book.getPublishYear(), 1);
+        }
+    }
+
+    private static void visit(Book book, BookQueryConditions conditions, CompressedBitmap candidates,
+                              List<Book> results) {
+        if (candidates != null && !candidates.contains(book.getBookId())) {
+            return;
+        }
+        if (conditions.matches(book)) {
+            results.add(book.clone());
+        }
+    }
+
+    /* first index of sorted order whose book is after key, order.length if none is */
+    private static int upperBound(Book[] order, Book key, Comparator<Book> cmp) {
+        return upperBound(order, 0, order.length, key, cmp);
+    }
+
+    /* the same within order[lo, hi), hi if none is */
+    private static int upperBound(Book[] order, int lo, int hi, Book key, Comparator<Book> cmp) {
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (cmp.compare(order[mid], key) <= 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /* first index of sorted order whose book is not before key, order.length if none is */
+    private static int lowerBound(Book[] order, Book key, Comparator<Book> cmp) {
+        return lowerBound(order, 0, order.length, key, cmp);
+    }
+
+    /* the same within order[lo, hi), hi if none is */
+    private static int lowerBound(Book[] order, int lo, int hi, Book key, Comparator<Book> cmp) {
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (cmp.compare(order[mid], key) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+}
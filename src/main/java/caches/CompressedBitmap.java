@@ -0,0 +1,335 @@
+package caches;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * A compressed set of non-negative ints in the style of roaring bitmaps.
+ *
+ * Note:
+ *      (1) values are split by their high 16 bits into chunks, a chunk
+ *          keeps the low 16 bits of its values in a container.
+ *      (2) a sparse container (up to 4096 values) is a sorted char array,
+ *          a dense one is a plain bitmap of 65536 bits, so a container
+ *          never takes more than 8KB.
+ *      (3) and & or work container by container, nothing is decompressed.
+ *      (4) not thread safe, the owner has to guard it.
+ */
+public final class CompressedBitmap {
+
+    private static final int ARRAY_MAX = 4096;
+    private static final int BITMAP_WORDS = 1 << 10;
+
+    /* keys[i] is the high 16 bits of all values in containers[i], keys are sorted */
+    private char[] keys = new char[4];
+    private Container[] containers = new Container[4];
+    private int size;
+
+    /* low 16 bits of one chunk, either array or bits is null */
+    private static final class Container {
+        char[] array;
+        long[] bits;
+        int cardinality;
+    }
+
+    public void add(int x) {
+        char high = (char) (x >>> 16);
+        char low = (char) x;
+        int i = indexOf(high);
+        if (i < 0) {
+            Container c = new Container();
+            c.array = new char[4];
+            i = -i - 1;
+            insert(i, high, c);
+        }
+        Container c = containers[i];
+        if (c.bits != null) {
+            long mask = 1L << low;
+            if ((c.bits[low >>> 6] & mask) == 0) {
+                c.bits[low >>> 6] |= mask;
+                c.cardinality++;
+            }
+            return;
+        }
+        int j = Arrays.binarySearch(c.array, 0, c.cardinality, low);
+        if (j >= 0) {
+            return;
+        }
+        if (c.cardinality == ARRAY_MAX) {
+            containers[i] = toBitmap(c);
+            add(x);
+            return;
+        }
+        j = -j - 1;
+        if (c.cardinality == c.array.length) {
+            c.array = Arrays.copyOf(c.array, Math.min(ARRAY_MAX, c.array.length * 2));
+        }
+        System.arraycopy(c.array, j, c.array, j + 1, c.cardinality - j);
+        c.array[j] = low;
+        c.cardinality++;
+    }
+
+    public void remove(int x) {
+        char low = (char) x;
+        int i = indexOf((char) (x >>> 16));
+        if (i < 0) {
+            return;
+        }
+        Container c = containers[i];
+        if (c.bits != null) {
+            long mask = 1L << low;
+            if ((c.bits[low >>> 6] & mask) == 0) {
+                return;
+            }
+            c.bits[low >>> 6] &= ~mask;
+            if (--c.cardinality <= ARRAY_MAX) {
+                containers[i] = toArray(c);
+            }
+        } else {
+            int j = Arrays.binarySearch(c.array, 0, c.cardinality, low);
+            if (j < 0) {
+                return;
+            }
+            System.arraycopy(c.array, j + 1, c.array, j, c.cardinality - j - 1);
+            c.cardinality--;
+        }
+        if (c.cardinality == 0) {
+            System.arraycopy(keys, i + 1, keys, i, size - i - 1);
+            System.arraycopy(containers, i + 1, containers, i, size - i - 1);
+            containers[--size] = null;
+        }
+    }
+
+    public boolean contains(int x) {
+        char low = (char) x;
+        int i = indexOf((char) (x >>> 16));
+        if (i < 0) {
+            return false;
+        }
+        Container c = containers[i];
+        if (c.bits != null) {
+            return (c.bits[low >>> 6] & (1L << low)) != 0;
+        }
+        return Arrays.binarySearch(c.array, 0, c.cardinality, low) >= 0;
+    }
+
+    public int cardinality() {
+        int n = 0;
+        for (int i = 0; i < size; i++) {
+            n += containers[i].cardinality;
+        }
+        return n;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /* visit all values in ascending order */
+    public void forEach(IntConsumer action) {
+        for (int i = 0; i < size; i++) {
+            int high = keys[i] << 16;
+            Container c = containers[i];
+            if (c.bits == null) {
+                for (int j = 0; j < c.cardinality; j++) {
+                    action.accept(high | c.array[j]);
+                }
+                continue;
+            }
+            for (int w = 0; w < BITMAP_WORDS; w++) {
+                long word = c.bits[w];
+                while (word != 0) {
+                    action.accept(high | (w << 6) | Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+        }
+    }
+
+    public int[] toArray() {
+        int[] values = new int[cardinality()];
+        int[] n = {0};
+        forEach(x -> values[n[0]++] = x);
+        return values;
+    }
+
+    /* estimated heap usage in bytes */
+    public long sizeInBytes() {
+        long bytes = 16 + 16 + 2L * keys.length + 16 + 4L * containers.length;
+        for (int i = 0; i < size; i++) {
+            Container c = containers[i];
+            bytes += 24 + 16 + (c.bits != null ? 8L * c.bits.length : 2L * c.array.length);
+        }
+        return bytes;
+    }
+
+    public static CompressedBitmap and(CompressedBitmap a, CompressedBitmap b) {
+        CompressedBitmap result = new CompressedBitmap();
+        int i = 0;
+        int j = 0;
+        while (i < a.size && j < b.size) {
+            if (a.keys[i] < b.keys[j]) {
+                i++;
+            } else if (a.keys[i] > b.keys[j]) {
+                j++;
+            } else {
+                Container c = and(a.containers[i], b.containers[j]);
+                if (c.cardinality > 0) {
+                    result.insert(result.size, a.keys[i], c);
+                }
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    public static CompressedBitmap or(CompressedBitmap a, CompressedBitmap b) {
+        CompressedBitmap result = new CompressedBitmap();
+        int i = 0;
+        int j = 0;
+        while (i < a.size || j < b.size) {
+            if (j == b.size || (i < a.size && a.keys[i] < b.keys[j])) {
+                result.insert(result.size, a.keys[i], copy(a.containers[i]));
+                i++;
+            } else if (i == a.size || a.keys[i] > b.keys[j]) {
+                result.insert(result.size, b.keys[j], copy(b.containers[j]));
+                j++;
+            } else {
+                result.insert(result.size, a.keys[i], or(a.containers[i], b.containers[j]));
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    private static Container and(Container a, Container b) {
+        Container c = new Container();
+        if (a.bits != null && b.bits != null) {
+            c.bits = new long[BITMAP_WORDS];
+            for (int w = 0; w < BITMAP_WORDS; w++) {
+                c.bits[w] = a.bits[w] & b.bits[w];
+                c.cardinality += Long.bitCount(c.bits[w]);
+            }
+            return c.cardinality <= ARRAY_MAX ? toArray(c) : c;
+        }
+        if (a.bits != null) {
+            Container t = a;
+            a = b;
+            b = t;
+        }
+        // a is an array now, keep its values which are also in b
+        c.array = new char[a.cardinality];
+        for (int i = 0, j = 0; i < a.cardinality; i++) {
+            char x = a.array[i];
+            boolean found;
+            if (b.bits != null) {
+                found = (b.bits[x >>> 6] & (1L << x)) != 0;
+            } else {
+                while (j < b.cardinality && b.array[j] < x) {
+                    j++;
+                }
+                found = j < b.cardinality && b.array[j] == x;
+            }
+            if (found) {
+                c.array[c.cardinality++] = x;
+            }
+        }
+        return c;
+    }
+
+    private static Container or(Container a, Container b) {
+        if (a.bits == null && b.bits == null) {
+            Container c = new Container();
+            c.array = new char[a.cardinality + b.cardinality];
+            int i = 0;
+            int j = 0;
+            while (i < a.cardinality || j < b.cardinality) {
+                char x;
+                if (j == b.cardinality || (i < a.cardinality && a.array[i] < b.array[j])) {
+                    x = a.array[i++];
+                } else if (i == a.cardinality || a.array[i] > b.array[j]) {
+                    x = b.array[j++];
+                } else {
+                    x = a.array[i++];
+                    j++;
+                }
+                c.array[c.cardinality++] = x;
+            }
+            return c.cardinality > ARRAY_MAX ? toBitmap(c) : c;
+        }
+        if (a.bits == null) {
+            Container t = a;
+            a = b;
+            b = t;
+        }
+        // a is a bitmap now, set the values of b on its copy
+        Container c = copy(a);
+        if (b.bits != null) {
+            c.cardinality = 0;
+            for (int w = 0; w < BITMAP_WORDS; w++) {
+                c.bits[w] |= b.bits[w];
+                c.cardinality += Long.bitCount(c.bits[w]);
+            }
+            return c;
+        }
+        for (int i = 0; i < b.cardinality; i++) {
+            char x = b.array[i];
+            long mask = 1L << x;
+            if ((c.bits[x >>> 6] & mask) == 0) {
+                c.bits[x >>> 6] |= mask;
+                c.cardinality++;
+            }
+        }
+        return c;
+    }
+
+    private static Container toBitmap(Container a) {
+        Container c = new Container();
+        c.bits = new long[BITMAP_WORDS];
+        for (int i = 0; i < a.cardinality; i++) {
+            char x = a.array[i];
+            c.bits[x >>> 6] |= 1L << x;
+        }
+        c.cardinality = a.cardinality;
+        return c;
+    }
+
+    private static Container toArray(Container a) {
+        Container c = new Container();
+        c.array = new char[Math.max(a.cardinality, 4)];
+        for (int w = 0; w < BITMAP_WORDS; w++) {
+            long word = a.bits[w];
+            while (word != 0) {
+                c.array[c.cardinality++] = (char) ((w << 6) | Long.numberOfTrailingZeros(word));
+                word &= word - 1;
+            }
+        }
+        return c;
+    }
+
+    private static Container copy(Container a) {
+        Container c = new Container();
+        c.array = a.array == null ? null : Arrays.copyOf(a.array, Math.max(a.cardinality, 4));
+        c.bits = a.bits == null ? null : a.bits.clone();
+        c.cardinality = a.cardinality;
+        return c;
+    }
+
+    private int indexOf(char high) {
+        return Arrays.binarySearch(keys, 0, size, high);
+    }
+
+    private void insert(int i, char high, Container c) {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            containers = Arrays.copyOf(containers, size * 2);
+        }
+        System.arraycopy(keys, i, keys, i + 1, size - i);
+        System.arraycopy(containers, i, containers, i + 1, size - i);
+        keys[i] = high;
+        containers[i] = c;
+        size++;
+    }
+}
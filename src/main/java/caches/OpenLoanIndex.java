@@ -0,0 +1,151 @@
+package caches;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Open loans (borrow records with return_time = 0) kept in memory, so
+ * that the preconditions of borrow & remove are checked without a query.
+ *
+ * Note:
+ *      (1) a loan is claimed by {@link #tryOpen} before its transaction
+ *          runs and released by {@link #close} if the transaction fails,
+ *          so two borrows of one card & book can never both pass.
+ *      (2) a book or card being removed is marked first, which fails if
+ *          it has open loans and makes new loans of it fail meanwhile.
+ *      (3) every step is one atomic compute on a concurrent map, reads
+ *          are lock-free.
+ */
+public class OpenLoanIndex {
+
+    public enum Claim { OK, DUPLICATE, BOOK_REMOVED, CARD_REMOVED }
+
+    public enum Removal { OK, OPEN_LOANS, REMOVING }
+
+    /* value of a card being removed */
+    private static final Set<Integer> REMOVING = Collections.unmodifiableSet(new HashSet<>());
+    /* value of a book being removed */
+    private static final int REMOVING_BOOK = -1;
+
+    /* card_id -> book_ids of its open loans, never empty */
+    private final ConcurrentHashMap<Integer, Set<Integer>> byCard = new ConcurrentHashMap<>();
+    /* book_id -> number of its open loans, never 0 */
+    private final ConcurrentHashMap<Integer, Integer> byBook = new ConcurrentHashMap<>();
+
+    public Claim tryOpen(int cardId, int bookId) {
+        boolean[] ok = {false};
+        byBook.compute(bookId, (k, n) -> {
+            if (n != null && n == REMOVING_BOOK) {
+                return n;
+            }
+            ok[0] = true;
+            return n == null ? 1 : n + 1;
+        });
+        if (!ok[0]) {
+            return Claim.BOOK_REMOVED;
+        }
+        Claim[] claim = {Claim.OK};
+        byCard.compute(cardId, (k, books) -> {
+            if (books == REMOVING) {
+                claim[0] = Claim.CARD_REMOVED;
+                return books;
+            }
+            if (books == null) {
+                books = ConcurrentHashMap.newKeySet();
+            }
+            if (!books.add(bookId)) {
+                claim[0] = Claim.DUPLICATE;
+            }
+            return books;
+        });
+        if (claim[0] != Claim.OK) {
+            decrement(bookId);
+        }
+        return claim[0];
+    }
+
+    /* the loan has been returned, or its borrow failed */
+    public void close(int cardId, int bookId) {
+        boolean[] removed = {false};
+        byCard.computeIfPresent(cardId, (k, books) -> {
+            if (books == REMOVING) {
+                return books;
+            }
+            removed[0] = books.remove(bookId);
+            return books.isEmpty() ? null : books;
+        });
+        if (removed[0]) {
+            decrement(bookId);
+        }
+    }
+
+    public boolean hasOpenLoan(int cardId, int bookId) {
+        Set<Integer> books = byCard.get(cardId);
+        return books != null && books.contains(bookId);
+    }
+
+    public int countByBook(int bookId) {
+        Integer n = byBook.get(bookId);
+        return n == null || n == REMOVING_BOOK ? 0 : n;
+    }
+
+    public int countByCard(int cardId) {
+        Set<Integer> books = byCard.get(cardId);
+        return books == null ? 0 : books.size();
+    }
+
+    /**
+     * mark a book as being removed, call {@link #endRemoveBook} after.
+     *
+     * @return OPEN_LOANS if it has open loans, REMOVING if it is already
+     *         being removed
+     */
+    public Removal tryRemoveBook(int bookId) {
+        Removal[] removal = {Removal.OK};
+        byBook.compute(bookId, (k, n) -> {
+            if (n != null) {
+                removal[0] = n == REMOVING_BOOK ? Removal.REMOVING : Removal.OPEN_LOANS;
+                return n;
+            }
+            return REMOVING_BOOK;
+        });
+        return removal[0];
+    }
+
+    public void endRemoveBook(int bookId) {
+        byBook.remove(bookId, REMOVING_BOOK);
+    }
+
+    /**
+     * mark a card as being removed, call {@link #endRemoveCard} after.
+     *
+     * @return OPEN_LOANS if it has open loans, REMOVING if it is already
+     *         being removed
+     */
+    public Removal tryRemoveCard(int cardId) {
+        Removal[] removal = {Removal.OK};
+        byCard.compute(cardId, (k, books) -> {
+            if (books != null) {
+                removal[0] = books == REMOVING ? Removal.REMOVING : Removal.OPEN_LOANS;
+                return books;
+            }
+            return REMOVING;
+        });
+        return removal[0];
+    }
+
+    public void endRemoveCard(int cardId) {
+        byCard.remove(cardId, REMOVING);
+    }
+
+    public void clear() {
+        byCard.clear();
+        byBook.clear();
+    }
+
+    private void decrement(int bookId) {
+        byBook.computeIfPresent(bookId, (k, n) -> n <= 1 ? null : n - 1);
+    }
+}
@@ -0,0 +1,254 @@
+package caches;
+
+import entities.Book;
+import queries.BookQueryConditions;
+import queries.BookQueryResults;
+import queries.Trigrams;
+
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * A bounded cache of book query results, keyed by the normalized query
+ * conditions, including sort and page fields.
+ *
+ * Note:
+ *      (1) entries are evicted in LRU order once there are more than
+ *          capacity of them, and expire ttl millis after being stored.
+ *      (2) a committed change of a book only drops the entries it can
+ *          affect: the ones holding the book, the ones whose conditions
+ *          the new values satisfy, and for stock changes also the pages
+ *          sorted by stock, since another book may move into them.
+ *      (3) values are matched loosely (case & trailing spaces ignored)
+ *          like sql collations do, so an entry is rather dropped once
+ *          too often than kept stale. a value or pattern which is not
+ *          plain ascii always matches, the collation may equal it to
+ *          others (accents, ...), see {@link Trigrams#isPlain}.
+ *      (4) a query result is only stored if nothing was invalidated
+ *          since the query started, see {@link #generation()}.
+ *      (5) all methods are thread safe, results are copied on the way
+ *          in and out.
+ */
+public class QueryResultCache {
+
+    private static final class CachedResult {
+        final BookQueryConditions conditions;
+        final BookQueryResults results;
+        final int[] bookIds;   /* sorted */
+        final long expiresAt;
+
+        CachedResult(BookQueryConditions conditions, BookQueryResults results, long expiresAt) {
+            this.conditions = conditions;
+            this.results = results;
+            this.bookIds = results.getResults().stream().mapToInt(Book::getBookId).sorted().toArray();
+            this.expiresAt = expiresAt;
+        }
+
+        boolean holds(int bookId) {
+            return Arrays.binarySearch(bookIds, bookId) >= 0;
+        }
+    }
+
+    private final int capacity;
+    private final long ttlNanos;
+    private final LinkedHashMap<String, CachedResult> entries;
+    private long generation;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long invalidations;
+
+    public QueryResultCache(int capacity, long ttlMillis) {
+        if (capacity <= 0 || ttlMillis <= 0) {
+            throw new IllegalArgumentException("Capacity and ttl must be positive");
+        }
+        this.capacity = capacity;
+        this.ttlNanos = ttlMillis * 1000000L;
+        this.entries = new LinkedHashMap<String, CachedResult>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedResult> eldest) {
+                if (size() > QueryResultCache.this.capacity) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @return a copy of the cached results, or null on a miss
+     */
+    public synchronized BookQueryResults get(BookQueryConditions conditions) {
+        String key = key(conditions);
+        CachedResult entry = entries.get(key);
+        if (entry != null && entry.expiresAt - System.nanoTime() <= 0) {
+            entries.remove(key);
+            evictions++;
+            entry = null;
+        }
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return copy(entry.results);
+    }
+
+    /* to be read before running the query whose results are put */
+    public synchronized long generation() {
+        return generation;
+    }
+
+    /**
+     * store results of a query which started at the given generation,
+     * they are dropped if any book has changed since then.
+     */
+    public synchronized void put(BookQueryConditions conditions, BookQueryResults results, long generation) {
+        if (generation != this.generation) {
+            return;
+        }
+        entries.put(key(conditions), new CachedResult(copy(conditions), copy(results), System.nanoTime() + ttlNanos));
+    }
+
+    public synchronized void onBookStored(Book book) {
+        invalidate(e -> mayMatch(e.conditions, book));
+    }
+
+    public synchronized void onBooksStored(List<Book> books) {
+        invalidate(e -> books.stream().anyMatch(book -> mayMatch(e.conditions, book)));
+    }
+
+    public synchronized void onBookModified(Book book) {
+        invalidate(e -> e.holds(book.getBookId()) || mayMatch(e.conditions, book));
+    }
+
+    public synchronized void onStockChanged(int bookId) {
+        invalidate(e -> e.holds(bookId)
+                || (e.conditions.getPageSize() != null && e.conditions.getSortBy() == Book.SortColumn.STOCK));
+    }
+
+    public synchronized void onBookRemoved(int bookId) {
+        invalidate(e -> e.holds(bookId));
+    }
+
+    public synchronized void clear() {
+        generation++;
+        invalidations += entries.size();
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /* entries dropped for capacity or ttl */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /* entries dropped because of a change of books */
+    public synchronized long getInvalidations() {
+        return invalidations;
+    }
+
+    public synchronized double getHitRatio() {
+        long total = hits + misses;
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /* must hold the monitor */
+    private void invalidate(Predicate<CachedResult> affected) {
+        generation++;
+        Iterator<CachedResult> it = entries.values().iterator();
+        while (it.hasNext()) {
+            if (affected.test(it.next())) {
+                it.remove();
+                invalidations++;
+            }
+        }
+    }
+
+    /* every field takes part, null is kept apart from any value */
+    static String key(BookQueryConditions c) {
+        StringBuilder sb = new StringBuilder(64);
+        for (Object field : new Object[]{c.getCategory(), c.getTitle(), c.getPress(), c.getMinPublishYear(),
+                c.getMaxPublishYear(), c.getAuthor(), c.getMinPrice(), c.getMaxPrice(),
+                c.getSortBy(), c.getSortOrder(), c.getPageSize(), c.getPageToken()}) {
+            if (field == null) {
+                sb.append('-');
+            } else {
+                String s = field.toString();
+                sb.append(s.length()).append(':').append(s);
+            }
+            sb.append('|');
+        }
+        return sb.toString();
+    }
+
+    private static boolean mayMatch(BookQueryConditions c, Book book) {
+        return (c.getCategory() == null || mayEqual(book.getCategory(), c.getCategory())) &&
+                (c.getTitle() == null || mayContain(book.getTitle(), c.getTitle())) &&
+                (c.getPress() == null || mayContain(book.getPress(), c.getPress())) &&
+                (c.getMinPublishYear() == null || book.getPublishYear() >= c.getMinPublishYear()) &&
+                (c.getMaxPublishYear() == null || book.getPublishYear() <= c.getMaxPublishYear()) &&
+                (c.getAuthor() == null || mayContain(book.getAuthor(), c.getAuthor())) &&
+                (c.getMinPrice() == null || book.getPrice() >= c.getMinPrice() - 0.01) &&
+                (c.getMaxPrice() == null || book.getPrice() <= c.getMaxPrice() + 0.01);
+    }
+
+    private static boolean mayEqual(String value, String condition) {
+        if (!Trigrams.isPlain(value) || !Trigrams.isPlain(condition)) {
+            return true;
+        }
+        return normalize(value).equals(normalize(condition));
+    }
+
+    private static boolean mayContain(String value, String pattern) {
+        if (!Trigrams.isPlain(value) || !Trigrams.isPlain(pattern)) {
+            return true;
+        }
+        return normalize(value).contains(normalize(pattern));
+    }
+
+    private static String normalize(String s) {
+        int end = s.length();
+        while (end > 0 && s.charAt(end - 1) == ' ') {
+            end--;
+        }
+        return s.substring(0, end).toLowerCase(Locale.ROOT);
+    }
+
+    private static BookQueryConditions copy(BookQueryConditions c) {
+        BookQueryConditions copy = new BookQueryConditions();
+        copy.setCategory(c.getCategory());
+        copy.setTitle(c.getTitle());
+        copy.setPress(c.getPress());
+        copy.setMinPublishYear(c.getMinPublishYear());
+        copy.setMaxPublishYear(c.getMaxPublishYear());
+        copy.setAuthor(c.getAuthor());
+        copy.setMinPrice(c.getMinPrice());
+        copy.setMaxPrice(c.getMaxPrice());
+        copy.setSortBy(c.getSortBy());
+        copy.setSortOrder(c.getSortOrder());
+        copy.setPageSize(c.getPageSize());
+        copy.setPageToken(c.getPageToken());
+        return copy;
+    }
+
+    private static BookQueryResults copy(BookQueryResults results) {
+        List<Book> books = new ArrayList<>(results.getResults().size());
+        for (Book book : results.getResults()) {
+            books.add(book.clone());
+        }
+        return new BookQueryResults(books, results.getNextPageToken());
+    }
+}
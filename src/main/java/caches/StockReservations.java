@@ -0,0 +1,235 @@
+package caches;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Available stock of books kept in atomic counters, so that borrows
+ * of a hot book are admitted or rejected in memory instead of queueing
+ * on the row lock of the book.
+ *
+ * Note:
+ *      (1) counters are spread over stripes by book_id, each stripe
+ *          has its own maps, so books of different stripes never touch
+ *          the same memory. a counter is loaded from the database the
+ *          first time its book is used.
+ *      (2) every change is applied to the counter by compare-and-set,
+ *          and added to the pending delta of the book.
+ *      (3) pending deltas are written back in one batch every flush
+ *          interval, or when {@link #flush()} is called. failed writes
+ *          are kept and retried by the next flush.
+ *      (4) the database stays the source of truth: deltas not flushed
+ *          when the process stops are lost, counters are loaded again
+ *          from the database after a restart.
+ */
+public class StockReservations implements AutoCloseable {
+
+    public enum Outcome { OK, NOT_ENOUGH, NO_BOOK }
+
+    /* read stock of a book from the database, null if it does not exist */
+    public interface Loader {
+        Integer load(int bookId) throws Exception;
+    }
+
+    /* add deltas (book_id -> delta) to the stock in the database */
+    public interface Writer {
+        void write(Map<Integer, Integer> deltas) throws Exception;
+    }
+
+    private static final class Stripe {
+        final ConcurrentHashMap<Integer, AtomicInteger> stock = new ConcurrentHashMap<>();
+        final ConcurrentHashMap<Integer, AtomicInteger> pending = new ConcurrentHashMap<>();
+    }
+
+    private static final Logger log = Logger.getLogger(StockReservations.class.getName());
+
+    private final Stripe[] stripes;
+    private final Loader loader;
+    private final Writer writer;
+    private final ScheduledExecutorService flusher;
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong flushedRows = new AtomicLong();
+    private final AtomicLong flushFailures = new AtomicLong();
+
+    /**
+     * @param nStripes number of stripes, rounded up to a power of 2
+     */
+    public StockReservations(int nStripes, long flushIntervalMillis, Loader loader, Writer writer) {
+        int n = Integer.highestOneBit(Math.max(1, nStripes - 1)) << 1;
+        this.stripes = new Stripe[n];
+        for (int i = 0; i < n; i++) {
+            stripes[i] = new Stripe();
+        }
+        this.loader = loader;
+        this.writer = writer;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "stock-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flushQuietly, flushIntervalMillis, flushIntervalMillis,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * add delta to the stock of a book unless it would become negative.
+     *
+     * @throws IllegalStateException if the stock could not be loaded
+     */
+    public Outcome tryAdd(int bookId, int delta) {
+        Stripe stripe = stripe(bookId);
+        AtomicInteger counter = counter(stripe, bookId);
+        if (counter == null) {
+            return Outcome.NO_BOOK;
+        }
+        while (true) {
+            int stock = counter.get();
+            if (stock + delta < 0) {
+                return Outcome.NOT_ENOUGH;
+            }
+            if (counter.compareAndSet(stock, stock + delta)) {
+                break;
+            }
+        }
+        if (delta != 0) {
+            stripe.pending.computeIfAbsent(bookId, k -> new AtomicInteger()).addAndGet(delta);
+        }
+        return Outcome.OK;
+    }
+
+    /**
+     * take back a delta added by {@link #tryAdd}, unconditionally. it is
+     * ignored if the book has been removed meanwhile.
+     */
+    public void undo(int bookId, int delta) {
+        Stripe stripe = stripe(bookId);
+        AtomicInteger counter = stripe.stock.get(bookId);
+        if (counter == null || delta == 0) {
+            return;
+        }
+        counter.addAndGet(-delta);
+        stripe.pending.computeIfAbsent(bookId, k -> new AtomicInteger()).addAndGet(-delta);
+    }
+
+    /* stock of a book as seen by this layer, null if it is not loaded */
+    public Integer peek(int bookId) {
+        AtomicInteger counter = stripe(bookId).stock.get(bookId);
+        return counter == null ? null : counter.get();
+    }
+
+    /* forget a removed book, its pending delta is dropped */
+    public void remove(int bookId) {
+        Stripe stripe = stripe(bookId);
+        stripe.stock.remove(bookId);
+        stripe.pending.remove(bookId);
+    }
+
+    /* forget all books, e.g. when the database is reset. waits for a running flush */
+    public synchronized void clear() {
+        for (Stripe stripe : stripes) {
+            stripe.stock.clear();
+            stripe.pending.clear();
+        }
+    }
+
+    /**
+     * write all pending deltas back in one batch.
+     *
+     * @throws Exception if the write failed, the deltas stay pending
+     */
+    public synchronized void flush() throws Exception {
+        Map<Integer, Integer> deltas = new HashMap<>();
+        for (Stripe stripe : stripes) {
+            for (Map.Entry<Integer, AtomicInteger> entry : stripe.pending.entrySet()) {
+                int delta = entry.getValue().getAndSet(0);
+                if (delta != 0) {
+                    deltas.put(entry.getKey(), delta);
+                }
+            }
+        }
+        if (deltas.isEmpty()) {
+            return;
+        }
+        try {
+            writer.write(deltas);
+        } catch (Exception e) {
+            flushFailures.incrementAndGet();
+            for (Map.Entry<Integer, Integer> entry : deltas.entrySet()) {
+                Stripe stripe = stripe(entry.getKey());
+                if (stripe.stock.containsKey(entry.getKey())) {
+                    stripe.pending.computeIfAbsent(entry.getKey(), k -> new AtomicInteger())
+                            .addAndGet(entry.getValue());
+                }
+            }
+            throw e;
+        }
+        flushes.incrementAndGet();
+        flushedRows.addAndGet(deltas.size());
+    }
+
+    /**
+     * stop the flusher and write back what is pending. a flush still
+     * running is waited for, as flushes are serialized.
+     *
+     * @throws IllegalStateException if the last write failed, the deltas stay pending
+     */
+    @Override
+    public void close() {
+        // cancels the scheduled runs, a running one finishes before flush() gets in
+        flusher.shutdown();
+        try {
+            flush();
+        } catch (Exception e) {
+            throw new IllegalStateException("Failed to write back pending stock: " + e.getMessage(), e);
+        }
+    }
+
+    public long getFlushes() {
+        return flushes.get();
+    }
+
+    public long getFlushedRows() {
+        return flushedRows.get();
+    }
+
+    public long getFlushFailures() {
+        return flushFailures.get();
+    }
+
+    /* run by the flusher, a failure is counted by flush() and retried by the next run */
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (Exception e) {
+            log.log(Level.WARNING, "Failed to write back pending stock, will retry", e);
+        }
+    }
+
+    private Stripe stripe(int bookId) {
+        int h = bookId * 0x9E3779B9;
+        return stripes[(h ^ (h >>> 16)) & (stripes.length - 1)];
+    }
+
+    private AtomicInteger counter(Stripe stripe, int bookId) {
+        AtomicInteger counter = stripe.stock.get(bookId);
+        if (counter != null) {
+            return counter;
+        }
+        return stripe.stock.computeIfAbsent(bookId, k -> {
+            try {
+                Integer stock = loader.load(bookId);
+                return stock == null ? null : new AtomicInteger(stock);
+            } catch (Exception e) {
+                throw new IllegalStateException("Failed to load stock of book " + bookId, e);
+            }
+        });
+    }
+}
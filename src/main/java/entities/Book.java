@@ -5,6 +5,19 @@ import java.util.Objects;
 import java.util.Random;
 
 public final class Book {
+    /* compare strings by upper-cased characters, as case-insensitive collations order plain letters & digits */
+    public static final Comparator<String> IGNORE_CASE = (lhs, rhs) -> {
+        int n = Math.min(lhs.length(), rhs.length());
+        for (int i = 0; i < n; i++) {
+            char l = Character.toUpperCase(lhs.charAt(i));
+            char r = Character.toUpperCase(rhs.charAt(i));
+            if (l != r) {
+                return l - r;
+            }
+        }
+        return lhs.length() - rhs.length();
+    };
+
     private int bookId;
     private String category;
     private String title;
@@ -16,11 +29,11 @@ public final class Book {
 
     public enum SortColumn {
         BOOK_ID("book_id", Comparator.comparingInt(Book::getBookId)),
-        CATEGORY("category", Comparator.comparing(Book::getCategory)),
-        TITLE("title", Comparator.comparing(Book::getTitle)),
-        PRESS("press", Comparator.comparing(Book::getPress)),
+        CATEGORY("category", Comparator.comparing(Book::getCategory, IGNORE_CASE)),
+        TITLE("title", Comparator.comparing(Book::getTitle, IGNORE_CASE)),
+        PRESS("press", Comparator.comparing(Book::getPress, IGNORE_CASE)),
         PUBLISH_YEAR("publish_year", Comparator.comparingInt(Book::getPublishYear)),
-        AUTHOR("author", Comparator.comparing(Book::getAuthor)),
+        AUTHOR("author", Comparator.comparing(Book::getAuthor, IGNORE_CASE)),
         PRICE("price", Comparator.comparingDouble(Book::getPrice)),
         STOCK("stock", Comparator.comparingInt(Book::getStock));
 
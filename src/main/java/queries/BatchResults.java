@@ -0,0 +1,48 @@
+package queries;
+
+import java.util.List;
+
+/**
+ * Outcome of a bulk operation, one {@link ApiResult} per item in the
+ * order of the input.
+ */
+public class BatchResults {
+
+    private int count;       /* number of items, equal to results.size() */
+    private int succeeded;   /* number of items whose result is ok */
+    private List<ApiResult> results;
+
+    public BatchResults(List<ApiResult> results) {
+        this.count = results.size();
+        this.results = results;
+        for (ApiResult result : results) {
+            if (result.ok) {
+                succeeded++;
+            }
+        }
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public void setCount(int count) {
+        this.count = count;
+    }
+
+    public int getSucceeded() {
+        return succeeded;
+    }
+
+    public void setSucceeded(int succeeded) {
+        this.succeeded = succeeded;
+    }
+
+    public List<ApiResult> getResults() {
+        return results;
+    }
+
+    public void setResults(List<ApiResult> results) {
+        this.results = results;
+    }
+}
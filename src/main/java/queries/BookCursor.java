@@ -0,0 +1,87 @@
+package queries;
+
+import entities.Book;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * A forward-only cursor over the results of a book query. books
+ * are read from the database one by one while iterating, so the
+ * heap usage does not depend on the size of results.
+ *
+ * Note:
+ *      (1) the cursor holds a database connection until it is closed,
+ *          always close it, e.g. by try-with-resources.
+ *      (2) the cursor closes itself once all books have been read.
+ *      (3) {@link #stream()} returns a stream which closes this cursor
+ *          when the stream is closed.
+ */
+public class BookCursor implements Iterator<Book>, AutoCloseable {
+
+    private final ResultSet rs;
+    private final AutoCloseable release;
+    private Book next;
+    private boolean closed;
+
+    public BookCursor(ResultSet rs, AutoCloseable release) {
+        this.rs = rs;
+        this.release = release;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next != null) {
+            return true;
+        }
+        if (closed) {
+            return false;
+        }
+        try {
+            if (rs.next()) {
+                next = BookQueryBuilder.readBook(rs);
+                return true;
+            }
+        } catch (SQLException e) {
+            close();
+            throw new IllegalStateException("Failed to read next book", e);
+        }
+        close();
+        return false;
+    }
+
+    @Override
+    public Book next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Book book = next;
+        next = null;
+        return book;
+    }
+
+    public Stream<Book> stream() {
+        Spliterator<Book> spliterator = Spliterators.spliteratorUnknownSize(this,
+                Spliterator.ORDERED | Spliterator.NONNULL);
+        return StreamSupport.stream(spliterator, false).onClose(this::close);
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            release.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
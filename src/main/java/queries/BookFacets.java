@@ -0,0 +1,80 @@
+package queries;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Number of books matching some query conditions, in total and per
+ * value of category, press, author and publish year. values without
+ * any matching book are left out.
+ */
+public class BookFacets {
+
+    private int count;   /* number of matching books */
+    private Map<String, Integer> categories = new TreeMap<>();
+    private Map<String, Integer> presses = new TreeMap<>();
+    private Map<String, Integer> authors = new TreeMap<>();
+    private Map<Integer, Integer> publishYears = new TreeMap<>();
+
+    public BookFacets() {
+    }
+
+    /* count n books sharing the given values */
+    public void add(String category, String press, String author, int publishYear, int n) {
+        count += n;
+        categories.merge(category, n, Integer::sum);
+        presses.merge(press, n, Integer::sum);
+        authors.merge(author, n, Integer::sum);
+        publishYears.merge(publishYear, n, Integer::sum);
+    }
+
+    @Override
+    public String toString() {
+        return "BookFacets {" + "count=" + count +
+                ", categories=" + categories +
+                ", presses=" + presses +
+                ", authors=" + authors +
+                ", publishYears=" + publishYears +
+                '}';
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public void setCount(int count) {
+        this.count = count;
+    }
+
+    public Map<String, Integer> getCategories() {
+        return categories;
+    }
+
+    public void setCategories(Map<String, Integer> categories) {
+        this.categories = categories;
+    }
+
+    public Map<String, Integer> getPresses() {
+        return presses;
+    }
+
+    public void setPresses(Map<String, Integer> presses) {
+        this.presses = presses;
+    }
+
+    public Map<String, Integer> getAuthors() {
+        return authors;
+    }
+
+    public void setAuthors(Map<String, Integer> authors) {
+        this.authors = authors;
+    }
+
+    public Map<Integer, Integer> getPublishYears() {
+        return publishYears;
+    }
+
+    public void setPublishYears(Map<Integer, Integer> publishYears) {
+        this.publishYears = publishYears;
+    }
+}
@@ -0,0 +1,293 @@
+package queries;
+
+import entities.Book;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Translate {@link BookQueryConditions} into one parameterized sql.
+ *
+ * Note:
+ *      (1) all values, including the fuzzy patterns, are bound as
+ *          params, so the sql text only depends on which conditions
+ *          are set, how to sort and how many trigrams the patterns
+ *          have. it can be cached and planned once.
+ *      (2) sort column & order come from enums, they are the only
+ *          parts concatenated into the sql.
+ *      (3) if all else is equal, rows are sorted by book_id ASC.
+ *      (4) pages are fetched by keyset pagination, the page token
+ *          holds (sort column, book_id) of the last row of previous
+ *          page, so a deep page costs the same as the first one.
+ *      (5) a fuzzy pattern of at least 3 plain characters first selects
+ *          candidate book_ids from book_trigram, the LIKE only checks
+ *          these candidates rather than scanning the whole table. books
+ *          whose value is not plain are always candidates, see
+ *          {@link Trigrams}, so the LIKE alone decides the result.
+ *          unless the index is known to cover all books, only the LIKE
+ *          is used.
+ */
+public class BookQueryBuilder {
+
+    public static final String BOOK_COLUMNS =
+            "book_id, category, title, press, publish_year, author, price, stock";
+
+    /* use '!' rather than '\' to escape LIKE patterns, '\' is special in mysql literals */
+    private static final char LIKE_ESCAPE = '!';
+    /* more trigrams barely narrow the candidates, but every count is one more sql text */
+    private static final int MAX_TRIGRAMS = 8;
+
+    private final BookQueryConditions conditions;
+    private final boolean trigramIndex;
+    private final List<String> predicates = new ArrayList<>();
+    private final List<Object> params = new ArrayList<>();
+
+    public BookQueryBuilder(BookQueryConditions conditions) {
+        this(conditions, true);
+    }
+
+    public BookQueryBuilder(BookQueryConditions conditions, boolean paged) {
+        this(conditions, paged, true);
+    }
+
+    /**
+     * @param paged whether to skip the rows before the page token
+     * @param trigramIndex whether book_trigram covers all books, so that
+     *                     fuzzy patterns may be prefiltered by it
+     */
+    public BookQueryBuilder(BookQueryConditions conditions, boolean paged, boolean trigramIndex) {
+        this.conditions = conditions;
+        this.trigramIndex = trigramIndex;
+        if (conditions.getCategory() != null) {
+            predicates.add("category = ?");
+            params.add(conditions.getCategory());
+        }
+        like("title", Trigrams.TITLE, conditions.getTitle());
+        like("press", Trigrams.PRESS, conditions.getPress());
+        if (conditions.getMinPublishYear() != null) {
+            predicates.add("publish_year >= ?");
+            params.add(conditions.getMinPublishYear());
+        }
+        if (conditions.getMaxPublishYear() != null) {
+            predicates.add("publish_year <= ?");
+            params.add(conditions.getMaxPublishYear());
+        }
+        like("author", Trigrams.AUTHOR, conditions.getAuthor());
+        if (conditions.getMinPrice() != null) {
+            predicates.add("price >= ?");
+            params.add(conditions.getMinPrice());
+        }
+        if (conditions.getMaxPrice() != null) {
+            predicates.add("price <= ?");
+            params.add(conditions.getMaxPrice());
+        }
+        if (paged && conditions.getPageToken() != null) {
+            seek();
+        }
+    }
+
+    /* read the current row of a result set selecting BOOK_COLUMNS */
+    public static Book readBook(ResultSet rs) throws SQLException {
+        Book book = new Book();
+        book.setBookId(rs.getInt("book_id"));
+        book.setCategory(rs.getString("category"));
+        book.setTitle(rs.getString("title"));
+        book.setPress(rs.getString("press"));
+        book.setPublishYear(rs.getInt("publish_year"));
+        book.setAuthor(rs.getString("author"));
+        book.setPrice(rs.getDouble("price"));
+        book.setStock(rs.getInt("stock"));
+        return book;
+    }
+
+    /**
+     * token of the page following the one ends with last.
+     */
+    public static String nextPageToken(BookQueryConditions conditions, Book last) {
+        Book.SortColumn sortBy = conditions.getSortBy();
+        return PageToken.encode(sortBy.name(), conditions.getSortOrder().name(),
+                String.valueOf(last.getBookId()), sortValue(sortBy, last).toString());
+    }
+
+    /* " WHERE ..." or an empty string if there is no condition */
+    public String whereClause() {
+        if (predicates.isEmpty()) {
+            return "";
+        }
+        return " WHERE " + String.join(" AND ", predicates);
+    }
+
+    public String orderByClause() {
+        Book.SortColumn sortBy = conditions.getSortBy();
+        String order = conditions.getSortOrder().getValue();
+        if (sortBy == Book.SortColumn.BOOK_ID) {
+            return " ORDER BY book_id " + order;
+        }
+        return " ORDER BY " + sortBy.getValue() + " " + order + ", book_id ASC";
+    }
+
+    public String selectSql() {
+        return "SELECT " + BOOK_COLUMNS + " FROM book" + whereClause() + orderByClause();
+    }
+
+    /* number of matching books per (category, press, author, publish_year), in column cnt */
+    public String facetSql() {
+        return "SELECT category, press, author, publish_year, COUNT(*) AS cnt FROM book" + whereClause() +
+                " GROUP BY category, press, author, publish_year";
+    }
+
+    /**
+     * bind all params to stmt, starting at index 1.
+     *
+     * @return index of the next unbound param
+     */
+    public int bind(PreparedStatement stmt) throws SQLException {
+        return bind(stmt, 1);
+    }
+
+    public int bind(PreparedStatement stmt, int index) throws SQLException {
+        for (Object param : params) {
+            if (param instanceof String) {
+                stmt.setString(index++, (String) param);
+            } else if (param instanceof byte[]) {
+                stmt.setBytes(index++, (byte[]) param);
+            } else if (param instanceof Integer) {
+                stmt.setInt(index++, (Integer) param);
+            } else {
+                stmt.setDouble(index++, (Double) param);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * decode the page token of conditions into a book holding only
+     * book_id and the sort column of the last row of previous page.
+     *
+     * @throws IllegalArgumentException if the token is malformed or
+     *         was issued for another sort order
+     */
+    public static Book decodePageToken(BookQueryConditions conditions) throws IllegalArgumentException {
+        String[] parts = PageToken.decode(conditions.getPageToken(), 4);
+        Book.SortColumn sortBy = conditions.getSortBy();
+        if (!sortBy.name().equals(parts[0]) || !conditions.getSortOrder().name().equals(parts[1])) {
+            throw new IllegalArgumentException("Page token does not match the sort order");
+        }
+        Book last = new Book();
+        try {
+            last.setBookId(Integer.parseInt(parts[2]));
+            setSortValue(sortBy, last, parts[3]);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid page token", e);
+        }
+        return last;
+    }
+
+    private void seek() {
+        Book last = decodePageToken(conditions);
+        Book.SortColumn sortBy = conditions.getSortBy();
+        String op = conditions.getSortOrder() == SortOrder.ASC ? ">" : "<";
+        if (sortBy == Book.SortColumn.BOOK_ID) {
+            predicates.add("book_id " + op + " ?");
+            params.add(last.getBookId());
+            return;
+        }
+        // ties on the sort column are always ordered by book_id ASC
+        String column = sortBy.getValue();
+        Object lastValue = sortValue(sortBy, last);
+        predicates.add("(" + column + " " + op + " ? OR (" + column + " = ? AND book_id > ?))");
+        params.add(lastValue);
+        params.add(lastValue);
+        params.add(last.getBookId());
+    }
+
+    private static Object sortValue(Book.SortColumn sortBy, Book book) {
+        switch (sortBy) {
+            case CATEGORY:
+                return book.getCategory();
+            case TITLE:
+                return book.getTitle();
+            case PRESS:
+                return book.getPress();
+            case PUBLISH_YEAR:
+                return book.getPublishYear();
+            case AUTHOR:
+                return book.getAuthor();
+            case PRICE:
+                return book.getPrice();
+            case STOCK:
+                return book.getStock();
+            default:
+                return book.getBookId();
+        }
+    }
+
+    private static void setSortValue(Book.SortColumn sortBy, Book book, String value) {
+        switch (sortBy) {
+            case CATEGORY:
+                book.setCategory(value);
+                break;
+            case TITLE:
+                book.setTitle(value);
+                break;
+            case PRESS:
+                book.setPress(value);
+                break;
+            case PUBLISH_YEAR:
+                book.setPublishYear(Integer.parseInt(value));
+                break;
+            case AUTHOR:
+                book.setAuthor(value);
+                break;
+            case PRICE:
+                book.setPrice(Double.parseDouble(value));
+                break;
+            case STOCK:
+                book.setStock(Integer.parseInt(value));
+                break;
+            default:
+                book.setBookId(Integer.parseInt(value));
+        }
+    }
+
+    private void like(String column, char field, String pattern) {
+        if (pattern == null) {
+            return;
+        }
+        List<byte[]> trigrams = trigramIndex ? Trigrams.of(pattern) : Collections.<byte[]>emptyList();
+        if (trigrams.size() > MAX_TRIGRAMS) {
+            trigrams = trigrams.subList(0, MAX_TRIGRAMS);
+        }
+        if (!trigrams.isEmpty()) {
+            StringBuilder in = new StringBuilder();
+            for (byte[] trigram : trigrams) {
+                in.append(in.length() == 0 ? "?" : ", ?");
+                params.add(trigram);
+            }
+            // the single UNINDEXED row of a value which is not plain counts as all of them
+            params.add(Trigrams.UNINDEXED);
+            params.add(Trigrams.UNINDEXED);
+            int n = trigrams.size();
+            predicates.add("book_id IN (SELECT book_id FROM book_trigram WHERE field = '" + field +
+                    "' AND trigram IN (" + in + ", ?) GROUP BY book_id" +
+                    " HAVING SUM(CASE WHEN trigram = ? THEN " + n + " ELSE 1 END) = " + n + ")");
+        }
+        predicates.add(column + " LIKE ? ESCAPE '" + LIKE_ESCAPE + "'");
+        params.add("%" + escapeLike(pattern) + "%");
+    }
+
+    private static String escapeLike(String pattern) {
+        StringBuilder sb = new StringBuilder(pattern.length() + 8);
+        for (char c : pattern.toCharArray()) {
+            if (c == '%' || c == '_' || c == '[' || c == LIKE_ESCAPE) {
+                sb.append(LIKE_ESCAPE);
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+}
@@ -28,6 +28,10 @@ public class BookQueryConditions {
     private Book.SortColumn sortBy;
     /* default sort by PK */
     private SortOrder sortOrder;
+    /* max number of books in one page, null means return all books */
+    private Integer pageSize;
+    /* nextPageToken of the previous page, null means the first page */
+    private String pageToken;
 
     public BookQueryConditions() {
         this.category = null;
@@ -40,6 +44,36 @@ public class BookQueryConditions {
         this.maxPrice = null;
         sortBy = Book.SortColumn.BOOK_ID;
         sortOrder = SortOrder.ASC;
+        this.pageSize = null;
+        this.pageToken = null;
+    }
+
+    /**
+     * check whether a book satisfies all non-null conditions, it is
+     * used by the in-memory layers that answer queries without sql.
+     * strings are compared ignoring case, like the sql does for plain
+     * ascii. values beyond it are left to the sql, see
+     * {@link caches.CatalogReplica}.
+     */
+    public boolean matches(Book book) {
+        return (category == null || category.equalsIgnoreCase(book.getCategory())) &&
+                (title == null || containsIgnoreCase(book.getTitle(), title)) &&
+                (press == null || containsIgnoreCase(book.getPress(), press)) &&
+                (minPublishYear == null || book.getPublishYear() >= minPublishYear) &&
+                (maxPublishYear == null || book.getPublishYear() <= maxPublishYear) &&
+                (author == null || containsIgnoreCase(book.getAuthor(), author)) &&
+                (minPrice == null || book.getPrice() >= minPrice) &&
+                (maxPrice == null || book.getPrice() <= maxPrice);
+    }
+
+    /* LIKE '%pattern%' under a case-insensitive collation, for plain ascii */
+    public static boolean containsIgnoreCase(String text, String pattern) {
+        for (int i = 0; i + pattern.length() <= text.length(); i++) {
+            if (text.regionMatches(true, i, pattern, 0, pattern.length())) {
+                return true;
+            }
+        }
+        return false;
     }
 
     public String getCategory() {
@@ -121,4 +155,20 @@ public class BookQueryConditions {
     public void setSortOrder(SortOrder sortOrder) {
         this.sortOrder = sortOrder;
     }
+
+    public Integer getPageSize() {
+        return pageSize;
+    }
+
+    public void setPageSize(Integer pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    public String getPageToken() {
+        return pageToken;
+    }
+
+    public void setPageToken(String pageToken) {
+        this.pageToken = pageToken;
+    }
 }
@@ -8,12 +8,19 @@ public class BookQueryResults {
 
     private int count;   /* number of results, equal to results.size() */
     private List<Book> results;
+    /* token to fetch the next page, null if this is the last page */
+    private String nextPageToken;
 
     public BookQueryResults(List<Book> results) {
         this.count = results.size();
         this.results = results;
     }
 
+    public BookQueryResults(List<Book> results, String nextPageToken) {
+        this(results);
+        this.nextPageToken = nextPageToken;
+    }
+
     public int getCount() {
         return count;
     }
@@ -29,4 +36,12 @@ public class BookQueryResults {
     public void setResults(List<Book> results) {
         this.results = results;
     }
+
+    public String getNextPageToken() {
+        return nextPageToken;
+    }
+
+    public void setNextPageToken(String nextPageToken) {
+        this.nextPageToken = nextPageToken;
+    }
 }
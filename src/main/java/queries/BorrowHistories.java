@@ -133,12 +133,45 @@ public class BorrowHistories {
 
     private int count;
     private List<Item> items;
+    /* token to fetch the next page, null if this is the last page */
+    private String nextPageToken;
 
     public BorrowHistories(List<Item> items) {
         this.count = items.size();
         this.items = items;
     }
 
+    public BorrowHistories(List<Item> items, String nextPageToken) {
+        this(items);
+        this.nextPageToken = nextPageToken;
+    }
+
+    /**
+     * token of the page following the one ends with last, i.e. its
+     * (borrow_time, book_id).
+     */
+    public static String nextPageToken(Item last) {
+        return PageToken.encode(String.valueOf(last.getBorrowTime()), String.valueOf(last.getBookId()));
+    }
+
+    /**
+     * decode a page token into an item holding only borrow_time and
+     * book_id of the last row of previous page.
+     *
+     * @throws IllegalArgumentException if the token is malformed
+     */
+    public static Item decodePageToken(String token) throws IllegalArgumentException {
+        String[] parts = PageToken.decode(token, 2);
+        Item last = new Item();
+        try {
+            last.setBorrowTime(Long.parseLong(parts[0]));
+            last.setBookId(Integer.parseInt(parts[1]));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid page token", e);
+        }
+        return last;
+    }
+
     public int getCount() {
         return count;
     }
@@ -154,4 +187,12 @@ public class BorrowHistories {
     public void setItems(List<Item> items) {
         this.items = items;
     }
+
+    public String getNextPageToken() {
+        return nextPageToken;
+    }
+
+    public void setNextPageToken(String nextPageToken) {
+        this.nextPageToken = nextPageToken;
+    }
 }
@@ -0,0 +1,39 @@
+package queries;
+
+import java.util.Map;
+
+/**
+ * Borrow histories of several cards, one {@link BorrowHistories} per
+ * distinct card in the order the cards were given.
+ */
+public class CardBorrowHistories {
+
+    private int count;   /* number of cards, equal to histories.size() */
+    private Map<Integer, BorrowHistories> histories;   /* card_id -> its history, maybe empty */
+
+    public CardBorrowHistories(Map<Integer, BorrowHistories> histories) {
+        this.count = histories.size();
+        this.histories = histories;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public void setCount(int count) {
+        this.count = count;
+    }
+
+    public Map<Integer, BorrowHistories> getHistories() {
+        return histories;
+    }
+
+    public void setHistories(Map<Integer, BorrowHistories> histories) {
+        this.histories = histories;
+    }
+
+    /* history of a card, null if it was not asked for */
+    public BorrowHistories get(int cardId) {
+        return histories.get(cardId);
+    }
+}
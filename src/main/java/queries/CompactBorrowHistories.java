@@ -0,0 +1,201 @@
+package queries;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * Borrow histories kept column by column: card_id, book_id, borrow_time
+ * and return_time of each record in primitive arrays, the fields of each
+ * distinct book once in a book table referenced by index.
+ *
+ * Note:
+ *      (1) {@link #getItems()} is a read-only view, each get() assembles
+ *          a fresh Item which shares the strings of the book table, so
+ *          callers written against {@link BorrowHistories} still work.
+ *      (2) records are kept in the order they were added.
+ */
+public class CompactBorrowHistories extends BorrowHistories {
+
+    private static final class Columns {
+        int size;
+        int[] cardIds;
+        int[] bookRefs;   /* index into the book table */
+        long[] borrowTimes;
+        long[] returnTimes;
+        int books;
+        int[] bookIds;
+        String[] categories;
+        String[] titles;
+        String[] presses;
+        int[] publishYears;
+        String[] authors;
+        double[] prices;
+    }
+
+    private static final class ItemView extends AbstractList<Item> implements RandomAccess {
+        private final Columns c;
+
+        ItemView(Columns c) {
+            this.c = c;
+        }
+
+        @Override
+        public Item get(int index) {
+            if (index < 0 || index >= c.size) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + c.size);
+            }
+            int b = c.bookRefs[index];
+            Item item = new Item();
+            item.setCardId(c.cardIds[index]);
+            item.setBookId(c.bookIds[b]);
+            item.setCategory(c.categories[b]);
+            item.setTitle(c.titles[b]);
+            item.setPress(c.presses[b]);
+            item.setPublishYear(c.publishYears[b]);
+            item.setAuthor(c.authors[b]);
+            item.setPrice(c.prices[b]);
+            item.setBorrowTime(c.borrowTimes[index]);
+            item.setReturnTime(c.returnTimes[index]);
+            return item;
+        }
+
+        @Override
+        public int size() {
+            return c.size;
+        }
+    }
+
+    /* collects records, a book's fields are only kept the first time it shows up */
+    public static final class Builder {
+        private final Columns c = new Columns();
+        private final Map<Integer, Integer> bookIndex = new HashMap<>();
+
+        public Builder() {
+            c.cardIds = new int[16];
+            c.bookRefs = new int[16];
+            c.borrowTimes = new long[16];
+            c.returnTimes = new long[16];
+            c.bookIds = new int[8];
+            c.categories = new String[8];
+            c.titles = new String[8];
+            c.presses = new String[8];
+            c.publishYears = new int[8];
+            c.authors = new String[8];
+            c.prices = new double[8];
+        }
+
+        public Builder add(int cardId, int bookId, long borrowTime, long returnTime, String category,
+                           String title, String press, int publishYear, String author, double price) {
+            Integer b = bookIndex.get(bookId);
+            if (b == null) {
+                b = addBook(bookId, category, title, press, publishYear, author, price);
+            }
+            if (c.size == c.cardIds.length) {
+                int n = c.size * 2;
+                c.cardIds = Arrays.copyOf(c.cardIds, n);
+                c.bookRefs = Arrays.copyOf(c.bookRefs, n);
+                c.borrowTimes = Arrays.copyOf(c.borrowTimes, n);
+                c.returnTimes = Arrays.copyOf(c.returnTimes, n);
+            }
+            c.cardIds[c.size] = cardId;
+            c.bookRefs[c.size] = b;
+            c.borrowTimes[c.size] = borrowTime;
+            c.returnTimes[c.size] = returnTime;
+            c.size++;
+            return this;
+        }
+
+        public int size() {
+            return c.size;
+        }
+
+        public CompactBorrowHistories build() {
+            return build(null);
+        }
+
+        /* the builder must not be used afterwards */
+        public CompactBorrowHistories build(String nextPageToken) {
+            c.cardIds = Arrays.copyOf(c.cardIds, c.size);
+            c.bookRefs = Arrays.copyOf(c.bookRefs, c.size);
+            c.borrowTimes = Arrays.copyOf(c.borrowTimes, c.size);
+            c.returnTimes = Arrays.copyOf(c.returnTimes, c.size);
+            c.bookIds = Arrays.copyOf(c.bookIds, c.books);
+            c.categories = Arrays.copyOf(c.categories, c.books);
+            c.titles = Arrays.copyOf(c.titles, c.books);
+            c.presses = Arrays.copyOf(c.presses, c.books);
+            c.publishYears = Arrays.copyOf(c.publishYears, c.books);
+            c.authors = Arrays.copyOf(c.authors, c.books);
+            c.prices = Arrays.copyOf(c.prices, c.books);
+            return new CompactBorrowHistories(c, nextPageToken);
+        }
+
+        private int addBook(int bookId, String category, String title, String press, int publishYear,
+                            String author, double price) {
+            if (c.books == c.bookIds.length) {
+                int n = c.books * 2;
+                c.bookIds = Arrays.copyOf(c.bookIds, n);
+                c.categories = Arrays.copyOf(c.categories, n);
+                c.titles = Arrays.copyOf(c.titles, n);
+                c.presses = Arrays.copyOf(c.presses, n);
+                c.publishYears = Arrays.copyOf(c.publishYears, n);
+                c.authors = Arrays.copyOf(c.authors, n);
+                c.prices = Arrays.copyOf(c.prices, n);
+            }
+            int b = c.books++;
+            c.bookIds[b] = bookId;
+            c.categories[b] = category;
+            c.titles[b] = title;
+            c.presses[b] = press;
+            c.publishYears[b] = publishYear;
+            c.authors[b] = author;
+            c.prices[b] = price;
+            bookIndex.put(bookId, b);
+            return b;
+        }
+    }
+
+    private final Columns columns;
+
+    private CompactBorrowHistories(Columns columns, String nextPageToken) {
+        super(new ItemView(columns), nextPageToken);
+        this.columns = columns;
+    }
+
+    public int getCardId(int index) {
+        return columns.cardIds[index];
+    }
+
+    public int getBookId(int index) {
+        return columns.bookIds[columns.bookRefs[index]];
+    }
+
+    public long getBorrowTime(int index) {
+        return columns.borrowTimes[index];
+    }
+
+    public long getReturnTime(int index) {
+        return columns.returnTimes[index];
+    }
+
+    /* number of distinct books */
+    public int getBookCount() {
+        return columns.books;
+    }
+
+    /* estimated heap usage in bytes, the strings of each book counted once */
+    public long sizeInBytes() {
+        Columns c = columns;
+        long bytes = 16 + 4 * 16 + 13 * 16;
+        bytes += (4L + 4 + 8 + 8) * c.size;
+        bytes += (4L + 4 + 8 + 4 * 4) * c.books;
+        for (int b = 0; b < c.books; b++) {
+            for (String s : new String[]{c.categories[b], c.titles[b], c.presses[b], c.authors[b]}) {
+                bytes += 40 + 2L * s.length();
+            }
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,55 @@
+package queries;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Base64;
+
+/**
+ * Opaque continuation token of keyset pagination. a token is simply
+ * the sort key of the last row of a page, encoded as url-safe base64
+ * so that clients do not depend on its layout.
+ */
+public final class PageToken {
+
+    private PageToken() {
+    }
+
+    public static String encode(String... parts) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(parts.length);
+            for (String part : parts) {
+                out.writeUTF(part);
+            }
+            out.flush();
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes.toByteArray());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if token is malformed or does
+     *         not have exactly nParts parts
+     */
+    public static String[] decode(String token, int nParts) throws IllegalArgumentException {
+        try {
+            byte[] bytes = Base64.getUrlDecoder().decode(token);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            if (in.readByte() != nParts) {
+                throw new IllegalArgumentException("Invalid page token");
+            }
+            String[] parts = new String[nParts];
+            for (int i = 0; i < nParts; i++) {
+                parts[i] = in.readUTF();
+            }
+            return parts;
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Invalid page token", e);
+        }
+    }
+}
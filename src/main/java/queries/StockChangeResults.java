@@ -0,0 +1,34 @@
+package queries;
+
+import java.util.List;
+
+/**
+ * Books whose stock change failed in a bulk stock adjustment, each list
+ * in ascending order of book_id.
+ */
+public class StockChangeResults {
+
+    private List<Integer> missing;     /* book_ids that do not exist */
+    private List<Integer> notEnough;   /* book_ids whose stock would become negative */
+
+    public StockChangeResults(List<Integer> missing, List<Integer> notEnough) {
+        this.missing = missing;
+        this.notEnough = notEnough;
+    }
+
+    public List<Integer> getMissing() {
+        return missing;
+    }
+
+    public void setMissing(List<Integer> missing) {
+        this.missing = missing;
+    }
+
+    public List<Integer> getNotEnough() {
+        return notEnough;
+    }
+
+    public void setNotEnough(List<Integer> notEnough) {
+        this.notEnough = notEnough;
+    }
+}
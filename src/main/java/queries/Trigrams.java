@@ -0,0 +1,77 @@
+package queries;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Trigrams of the fuzzy matched columns of book, as stored in the
+ * book_trigram table.
+ *
+ * Note:
+ *      (1) a trigram is 3 consecutive characters of the lower-cased text,
+ *          stored as utf-8 bytes so that the comparison is exact whatever
+ *          the collation of the database is.
+ *      (2) a text contains a pattern only if it has all trigrams of the
+ *          pattern, so they select candidates, LIKE still decides.
+ *      (3) (2) only holds if the collation compares the text just like
+ *          lower-cased bytes, which is true for printable ascii but not
+ *          beyond it (accents, ß and ss, full-width forms, ...). a value
+ *          which is not plain is stored as {@link #UNINDEXED} alone and
+ *          is a candidate for every pattern, a pattern which is not plain
+ *          has no trigram and selects no candidates.
+ *      (4) patterns shorter than 3 characters have no trigram.
+ */
+public final class Trigrams {
+
+    /* values of book_trigram.field */
+    public static final char TITLE = 'T';
+    public static final char PRESS = 'P';
+    public static final char AUTHOR = 'A';
+
+    /* the only row of a value which is not plain, shorter than any trigram */
+    public static final byte[] UNINDEXED = {'*'};
+
+    private Trigrams() {
+    }
+
+    /* distinct trigrams of a pattern, in order of first occurrence. empty if it is not plain */
+    public static List<byte[]> of(String pattern) {
+        if (!isPlain(pattern)) {
+            return new ArrayList<>();
+        }
+        String lower = pattern.toLowerCase(Locale.ROOT);
+        Set<String> trigrams = new LinkedHashSet<>();
+        for (int i = 0; i + 3 <= lower.length(); i++) {
+            trigrams.add(lower.substring(i, i + 3));
+        }
+        List<byte[]> result = new ArrayList<>(trigrams.size());
+        for (String trigram : trigrams) {
+            result.add(trigram.getBytes(StandardCharsets.US_ASCII));
+        }
+        return result;
+    }
+
+    /* rows of a stored value in book_trigram */
+    public static List<byte[]> ofValue(String text) {
+        if (!isPlain(text)) {
+            return Collections.singletonList(UNINDEXED);
+        }
+        return of(text);
+    }
+
+    /* only printable ascii, which every collation compares by case-folded bytes */
+    public static boolean isPlain(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x20 || c > 0x7e) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
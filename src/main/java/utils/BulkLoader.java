@@ -0,0 +1,78 @@
+package utils;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Inserts many rows at once with the native bulk-load facility of a
+ * database instead of a JDBC batch.
+ *
+ * Note:
+ *      (1) rows are loaded inside the transaction of conn, generated keys
+ *          are not returned and have to be queried afterwards.
+ *      (2) values are String, Integer or Double (null is allowed).
+ *      (3) if the facility is not available on the connection, e.g. it
+ *          has been disabled on the server, SQLFeatureNotSupportedException
+ *          is thrown before anything is sent, so that the caller can fall
+ *          back to a batch insert in the same transaction.
+ */
+public interface BulkLoader {
+
+    /**
+     * @return number of rows inserted, which is always rows.size()
+     */
+    long load(Connection conn, String table, String[] columns, List<Object[]> rows) throws SQLException;
+
+    /*
+     * rows as tab separated text in utf-8, one line per row, with \t \n \r
+     * and \\ escaped by backslash and null as \N. it is the text format of
+     * both mysql's LOAD DATA and postgres' COPY.
+     */
+    static byte[] toText(List<Object[]> rows) {
+        StringBuilder sb = new StringBuilder(rows.size() * 64);
+        for (Object[] row : rows) {
+            for (int i = 0; i < row.length; i++) {
+                if (i > 0) {
+                    sb.append('\t');
+                }
+                Object value = row[i];
+                if (value == null) {
+                    sb.append("\\N");
+                } else if (value instanceof Double) {
+                    // no exponent, which decimal columns would not accept
+                    sb.append(BigDecimal.valueOf((Double) value).toPlainString());
+                } else {
+                    String s = value.toString();
+                    for (int j = 0; j < s.length(); j++) {
+                        char c = s.charAt(j);
+                        switch (c) {
+                            case '\\':
+                                sb.append("\\\\");
+                                break;
+                            case '\t':
+                                sb.append("\\t");
+                                break;
+                            case '\n':
+                                sb.append("\\n");
+                                break;
+                            case '\r':
+                                sb.append("\\r");
+                                break;
+                            default:
+                                sb.append(c);
+                        }
+                    }
+                }
+            }
+            sb.append('\n');
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    static SQLException rowCountMismatch(String table, long loaded, int expected) {
+        return new SQLException("Bulk load into " + table + " inserted " + loaded + " of " + expected + " rows");
+    }
+}
@@ -0,0 +1,558 @@
+package utils;
+
+import entities.Book;
+import queries.ApiResult;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streams books from a CSV or JSON-lines file into the library, chunk by
+ * chunk, without holding the file in memory.
+ *
+ * Note:
+ *      (1) a parser thread reads the file through a direct buffer,
+ *          validates each record and hands chunks of valid books to the
+ *          calling thread, which stores them. at most QUEUED_CHUNKS
+ *          chunks wait in between, so the parser blocks when the
+ *          database falls behind.
+ *      (2) csv records are category,title,press,publish_year,author,
+ *          price,stock, quoted fields may hold commas, quotes ("") and
+ *          line breaks, a first record naming the columns is skipped.
+ *      (3) a json line is a flat object with the same keys, publishYear
+ *          is accepted for publish_year.
+ *      (4) invalid records are skipped and reported with their line, a
+ *          chunk is stored (or fails) as a whole, see {@link ChunkReport}.
+ */
+public class CatalogImporter {
+
+    public enum Format { CSV, JSONL }
+
+    /* stores one chunk, e.g. library::storeBook or library::upsertBooks */
+    public interface Sink {
+        ApiResult store(List<Book> books);
+    }
+
+    /* outcome of one chunk, its books are not kept */
+    public static final class ChunkReport {
+        private final int index;
+        private final long firstLine;
+        private final long lastLine;
+        private final int rows;
+        private final int invalid;
+        private final List<String> errors;
+        private final boolean ok;
+        private final String message;
+
+        ChunkReport(int index, Chunk chunk, ApiResult result) {
+            this.index = index;
+            this.firstLine = chunk.firstLine;
+            this.lastLine = chunk.lastLine;
+            this.rows = chunk.books.size();
+            this.invalid = chunk.invalid;
+            this.errors = chunk.errors;
+            this.ok = result.ok;
+            this.message = result.message;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        /* lines of the file covered by the chunk, 1-based */
+        public long getFirstLine() {
+            return firstLine;
+        }
+
+        public long getLastLine() {
+            return lastLine;
+        }
+
+        /* valid books of the chunk, stored iff ok */
+        public int getRows() {
+            return rows;
+        }
+
+        /* records skipped by validation */
+        public int getInvalid() {
+            return invalid;
+        }
+
+        /* "line n: reason" of the first MAX_ERRORS invalid records */
+        public List<String> getErrors() {
+            return errors;
+        }
+
+        public boolean isOk() {
+            return ok;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        @Override
+        public String toString() {
+            return "ChunkReport {" + "index=" + index +
+                    ", lines=" + firstLine + "-" + lastLine +
+                    ", rows=" + rows +
+                    ", invalid=" + invalid +
+                    ", ok=" + ok +
+                    ", message='" + message + '\'' +
+                    '}';
+        }
+    }
+
+    public static final class ImportReport {
+        private final List<ChunkReport> chunks = new ArrayList<>();
+        private long stored;
+        private long failed;
+        private long invalid;
+
+        void add(ChunkReport chunk) {
+            chunks.add(chunk);
+            if (chunk.ok) {
+                stored += chunk.rows;
+            } else {
+                failed += chunk.rows;
+            }
+            invalid += chunk.invalid;
+        }
+
+        public List<ChunkReport> getChunks() {
+            return chunks;
+        }
+
+        /* books in chunks which were stored */
+        public long getStored() {
+            return stored;
+        }
+
+        /* valid books in chunks which failed */
+        public long getFailed() {
+            return failed;
+        }
+
+        public long getInvalid() {
+            return invalid;
+        }
+    }
+
+    /* bytes read from the file at once */
+    private static final int READ_BUFFER = 1 << 20;
+    /* chunks parsed ahead of the writer */
+    private static final int QUEUED_CHUNKS = 2;
+    /* errors kept per chunk, the others are only counted */
+    private static final int MAX_ERRORS = 100;
+    /* longer records are skipped, so a broken file cannot take the heap */
+    private static final int MAX_RECORD_CHARS = 1 << 16;
+    /* length of the string columns of book */
+    private static final int MAX_FIELD_LENGTH = 63;
+    private static final String[] COLUMNS = {"category", "title", "press", "publish_year", "author", "price", "stock"};
+
+    private static final class Chunk {
+        final List<Book> books;
+        final List<String> errors = new ArrayList<>();
+        long firstLine;
+        long lastLine;
+        int invalid;
+
+        Chunk(int capacity) {
+            this.books = new ArrayList<>(capacity);
+        }
+    }
+
+    /* end of the file, or the parser failed if error is set */
+    private static final Chunk END = new Chunk(0);
+
+    private final Format format;
+    private final int chunkSize;
+
+    public CatalogImporter(Format format, int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Chunk size must be positive");
+        }
+        this.format = format;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * import all books of file, chunks are stored in file order.
+     *
+     * @throws IOException if the file could not be read, the chunks before
+     *         the failure have been stored already. anything else thrown by
+     *         the parser is rethrown here as well.
+     */
+    public ImportReport importFile(Path file, Sink sink) throws IOException, InterruptedException {
+        BlockingQueue<Chunk> queue = new ArrayBlockingQueue<>(QUEUED_CHUNKS);
+        Parser parser = new Parser(file, queue);
+        Thread thread = new Thread(parser, "catalog-parser");
+        thread.setDaemon(true);
+        thread.start();
+        ImportReport report = new ImportReport();
+        try {
+            while (true) {
+                Chunk chunk = queue.take();
+                if (chunk == END) {
+                    break;
+                }
+                ApiResult result = chunk.books.isEmpty() ? new ApiResult(true, "No valid record")
+                        : sink.store(chunk.books);
+                report.add(new ChunkReport(report.chunks.size(), chunk, result));
+            }
+        } finally {
+            parser.cancelled = true;
+            thread.interrupt();
+            thread.join();
+        }
+        Throwable error = parser.error;
+        if (error instanceof IOException) {
+            throw (IOException) error;
+        }
+        if (error instanceof RuntimeException) {
+            throw (RuntimeException) error;
+        }
+        if (error instanceof Error) {
+            throw (Error) error;
+        }
+        return report;
+    }
+
+    private final class Parser implements Runnable {
+        private final Path file;
+        private final BlockingQueue<Chunk> queue;
+        volatile boolean cancelled;
+        volatile Throwable error;
+
+        /* record being read */
+        private final List<String> fields = new ArrayList<>();
+        private final StringBuilder field = new StringBuilder();
+        private int recordChars;
+        private boolean inQuotes;
+        private boolean afterQuote;
+        private boolean firstRecord = true;
+        private long line = 1;
+        private long recordLine = 1;
+        private Chunk chunk;
+
+        Parser(Path file, BlockingQueue<Chunk> queue) {
+            this.file = file;
+            this.queue = queue;
+        }
+
+        @Override
+        public void run() {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                        .onMalformedInput(CodingErrorAction.REPLACE)
+                        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+                ByteBuffer bytes = ByteBuffer.allocateDirect(READ_BUFFER);
+                CharBuffer chars = CharBuffer.allocate(READ_BUFFER);
+                boolean eof = false;
+                while (!eof) {
+                    eof = channel.read(bytes) < 0;
+                    bytes.flip();
+                    decoder.decode(bytes, chars, eof);
+                    if (eof) {
+                        decoder.flush(chars);
+                    }
+                    chars.flip();
+                    while (chars.hasRemaining()) {
+                        accept(chars.get());
+                    }
+                    chars.clear();
+                    bytes.compact();
+                }
+                if (recordChars > 0 || !fields.isEmpty()) {
+                    endRecord();
+                }
+                if (chunk != null) {
+                    put(chunk);
+                }
+            } catch (InterruptedException e) {
+                // the writer has given up
+            } catch (Throwable e) {
+                error = e;
+            } finally {
+                // the writer waits for END whatever happened
+                try {
+                    put(END);
+                } catch (InterruptedException e) {
+                    // the writer has given up
+                }
+            }
+        }
+
+        private void accept(char c) throws InterruptedException {
+            if (c == '\n') {
+                line++;
+            }
+            if (format == Format.JSONL) {
+                if (c == '\n') {
+                    endRecord();
+                } else {
+                    append(c);
+                }
+                return;
+            }
+            if (inQuotes) {
+                if (c == '"') {
+                    inQuotes = false;
+                    afterQuote = true;
+                } else {
+                    append(c);
+                }
+                return;
+            }
+            if (c == '"') {
+                // "" inside a quoted field is one quote
+                if (afterQuote) {
+                    append('"');
+                }
+                inQuotes = true;
+                afterQuote = false;
+                return;
+            }
+            afterQuote = false;
+            if (c == ',') {
+                // each comma adds a field, so it counts as well
+                if (++recordChars <= MAX_RECORD_CHARS) {
+                    fields.add(field.toString());
+                }
+                field.setLength(0);
+            } else if (c == '\n') {
+                endRecord();
+            } else if (c != '\r') {
+                append(c);
+            }
+        }
+
+        private void append(char c) {
+            if (++recordChars <= MAX_RECORD_CHARS) {
+                field.append(c);
+            }
+        }
+
+        private void endRecord() throws InterruptedException {
+            long start = recordLine;
+            recordLine = line;
+            boolean tooLong = recordChars > MAX_RECORD_CHARS;
+            String text = field.toString();
+            fields.add(text);
+            field.setLength(0);
+            recordChars = 0;
+            boolean header = firstRecord;
+            firstRecord = false;
+            try {
+                if (format == Format.JSONL && text.trim().isEmpty()) {
+                    return;
+                }
+                if (format == Format.CSV && fields.size() == 1 && text.trim().isEmpty()) {
+                    return;
+                }
+                if (header && format == Format.CSV && fields.get(0).trim().equalsIgnoreCase(COLUMNS[0])) {
+                    return;
+                }
+                if (chunk == null) {
+                    chunk = new Chunk(chunkSize);
+                    chunk.firstLine = start;
+                }
+                chunk.lastLine = start;
+                try {
+                    if (tooLong) {
+                        throw new IllegalArgumentException("Record is too long");
+                    }
+                    chunk.books.add(format == Format.CSV ? fromCsv(fields) : fromJson(text));
+                } catch (IllegalArgumentException e) {
+                    if (chunk.invalid++ < MAX_ERRORS) {
+                        chunk.errors.add("line " + start + ": " + e.getMessage());
+                    }
+                }
+                if (chunk.books.size() == chunkSize) {
+                    put(chunk);
+                    chunk = null;
+                }
+            } finally {
+                fields.clear();
+            }
+        }
+
+        private void put(Chunk chunk) throws InterruptedException {
+            while (!queue.offer(chunk, 100, TimeUnit.MILLISECONDS)) {
+                if (cancelled) {
+                    throw new InterruptedException();
+                }
+            }
+        }
+    }
+
+    private static Book fromCsv(List<String> fields) {
+        if (fields.size() != COLUMNS.length) {
+            throw new IllegalArgumentException("Expected " + COLUMNS.length + " fields, got " + fields.size());
+        }
+        Map<String, String> values = new HashMap<>();
+        for (int i = 0; i < COLUMNS.length; i++) {
+            values.put(COLUMNS[i], fields.get(i).trim());
+        }
+        return toBook(values);
+    }
+
+    private static Book fromJson(String line) {
+        Map<String, String> values = new JsonLine(line).parseObject();
+        if (!values.containsKey("publish_year") && values.containsKey("publishYear")) {
+            values.put("publish_year", values.get("publishYear"));
+        }
+        return toBook(values);
+    }
+
+    private static Book toBook(Map<String, String> values) {
+        Book book = new Book();
+        book.setCategory(text(values, "category"));
+        book.setTitle(text(values, "title"));
+        book.setPress(text(values, "press"));
+        book.setAuthor(text(values, "author"));
+        try {
+            book.setPublishYear(Integer.parseInt(required(values, "publish_year")));
+            book.setPrice(Double.parseDouble(required(values, "price")));
+            book.setStock(Integer.parseInt(required(values, "stock")));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid number: " + e.getMessage());
+        }
+        if (!(book.getPrice() >= 0) || book.getStock() < 0) {
+            throw new IllegalArgumentException("Price and stock must not be negative");
+        }
+        return book;
+    }
+
+    private static String text(Map<String, String> values, String column) {
+        String value = required(values, column);
+        if (value.isEmpty() || value.length() > MAX_FIELD_LENGTH) {
+            throw new IllegalArgumentException(column + " must have 1 to " + MAX_FIELD_LENGTH + " characters");
+        }
+        return value;
+    }
+
+    private static String required(Map<String, String> values, String column) {
+        String value = values.get(column);
+        if (value == null) {
+            throw new IllegalArgumentException("Missing " + column);
+        }
+        return value;
+    }
+
+    /* just enough json for one flat object of strings & numbers per line */
+    private static final class JsonLine {
+        private final String s;
+        private int pos;
+
+        JsonLine(String s) {
+            this.s = s;
+        }
+
+        Map<String, String> parseObject() {
+            Map<String, String> values = new HashMap<>();
+            expect('{');
+            if (peek() == '}') {
+                pos++;
+            } else {
+                do {
+                    String key = parseString();
+                    expect(':');
+                    values.put(key, parseValue());
+                } while (consume(','));
+                expect('}');
+            }
+            if (peek() != 0) {
+                throw new IllegalArgumentException("Trailing characters at " + pos);
+            }
+            return values;
+        }
+
+        private String parseValue() {
+            char c = peek();
+            if (c == '"') {
+                return parseString();
+            }
+            int start = pos;
+            while (pos < s.length() && "+-.0123456789eE".indexOf(s.charAt(pos)) >= 0) {
+                pos++;
+            }
+            if (start == pos) {
+                throw new IllegalArgumentException("Expected a string or number at " + pos);
+            }
+            return s.substring(start, pos);
+        }
+
+        private String parseString() {
+            expect('"');
+            StringBuilder sb = new StringBuilder();
+            while (pos < s.length()) {
+                char c = s.charAt(pos++);
+                if (c == '"') {
+                    return sb.toString();
+                }
+                if (c != '\\') {
+                    sb.append(c);
+                    continue;
+                }
+                if (pos >= s.length()) {
+                    break;
+                }
+                char e = s.charAt(pos++);
+                switch (e) {
+                    case 'b': sb.append('\b'); break;
+                    case 'f': sb.append('\f'); break;
+                    case 'n': sb.append('\n'); break;
+                    case 'r': sb.append('\r'); break;
+                    case 't': sb.append('\t'); break;
+                    case 'u':
+                        if (pos + 4 > s.length()) {
+                            throw new IllegalArgumentException("Invalid escape at " + pos);
+                        }
+                        try {
+                            sb.append((char) Integer.parseInt(s.substring(pos, pos + 4), 16));
+                        } catch (NumberFormatException ex) {
+                            throw new IllegalArgumentException("Invalid escape at " + pos);
+                        }
+                        pos += 4;
+                        break;
+                    default: sb.append(e);
+                }
+            }
+            throw new IllegalArgumentException("Unterminated string");
+        }
+
+        /* next non-blank char, 0 at the end */
+        private char peek() {
+            while (pos < s.length() && Character.isWhitespace(s.charAt(pos))) {
+                pos++;
+            }
+            return pos < s.length() ? s.charAt(pos) : 0;
+        }
+
+        private boolean consume(char c) {
+            if (peek() == c) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(char c) {
+            if (!consume(c)) {
+                throw new IllegalArgumentException("Expected '" + c + "' at " + pos);
+            }
+        }
+    }
+}
@@ -16,6 +16,18 @@ public final class ConnectConfig {
     private final String password;
     private final String db;
     private final DatabaseType type;
+    /* connection pool settings, timeouts are in milliseconds */
+    private final int poolSize;
+    private final long poolIdleTimeout;
+    private final long poolWaitTimeout;
+    /* max number of prepared statements cached by each connection */
+    private final int statementCacheSize;
+    /* transactions failed by deadlocks or lock timeouts are retried until
+       retryTimeout, waiting a random time up to retryBaseDelay * 2^n
+       (at most retryMaxDelay) before the n-th retry, all in milliseconds */
+    private final long retryTimeout;
+    private final long retryBaseDelay;
+    private final long retryMaxDelay;
 
     public ConnectConfig() throws FileNotFoundException, NullPointerException, ClassNotFoundException {
         URL res = ConnectConfig.class.getClassLoader().getResource("application.yaml");
@@ -32,6 +44,14 @@ public final class ConnectConfig {
         password = (String)objectMap.getOrDefault("password", "");
         db = (String)objectMap.getOrDefault("db", "library");
         type = DatabaseType.instance((String)objectMap.getOrDefault("type", "mysql"));
+        poolSize = (int) number(objectMap.get("poolSize"),
+                Math.max(4, Runtime.getRuntime().availableProcessors() * 2));
+        poolIdleTimeout = number(objectMap.get("poolIdleTimeout"), 60000);
+        poolWaitTimeout = number(objectMap.get("poolWaitTimeout"), 30000);
+        statementCacheSize = (int) number(objectMap.get("statementCacheSize"), 64);
+        retryTimeout = number(objectMap.get("retryTimeout"), 2000);
+        retryBaseDelay = number(objectMap.get("retryBaseDelay"), 5);
+        retryMaxDelay = number(objectMap.get("retryMaxDelay"), 200);
         /* load database connect driver */
         Class.forName(type.getDriverName());
     }
@@ -44,9 +64,27 @@ public final class ConnectConfig {
                 ", password='" + password + '\'' +
                 ", db='" + db + '\'' +
                 ", type='" + type.toString() + '\'' +
+                ", poolSize=" + poolSize +
+                ", poolIdleTimeout=" + poolIdleTimeout +
+                ", poolWaitTimeout=" + poolWaitTimeout +
+                ", statementCacheSize=" + statementCacheSize +
+                ", retryTimeout=" + retryTimeout +
+                ", retryBaseDelay=" + retryBaseDelay +
+                ", retryMaxDelay=" + retryMaxDelay +
                 '}';
     }
 
+    /* yaml gives us either a number or a string, depending on how it was written */
+    private static long number(Object value, long defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        return Long.parseLong(value.toString().trim());
+    }
+
     public String getHost() {
         return host;
     }
@@ -70,4 +108,32 @@ public final class ConnectConfig {
     public DatabaseType getType() {
         return type;
     }
+
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    public long getPoolIdleTimeout() {
+        return poolIdleTimeout;
+    }
+
+    public long getPoolWaitTimeout() {
+        return poolWaitTimeout;
+    }
+
+    public int getStatementCacheSize() {
+        return statementCacheSize;
+    }
+
+    public long getRetryTimeout() {
+        return retryTimeout;
+    }
+
+    public long getRetryBaseDelay() {
+        return retryBaseDelay;
+    }
+
+    public long getRetryMaxDelay() {
+        return retryMaxDelay;
+    }
 }
@@ -5,8 +5,11 @@ public interface DBInitializer {
     String sqlDropBook();
     String sqlDropCard();
     String sqlDropBorrow();
+    String sqlDropBookTrigram();
     String sqlCreateBook();
     String sqlCreateCard();
     String sqlCreateBorrow();
+    /* inverted index of fuzzy matched columns, see queries.Trigrams */
+    String sqlCreateBookTrigram();
 
 }
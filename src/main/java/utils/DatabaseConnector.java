@@ -2,54 +2,228 @@ package utils;
 
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * A bounded pool of JDBC connections.
+ *
+ * Note:
+ *      (1) connect() opens the pool and release() closes it, every
+ *          operation borrows one connection by acquire() and gives
+ *          it back by release(conn) when it is done.
+ *      (2) idle connections are handed out in LIFO order, so the
+ *          ones at the tail of the deque are the coldest and are
+ *          evicted once they have been idle for poolIdleTimeout.
+ *      (3) a connection that has been idle for a while is validated
+ *          before it is handed out again.
+ *      (4) every connection keeps its own cache of prepared statements,
+ *          see {@link #prepare(Connection, String)}.
+ */
 public class DatabaseConnector {
 
+    /* connections used within this window are not validated again */
+    private static final long VALIDATION_BYPASS_WINDOW = 500;
+    private static final int VALIDATION_TIMEOUT_SECONDS = 3;
+
+    private final class PooledConnection {
+        private final Connection conn;
+        private final StatementCache statements;
+        private long lastUsed;
+
+        private PooledConnection(Connection conn) {
+            this.conn = conn;
+            this.statements = new StatementCache(conn, conf.getStatementCacheSize(),
+                    statementCacheHits, statementCacheMisses, statementCacheEvictions);
+            this.lastUsed = System.currentTimeMillis();
+        }
+    }
+
     private final ConnectConfig conf;
-    private Connection conn;
+    private final AtomicLong statementCacheHits = new AtomicLong();
+    private final AtomicLong statementCacheMisses = new AtomicLong();
+    private final AtomicLong statementCacheEvictions = new AtomicLong();
+    private final BlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<>();
+    private final Map<Connection, PooledConnection> inUse = new ConcurrentHashMap<>();
+    private final Semaphore permits;
+    private volatile boolean open;
 
     public DatabaseConnector(ConnectConfig conf) {
         this.conf = conf;
+        this.permits = new Semaphore(conf.getPoolSize(), true);
     }
 
-    public boolean connect() {
-        if (conn != null) {
+    public synchronized boolean connect() {
+        if (open) {
             return false;
         }
         try {
-            String url = conf.getType().url(conf.getHost(), conf.getPort(), conf.getDB());
-            conn = DriverManager.getConnection(url, conf.getUser(), conf.getPassword());
-            if (conn != null) {
-                /* Note: you need to connect & release trx explicitly */
-                conn.setAutoCommit(false);
-                return true;
-            }
+            /* open the first connection eagerly so that bad configs fail here */
+            idle.offerFirst(new PooledConnection(newConnection()));
+            open = true;
+            return true;
         } catch (Exception e) {
             e.printStackTrace();
         }
         return false;
     }
 
-    public boolean release() {
-        if (conn == null) {
+    public synchronized boolean release() {
+        if (!open) {
             return false;
         }
+        open = false;
+        boolean ok = true;
+        PooledConnection entry;
+        while ((entry = idle.pollFirst()) != null) {
+            ok &= close(entry);
+        }
+        /* connections still in use are closed when they are given back */
+        return ok;
+    }
+
+    /**
+     * borrow a connection from the pool, wait at most poolWaitTimeout
+     * if all connections are in use.
+     */
+    public Connection acquire() throws SQLException {
+        if (!open) {
+            throw new SQLException("Database is not connected");
+        }
         try {
-            conn.close();
-            conn = null;
-            return true;
+            if (!permits.tryAcquire(conf.getPoolWaitTimeout(), TimeUnit.MILLISECONDS)) {
+                throw new SQLException("Timed out waiting for a database connection");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection", e);
+        }
+        try {
+            evictIdle();
+            PooledConnection entry;
+            while ((entry = idle.pollFirst()) != null) {
+                if (isUsable(entry)) {
+                    break;
+                }
+                close(entry);
+            }
+            if (entry == null) {
+                entry = new PooledConnection(newConnection());
+            }
+            inUse.put(entry.conn, entry);
+            return entry.conn;
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * give a connection back to the pool. the caller must have
+     * committed or rolled back its transaction before.
+     */
+    public boolean release(Connection conn) {
+        PooledConnection entry = inUse.remove(conn);
+        if (entry == null) {
+            return false;
+        }
+        try {
+            if (!open || conn.isClosed()) {
+                close(entry);
+            } else {
+                entry.lastUsed = System.currentTimeMillis();
+                idle.offerFirst(entry);
+            }
         } catch (SQLException e) {
-            e.printStackTrace();
+            close(entry);
+        } finally {
+            permits.release();
         }
-        return false;
+        return true;
     }
 
-    public Connection getConn() {
-        return conn;
+    /**
+     * get a prepared statement of the given sql from the cache of an
+     * acquired connection, the statement must not be closed by caller.
+     */
+    public PreparedStatement prepare(Connection conn, String sql) throws SQLException {
+        return prepare(conn, sql, Statement.NO_GENERATED_KEYS);
+    }
+
+    public PreparedStatement prepare(Connection conn, String sql, int autoGeneratedKeys) throws SQLException {
+        PooledConnection entry = inUse.get(conn);
+        if (entry == null) {
+            throw new SQLException("Connection is not acquired from this pool");
+        }
+        return entry.statements.prepare(sql, autoGeneratedKeys);
     }
 
     public ConnectConfig getConf() {
         return conf;
     }
+
+    public long getStatementCacheHits() {
+        return statementCacheHits.get();
+    }
+
+    public long getStatementCacheMisses() {
+        return statementCacheMisses.get();
+    }
+
+    public long getStatementCacheEvictions() {
+        return statementCacheEvictions.get();
+    }
+
+    /* number of connections currently opened by this pool */
+    public int getPoolCount() {
+        return idle.size() + inUse.size();
+    }
+
+    private Connection newConnection() throws SQLException {
+        String url = conf.getType().url(conf.getHost(), conf.getPort(), conf.getDB());
+        Connection conn = DriverManager.getConnection(url, conf.getUser(), conf.getPassword());
+        /* Note: you need to connect & release trx explicitly */
+        conn.setAutoCommit(false);
+        return conn;
+    }
+
+    private boolean isUsable(PooledConnection entry) {
+        if (System.currentTimeMillis() - entry.lastUsed < VALIDATION_BYPASS_WINDOW) {
+            return true;
+        }
+        try {
+            return entry.conn.isValid(VALIDATION_TIMEOUT_SECONDS);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private void evictIdle() {
+        long deadline = System.currentTimeMillis() - conf.getPoolIdleTimeout();
+        PooledConnection coldest;
+        while ((coldest = idle.peekLast()) != null && coldest.lastUsed < deadline) {
+            if (idle.removeLastOccurrence(coldest)) {
+                close(coldest);
+            }
+        }
+    }
+
+    private boolean close(PooledConnection entry) {
+        try {
+            entry.statements.clear();
+            entry.conn.close();
+            return true;
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return false;
+    }
 }
@@ -1,15 +1,21 @@
 package utils;
 
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+
 public enum DatabaseType {
-    MYSQL("mysql", "com.mysql.cj.jdbc.Driver", new MysqlInitializer()),
+    MYSQL("mysql", "com.mysql.cj.jdbc.Driver", new MysqlInitializer(), new MysqlBulkLoader()),
     // TODO: to be updated
-    POSTGRES("postgresql", "org.postgresql.Driver", new MysqlInitializer()),
-    SQLSERVER("sqlserver", "com.microsoft.sqlserver.jdbc.SQLServerDriver", new SqlServerInitializer());
+    POSTGRES("postgresql", "org.postgresql.Driver", new MysqlInitializer(), new PostgresBulkLoader()),
+    SQLSERVER("sqlserver", "com.microsoft.sqlserver.jdbc.SQLServerDriver", new SqlServerInitializer(), new SqlServerBulkLoader());
 
-    DatabaseType(String typeName, String driverName, DBInitializer dbInitializer) {
+    DatabaseType(String typeName, String driverName, DBInitializer dbInitializer, BulkLoader bulkLoader) {
         this.typeName = typeName;
         this.driverName = driverName;
         this.dbInitializer = dbInitializer;
+        this.bulkLoader = bulkLoader;
     }
 
     @Override
@@ -25,12 +31,80 @@ public enum DatabaseType {
             case SQLSERVER:
                 return String.format("jdbc:sqlserver://%s:%s;DatabaseName=%s;encrypt=false", host, port, db);
             case MYSQL:
+                /* server side statements, so that cached statements skip parsing, local infile only from the directory of the bulk loader */
+                return String.format("jdbc:%s://%s:%s/%s?useServerPrepStmts=true&allowLoadLocalInfileInPath=%s", typeName, host, port, db,
+                        encode(MysqlBulkLoader.LOCAL_INFILE_DIR.toAbsolutePath().toString()));
             case POSTGRES:
                 return String.format("jdbc:%s://%s:%s/%s", typeName, host, port, db);
         }
         return null;
     }
 
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, StandardCharsets.UTF_8.name()).replace("+", "%20");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /* clause appended after ORDER BY to take the first ? rows */
+    public String limitClause() {
+        if (this == SQLSERVER) {
+            return " OFFSET 0 ROWS FETCH NEXT ? ROWS ONLY";
+        }
+        return " LIMIT ?";
+    }
+
+    /*
+     * fetch size to stream a forward-only result set, mysql only streams
+     * rows one by one with Integer.MIN_VALUE and buffers everything else.
+     */
+    public int streamingFetchSize(int fetchSize) {
+        if (this == MYSQL) {
+            return Integer.MIN_VALUE;
+        }
+        return fetchSize;
+    }
+
+    /*
+     * whether e (or any exception chained to it) is a deadlock, a
+     * serialization failure or a lock timeout, i.e. the transaction
+     * failed only because of concurrent ones and can simply run again.
+     */
+    public boolean isTransient(SQLException e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof SQLException) {
+                for (SQLException s = (SQLException) t; s != null; s = s.getNextException()) {
+                    if (isTransientCode(s)) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    private boolean isTransientCode(SQLException e) {
+        String state = e.getSQLState();
+        // serialization failure & deadlock detected, as the sql standard & postgres name them
+        if ("40001".equals(state) || "40P01".equals(state)) {
+            return true;
+        }
+        switch (this) {
+            case MYSQL:
+                // ER_LOCK_DEADLOCK, ER_LOCK_WAIT_TIMEOUT
+                return e.getErrorCode() == 1213 || e.getErrorCode() == 1205;
+            case SQLSERVER:
+                // chosen as deadlock victim, lock request time out
+                return e.getErrorCode() == 1205 || e.getErrorCode() == 1222;
+            case POSTGRES:
+                // lock_not_available
+                return "55P03".equals(state);
+        }
+        return false;
+    }
+
     public static DatabaseType instance(String typeName) throws IllegalArgumentException {
         for (DatabaseType type : DatabaseType.values()) {
             if (type.typeName.equals(typeName.toLowerCase())) {
@@ -52,8 +126,13 @@ public enum DatabaseType {
         return dbInitializer;
     }
 
+    public BulkLoader getBulkLoader() {
+        return bulkLoader;
+    }
+
     private final String typeName;
     private final String driverName;
     private final DBInitializer dbInitializer;
+    private final BulkLoader bulkLoader;
 
 };
\ No newline at end of file
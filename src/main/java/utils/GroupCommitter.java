@@ -0,0 +1,260 @@
+package utils;
+
+import queries.ApiResult;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces short write transactions of concurrent callers into shared
+ * commits, so that one log flush is paid for a whole group of them.
+ *
+ * Note:
+ *      (1) a single committer thread takes the first waiting transaction,
+ *          collects more for up to the window, runs them one after another
+ *          on one connection, each under its own savepoint, and commits
+ *          once. callers are woken up only after that commit.
+ *      (2) a transaction whose result is not ok, or which throws, is rolled
+ *          back to its savepoint and does not affect the others.
+ *      (3) if the group as a whole fails (a deadlock, a lock timeout or a
+ *          failed commit), everything is rolled back and {@link #submit}
+ *          returns null to each caller, who has to run its transaction
+ *          on its own.
+ */
+public class GroupCommitter implements AutoCloseable {
+
+    /* same contract as a transaction of the library, must not commit */
+    public interface Transaction {
+        ApiResult run(Connection conn) throws Exception;
+    }
+
+    private static final class Pending {
+        final Transaction trx;
+        final CompletableFuture<ApiResult> result = new CompletableFuture<>();
+        ApiResult tentative;
+
+        Pending(Transaction trx) {
+            this.trx = trx;
+        }
+    }
+
+    /* tells the committer thread to stop */
+    private static final Pending STOP = new Pending(null);
+
+    private final DatabaseConnector connector;
+    private final long windowNanos;
+    private final int maxGroupSize;
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final Thread committer;
+    private boolean closed;   /* guarded by queue */
+    private final AtomicLong groups = new AtomicLong();
+    private final AtomicLong transactions = new AtomicLong();
+    private final AtomicLong aborts = new AtomicLong();
+    private volatile Exception lastAbortCause;
+
+    /**
+     * @param windowMicros how long the first transaction of a group waits for others
+     * @param maxGroupSize a group is run as soon as it has that many transactions
+     */
+    public GroupCommitter(DatabaseConnector connector, long windowMicros, int maxGroupSize) {
+        if (windowMicros < 0 || maxGroupSize <= 0) {
+            throw new IllegalArgumentException("Invalid group commit window or size");
+        }
+        this.connector = connector;
+        this.windowNanos = windowMicros * 1000L;
+        this.maxGroupSize = maxGroupSize;
+        this.committer = new Thread(this::loop, "group-committer");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    /**
+     * run trx in the next group and wait until the group is committed.
+     *
+     * @return the result of trx, or null if it has to be run on its own
+     */
+    public ApiResult submit(Transaction trx) {
+        Pending pending = new Pending(trx);
+        // nothing is queued behind STOP, see close()
+        synchronized (queue) {
+            if (closed) {
+                return null;
+            }
+            queue.add(pending);
+        }
+        // the group may already hold trx, so wait even if interrupted
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return pending.result.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    return null;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /* run what is queued, then stop the committer thread */
+    @Override
+    public void close() {
+        synchronized (queue) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            queue.add(STOP);
+        }
+        // callers are still waiting for the queued groups, so wait even if interrupted
+        boolean interrupted = false;
+        while (true) {
+            try {
+                committer.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public long getGroups() {
+        return groups.get();
+    }
+
+    public long getTransactions() {
+        return transactions.get();
+    }
+
+    /* groups rolled back as a whole and handed back to their callers */
+    public long getAborts() {
+        return aborts.get();
+    }
+
+    /* why the last group was aborted, a failed rollback is attached as suppressed; null if none was */
+    public Exception getLastAbortCause() {
+        return lastAbortCause;
+    }
+
+    public double getAverageGroupSize() {
+        long n = groups.get();
+        return n == 0 ? 0 : (double) transactions.get() / n;
+    }
+
+    private void loop() {
+        boolean stopping = false;
+        while (!stopping) {
+            List<Pending> group = new ArrayList<>();
+            try {
+                Pending first = queue.take();
+                if (first == STOP) {
+                    break;
+                }
+                group.add(first);
+                long deadline = System.nanoTime() + windowNanos;
+                while (group.size() < maxGroupSize) {
+                    long wait = deadline - System.nanoTime();
+                    Pending next = wait > 0 ? queue.poll(wait, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    if (next == STOP) {
+                        stopping = true;
+                        break;
+                    }
+                    group.add(next);
+                }
+            } catch (InterruptedException e) {
+                stopping = true;
+            }
+            if (!group.isEmpty()) {
+                runGroup(group);
+            }
+        }
+        // left over if the thread was interrupted, let the callers run them on their own
+        for (Pending pending; (pending = queue.poll()) != null; ) {
+            pending.result.complete(null);
+        }
+    }
+
+    private void runGroup(List<Pending> group) {
+        Connection conn;
+        try {
+            conn = connector.acquire();
+        } catch (SQLException e) {
+            abort(group, e);
+            return;
+        }
+        try {
+            for (Pending pending : group) {
+                Savepoint savepoint = conn.setSavepoint();
+                try {
+                    pending.tentative = pending.trx.run(conn);
+                } catch (SQLException e) {
+                    if (connector.getConf().getType().isTransient(e)) {
+                        // the database may have rolled back the whole transaction
+                        throw e;
+                    }
+                    pending.tentative = new ApiResult(false, e.getMessage());
+                } catch (Exception e) {
+                    pending.tentative = new ApiResult(false, e.getMessage());
+                }
+                // savepoints of kept transactions are released by the commit
+                if (!pending.tentative.ok) {
+                    conn.rollback(savepoint);
+                }
+            }
+            conn.commit();
+        } catch (Exception e) {
+            try {
+                conn.rollback();
+            } catch (SQLException ex) {
+                // state of the connection is unknown, do not give it back to the pool as is
+                e.addSuppressed(ex);
+                closeQuietly(conn);
+            }
+            connector.release(conn);
+            abort(group, e);
+            return;
+        }
+        connector.release(conn);
+        groups.incrementAndGet();
+        transactions.addAndGet(group.size());
+        for (Pending pending : group) {
+            pending.result.complete(pending.tentative);
+        }
+    }
+
+    private void abort(List<Pending> group, Exception cause) {
+        lastAbortCause = cause;
+        aborts.incrementAndGet();
+        for (Pending pending : group) {
+            pending.result.complete(null);
+        }
+    }
+
+    private static void closeQuietly(Connection conn) {
+        try {
+            conn.close();
+        } catch (SQLException ignored) {
+            // already broken
+        }
+    }
+}
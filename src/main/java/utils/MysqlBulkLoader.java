@@ -0,0 +1,91 @@
+package utils;
+
+import com.mysql.cj.conf.PropertyKey;
+import com.mysql.cj.conf.RuntimeProperty;
+import com.mysql.cj.jdbc.JdbcConnection;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.List;
+
+/**
+ * LOAD DATA LOCAL INFILE from a temporary file in {@link #LOCAL_INFILE_DIR}.
+ * needs allowLoadLocalInfileInPath on the connection (see
+ * {@link DatabaseType#url}) and local_infile on the server.
+ *
+ * Note:
+ *      (1) the connection is not given allowLoadLocalInfile, which would
+ *          let the server read any file the process can read; the driver
+ *          only sends files under allowLoadLocalInfileInPath.
+ *      (2) the file is deleted once the statement has run.
+ */
+public class MysqlBulkLoader implements BulkLoader {
+
+    public static final Path LOCAL_INFILE_DIR = Paths.get(System.getProperty("java.io.tmpdir"), "library-bulk-load");
+
+    @Override
+    public long load(Connection conn, String table, String[] columns, List<Object[]> rows) throws SQLException {
+        if (rows.isEmpty()) {
+            return 0;
+        }
+        if (!conn.isWrapperFor(JdbcConnection.class)) {
+            throw new SQLFeatureNotSupportedException("Not a MySQL Connector/J connection");
+        }
+        RuntimeProperty<String> safePath = conn.unwrap(JdbcConnection.class).getPropertySet()
+                .getStringProperty(PropertyKey.allowLoadLocalInfileInPath);
+        if (!safePath.isExplicitlySet() || !LOCAL_INFILE_DIR.toAbsolutePath().normalize()
+                .startsWith(Paths.get(safePath.getValue()).toAbsolutePath().normalize())) {
+            throw new SQLFeatureNotSupportedException("Local infile is not allowed from " + LOCAL_INFILE_DIR);
+        }
+        Path file = null;
+        try {
+            try {
+                Files.createDirectories(LOCAL_INFILE_DIR);
+                file = Files.createTempFile(LOCAL_INFILE_DIR, "rows", ".tsv");
+                Files.write(file, BulkLoader.toText(rows));
+            } catch (IOException e) {
+                throw new SQLFeatureNotSupportedException("Failed to write rows to " + LOCAL_INFILE_DIR, e);
+            }
+            String path = file.toAbsolutePath().toString().replace("\\", "\\\\").replace("'", "\\'");
+            String sql = "LOAD DATA LOCAL INFILE '" + path + "' INTO TABLE `" + table + "` CHARACTER SET utf8mb4" +
+                    " FIELDS TERMINATED BY '\\t' ESCAPED BY '\\\\' LINES TERMINATED BY '\\n'" +
+                    " (`" + String.join("`, `", columns) + "`)";
+            return execute(conn, sql, table, rows.size());
+        } finally {
+            if (file != null) {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException ignored) {
+                    // a leftover file in the temporary directory
+                }
+            }
+        }
+    }
+
+    private static long execute(Connection conn, String sql, String table, int expected) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            long loaded;
+            try {
+                loaded = stmt.executeUpdate(sql);
+            } catch (SQLException e) {
+                // ER_NOT_ALLOWED_COMMAND, ER_CLIENT_LOCAL_FILES_DISABLED, or refused by the driver
+                if (e.getErrorCode() == 1148 || e.getErrorCode() == 3948
+                        || (e.getErrorCode() == 0 && String.valueOf(e.getMessage()).contains("LOAD DATA LOCAL INFILE"))) {
+                    throw new SQLFeatureNotSupportedException(e.getMessage(), e);
+                }
+                throw e;
+            }
+            // duplicates are skipped with a warning rather than failing the statement
+            if (loaded != expected) {
+                throw BulkLoader.rowCountMismatch(table, loaded, expected);
+            }
+            return loaded;
+        }
+    }
+}
@@ -17,6 +17,11 @@ public class MysqlInitializer implements DBInitializer {
         return "drop table if exists `borrow`;";
     }
 
+    @Override
+    public String sqlDropBookTrigram() {
+        return "drop table if exists `book_trigram`;";
+    }
+
     @Override
     public String sqlCreateBook() {
         return "create table `book` (\n" +
@@ -54,8 +59,21 @@ public class MysqlInitializer implements DBInitializer {
                 "  `borrow_time` bigint not null,\n" +
                 "  `return_time` bigint not null default 0,\n" +
                 "  primary key (`card_id`, `book_id`, `borrow_time`),\n" +
+                "  key `ix_borrow_card_time` (`card_id`, `borrow_time` desc, `book_id`),\n" +
                 "  foreign key (`card_id`) references `card`(`card_id`) on delete cascade on update cascade,\n" +
                 "  foreign key (`book_id`) references `book`(`book_id`) on delete cascade on update cascade\n" +
                 ") engine=innodb charset=utf8mb4;";
     }
+
+    @Override
+    public String sqlCreateBookTrigram() {
+        return "create table `book_trigram` (\n" +
+                "  `field` char(1) not null,\n" +
+                "  `trigram` varbinary(12) not null,\n" +
+                "  `book_id` int not null,\n" +
+                "  primary key (`field`, `trigram`, `book_id`),\n" +
+                "  key (`book_id`),\n" +
+                "  foreign key (`book_id`) references `book`(`book_id`) on delete cascade on update cascade\n" +
+                ") engine=innodb charset=utf8mb4;";
+    }
 }
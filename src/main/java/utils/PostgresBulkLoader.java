@@ -0,0 +1,39 @@
+package utils;
+
+import org.postgresql.copy.CopyManager;
+import org.postgresql.core.BaseConnection;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.List;
+
+/**
+ * COPY ... FROM STDIN in text format through the CopyManager of the driver.
+ */
+public class PostgresBulkLoader implements BulkLoader {
+
+    @Override
+    public long load(Connection conn, String table, String[] columns, List<Object[]> rows) throws SQLException {
+        if (rows.isEmpty()) {
+            return 0;
+        }
+        if (!conn.isWrapperFor(BaseConnection.class)) {
+            throw new SQLFeatureNotSupportedException("Not a PostgreSQL driver connection");
+        }
+        String sql = "COPY " + table + " (" + String.join(", ", columns) + ") FROM STDIN";
+        CopyManager copy = new CopyManager(conn.unwrap(BaseConnection.class));
+        long loaded;
+        try {
+            loaded = copy.copyIn(sql, new ByteArrayInputStream(BulkLoader.toText(rows)));
+        } catch (IOException e) {
+            throw new SQLException(e);
+        }
+        if (loaded != rows.size()) {
+            throw BulkLoader.rowCountMismatch(table, loaded, rows.size());
+        }
+        return loaded;
+    }
+}
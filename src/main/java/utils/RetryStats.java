@@ -0,0 +1,73 @@
+package utils;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Retry counters of each operation, e.g. "borrowBook".
+ */
+public class RetryStats {
+
+    public static final class Counters {
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder retries = new LongAdder();
+        private final LongAdder exhausted = new LongAdder();
+        private final LongAdder waitMillis = new LongAdder();
+
+        /* number of times the operation ran, retries not included */
+        public long getCalls() {
+            return calls.sum();
+        }
+
+        /* number of transactions run again after a transient failure */
+        public long getRetries() {
+            return retries.sum();
+        }
+
+        /* number of calls which still failed transiently at the deadline */
+        public long getExhausted() {
+            return exhausted.sum();
+        }
+
+        /* total time slept between attempts */
+        public long getWaitMillis() {
+            return waitMillis.sum();
+        }
+
+        @Override
+        public String toString() {
+            return "Counters {" + "calls=" + getCalls() +
+                    ", retries=" + getRetries() +
+                    ", exhausted=" + getExhausted() +
+                    ", waitMillis=" + getWaitMillis() +
+                    '}';
+        }
+    }
+
+    private final ConcurrentHashMap<String, Counters> operations = new ConcurrentHashMap<>();
+
+    public Counters of(String operation) {
+        return operations.computeIfAbsent(operation, k -> new Counters());
+    }
+
+    /* live view, operation -> counters */
+    public Map<String, Counters> getOperations() {
+        return Collections.unmodifiableMap(operations);
+    }
+
+    public void recordCall(String operation) {
+        of(operation).calls.increment();
+    }
+
+    public void recordRetry(String operation, long waitMillis) {
+        Counters counters = of(operation);
+        counters.retries.increment();
+        counters.waitMillis.add(waitMillis);
+    }
+
+    public void recordExhausted(String operation) {
+        of(operation).exhausted.increment();
+    }
+}
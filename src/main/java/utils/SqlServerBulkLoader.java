@@ -0,0 +1,125 @@
+package utils;
+
+import com.microsoft.sqlserver.jdbc.ISQLServerBulkData;
+import com.microsoft.sqlserver.jdbc.SQLServerBulkCopy;
+import com.microsoft.sqlserver.jdbc.SQLServerBulkCopyOptions;
+import com.microsoft.sqlserver.jdbc.SQLServerConnection;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Types;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * SQLServerBulkCopy of the driver, it joins the open transaction of the
+ * connection. check constraints are enforced as they are for inserts.
+ */
+public class SqlServerBulkLoader implements BulkLoader {
+
+    /* the rows as a bulk copy source, column ordinals are 1-based */
+    private static class Rows implements ISQLServerBulkData {
+        private static final long serialVersionUID = 1L;
+
+        private final String[] columns;
+        private final List<Object[]> rows;
+        private final int[] types;
+        private int next;
+
+        Rows(String[] columns, List<Object[]> rows) {
+            this.columns = columns;
+            this.rows = rows;
+            this.types = new int[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                types[i] = columnType(rows, i);
+            }
+        }
+
+        /* the type of the first non-null value of the column */
+        private static int columnType(List<Object[]> rows, int i) {
+            for (Object[] row : rows) {
+                Object value = row[i];
+                if (value instanceof Integer) {
+                    return Types.INTEGER;
+                }
+                if (value instanceof Double) {
+                    return Types.DOUBLE;
+                }
+                if (value != null) {
+                    return Types.NVARCHAR;
+                }
+            }
+            return Types.NVARCHAR;
+        }
+
+        @Override
+        public Set<Integer> getColumnOrdinals() {
+            Set<Integer> ordinals = new LinkedHashSet<>();
+            for (int i = 1; i <= columns.length; i++) {
+                ordinals.add(i);
+            }
+            return ordinals;
+        }
+
+        @Override
+        public String getColumnName(int column) {
+            return columns[column - 1];
+        }
+
+        @Override
+        public int getColumnType(int column) {
+            return types[column - 1];
+        }
+
+        @Override
+        public int getPrecision(int column) {
+            return types[column - 1] == Types.NVARCHAR ? 4000 : 0;
+        }
+
+        @Override
+        public int getScale(int column) {
+            return 0;
+        }
+
+        @Override
+        public Object[] getRowData() {
+            return rows.get(next - 1);
+        }
+
+        @Override
+        public boolean next() {
+            if (next == rows.size()) {
+                return false;
+            }
+            next++;
+            return true;
+        }
+    }
+
+    @Override
+    public long load(Connection conn, String table, String[] columns, List<Object[]> rows) throws SQLException {
+        if (rows.isEmpty()) {
+            return 0;
+        }
+        if (!conn.isWrapperFor(SQLServerConnection.class)) {
+            throw new SQLFeatureNotSupportedException("Not a SQL Server driver connection");
+        }
+        SQLServerBulkCopy copy = new SQLServerBulkCopy(conn.unwrap(SQLServerConnection.class));
+        try {
+            SQLServerBulkCopyOptions options = new SQLServerBulkCopyOptions();
+            options.setCheckConstraints(true);
+            options.setBatchSize(0);
+            copy.setBulkCopyOptions(options);
+            copy.setDestinationTableName(table);
+            for (String column : columns) {
+                copy.addColumnMapping(column, column);
+            }
+            copy.writeToServer(new Rows(columns, rows));
+        } finally {
+            copy.close();
+        }
+        return rows.size();
+    }
+}
@@ -17,6 +17,11 @@ public class SqlServerInitializer implements DBInitializer {
         return "IF OBJECT_ID('dbo.borrow', 'U') IS NOT NULL DROP TABLE dbo.borrow;";
     }
 
+    @Override
+    public String sqlDropBookTrigram() {
+        return "IF OBJECT_ID('dbo.book_trigram', 'U') IS NOT NULL DROP TABLE dbo.book_trigram;";
+    }
+
     @Override
     public String sqlCreateBook() {
         return "create table book (\n" +
@@ -54,8 +59,21 @@ public class SqlServerInitializer implements DBInitializer {
                 "    borrow_time bigint not null,\n" +
                 "    return_time bigint not null default 0,\n" +
                 "    primary key (card_id, book_id, borrow_time),\n" +
+                "    index ix_borrow_card_time (card_id, borrow_time desc, book_id),\n" +
                 "    foreign key (card_id) references card(card_id) on delete cascade on update cascade,\n" +
                 "    foreign key (book_id) references book(book_id) on delete cascade on update cascade\n" +
                 ");";
     }
+
+    @Override
+    public String sqlCreateBookTrigram() {
+        return "create table book_trigram (\n" +
+                "    field char(1) not null,\n" +
+                "    trigram varbinary(12) not null,\n" +
+                "    book_id int not null,\n" +
+                "    primary key (field, trigram, book_id),\n" +
+                "    index ix_book_trigram_book_id (book_id),\n" +
+                "    foreign key (book_id) references book(book_id) on delete cascade on update cascade\n" +
+                ");";
+    }
 }
@@ -0,0 +1,78 @@
+package utils;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded LRU cache of prepared statements owned by one pooled
+ * connection, keyed by sql text.
+ *
+ * Note:
+ *      (1) a connection is used by one thread at a time, so the
+ *          cache itself is not synchronized.
+ *      (2) statements handed out by the cache must not be closed
+ *          by the caller, they are closed on eviction or when the
+ *          connection leaves the pool.
+ */
+final class StatementCache {
+
+    private final Connection conn;
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+    private final AtomicLong evictions;
+    private final LinkedHashMap<String, PreparedStatement> statements;
+
+    StatementCache(Connection conn, int capacity, AtomicLong hits, AtomicLong misses, AtomicLong evictions) {
+        this.conn = conn;
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                if (size() <= capacity) {
+                    return false;
+                }
+                close(eldest.getValue());
+                StatementCache.this.evictions.incrementAndGet();
+                return true;
+            }
+        };
+    }
+
+    PreparedStatement prepare(String sql, int autoGeneratedKeys) throws SQLException {
+        String key = autoGeneratedKeys == Statement.RETURN_GENERATED_KEYS ? "#keys#" + sql : sql;
+        PreparedStatement stmt = statements.get(key);
+        if (stmt != null && !stmt.isClosed()) {
+            hits.incrementAndGet();
+            /* a failed operation may have left params or a half-built batch behind */
+            stmt.clearParameters();
+            stmt.clearBatch();
+            return stmt;
+        }
+        misses.incrementAndGet();
+        stmt = conn.prepareStatement(sql, autoGeneratedKeys);
+        statements.put(key, stmt);
+        return stmt;
+    }
+
+    void clear() {
+        for (PreparedStatement stmt : statements.values()) {
+            close(stmt);
+        }
+        statements.clear();
+    }
+
+    private static void close(PreparedStatement stmt) {
+        try {
+            stmt.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -1,4 +1,5 @@
 drop table if exists `borrow`;
+drop table if exists `book_trigram`;
 drop table if exists `card`;
 drop table if exists `book`;
 
@@ -31,6 +32,16 @@ create table `borrow` (
   `borrow_time` bigint not null,
   `return_time` bigint not null default 0,
   primary key (`card_id`, `book_id`, `borrow_time`),
+  key `ix_borrow_card_time` (`card_id`, `borrow_time` desc, `book_id`),
   foreign key (`card_id`) references `card`(`card_id`) on delete cascade on update cascade,
   foreign key (`book_id`) references `book`(`book_id`) on delete cascade on update cascade
-) engine=innodb charset=utf8mb4;
\ No newline at end of file
+) engine=innodb charset=utf8mb4;
+
+create table `book_trigram` (
+  `field` char(1) not null,
+  `trigram` varbinary(12) not null,
+  `book_id` int not null,
+  primary key (`field`, `trigram`, `book_id`),
+  key (`book_id`),
+  foreign key (`book_id`) references `book`(`book_id`) on delete cascade on update cascade
+) engine=innodb charset=utf8mb4;
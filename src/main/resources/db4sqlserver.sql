@@ -1,4 +1,5 @@
 IF OBJECT_ID('dbo.borrow', 'U') IS NOT NULL DROP TABLE dbo.borrow;
+IF OBJECT_ID('dbo.book_trigram', 'U') IS NOT NULL DROP TABLE dbo.book_trigram;
 IF OBJECT_ID('dbo.book', 'U') IS NOT NULL DROP TABLE dbo.book;
 IF OBJECT_ID('dbo.card', 'U') IS NOT NULL DROP TABLE dbo.card;
 
@@ -31,6 +32,16 @@ create table borrow (
     borrow_time bigint not null,
     return_time bigint not null default 0,
     primary key (card_id, book_id, borrow_time),
+    index ix_borrow_card_time (card_id, borrow_time desc, book_id),
     foreign key (card_id) references card(card_id) on delete cascade on update cascade,
     foreign key (book_id) references book(book_id) on delete cascade on update cascade
-);
\ No newline at end of file
+);
+
+create table book_trigram (
+    field char(1) not null,
+    trigram varbinary(12) not null,
+    book_id int not null,
+    primary key (field, trigram, book_id),
+    index ix_book_trigram_book_id (book_id),
+    foreign key (book_id) references book(book_id) on delete cascade on update cascade
+);
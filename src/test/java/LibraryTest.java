@@ -1,3 +1,9 @@
+import caches.BorrowHistoryCache;
+import caches.CatalogReplica;
+import caches.CompressedBitmap;
+import caches.OpenLoanIndex;
+import caches.QueryResultCache;
+import caches.StockReservations;
 import entities.Book;
 import entities.Borrow;
 import entities.Card;
@@ -9,11 +15,27 @@ import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 import queries.*;
+import utils.CatalogImporter;
 import utils.ConnectConfig;
 import utils.DatabaseConnector;
+import utils.DatabaseType;
+import utils.GroupCommitter;
 import utils.RandomData;
+import utils.RetryStats;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -391,57 +413,583 @@ public class LibraryTest {
         queryConditions.get(14).setSortBy(Book.SortColumn.PUBLISH_YEAR);
         queryConditions.get(14).setSortOrder(SortOrder.DESC);
         /* generate multi query conditions */
-        for (int i = 0; i < 45; i++) {
+        queryConditions.addAll(randomQueryConditions(45));
+        /* loop testing */
+        for (BookQueryConditions queryCondition : queryConditions) {
+            ApiResult queryResult = library.queryBook(queryCondition);
+            Assert.assertTrue(queryResult.ok);
+            BookQueryResults bookResults = (BookQueryResults) queryResult.payload;
+            List<Book> expectedResults = verifyQueryResult(my.books, queryCondition);
+            Assert.assertEquals(expectedResults.size(), bookResults.getCount());
+            for (int i = 0; i < expectedResults.size(); i++) {
+                Book o1 = expectedResults.get(i);
+                Book o2 = bookResults.getResults().get(i);
+                Assert.assertEquals(o1.toString(), o2.toString());
+            }
+        }
+    }
+
+    @Test
+    public void fuzzyQueryBookTest() {
+        MyLibrary my = MyLibrary.createLibrary(library, 300, 0, 0);
+        /* the trigram index follows modify & remove */
+        for (int i = 0; i < 30; i++) {
+            Book b = my.books.get(RandomUtils.nextInt(0, my.books.size()));
+            b.setTitle(b.getTitle() + " Vol" + i);
+            b.setAuthor(RandomData.randomAuthor());
+            Assert.assertTrue(library.modifyBookInfo(b).ok);
+        }
+        for (int i = 0; i < 30; i++) {
+            Book b = my.books.remove(RandomUtils.nextInt(0, my.books.size()));
+            Assert.assertTrue(library.removeBook(b.getBookId()).ok);
+        }
+        /* random substrings, fuzzy matching ignores case */
+        for (int i = 0; i < 100; i++) {
+            Book b = my.books.get(RandomUtils.nextInt(0, my.books.size()));
+            int field = RandomUtils.nextInt(0, 3);
+            String text = field == 0 ? b.getTitle() : field == 1 ? b.getPress() : b.getAuthor();
+            int begin = RandomUtils.nextInt(0, text.length());
+            int end = Math.min(text.length(), begin + RandomUtils.nextInt(1, 8));
+            String pattern = text.substring(begin, end);
+            if (RandomUtils.nextBoolean()) {
+                pattern = pattern.toUpperCase();
+            }
             BookQueryConditions c = new BookQueryConditions();
-            int mask = RandomUtils.nextInt(0, 32);
-            int selected = 0;
-            if ((mask & 1) > 0) {
-                c.setPress(RandomData.randomPress());
-                selected++;
+            if (field == 0) {
+                c.setTitle(pattern);
+            } else if (field == 1) {
+                c.setPress(pattern);
+            } else {
+                c.setAuthor(pattern);
             }
-            if ((mask & 2) > 0) {
+            String lower = pattern.toLowerCase();
+            List<Integer> expectedIds = my.books.stream()
+                    .filter(o -> (field == 0 ? o.getTitle() : field == 1 ? o.getPress() : o.getAuthor())
+                            .toLowerCase().contains(lower))
+                    .map(Book::getBookId).sorted().collect(Collectors.toList());
+            ApiResult queryResult = library.queryBook(c);
+            Assert.assertTrue(queryResult.ok);
+            List<Integer> actualIds = ((BookQueryResults) queryResult.payload).getResults().stream()
+                    .map(Book::getBookId).collect(Collectors.toList());
+            Assert.assertEquals(expectedIds, actualIds);
+        }
+        /* values equal only under the collation are matched as well */
+        Book accented = RandomData.randomBook();
+        accented.setTitle("Café Society");
+        Book plain = RandomData.randomBook();
+        plain.setTitle("Cafe Noir");
+        Assert.assertTrue(library.storeBook(accented).ok);
+        Assert.assertTrue(library.storeBook(plain).ok);
+        for (String pattern : new String[]{"cafe", "CAFÉ", "Café S"}) {
+            BookQueryConditions c = new BookQueryConditions();
+            c.setTitle(pattern);
+            ApiResult queryResult = library.queryBook(c);
+            Assert.assertTrue(queryResult.ok);
+            List<Integer> actualIds = ((BookQueryResults) queryResult.payload).getResults().stream()
+                    .map(Book::getBookId).collect(Collectors.toList());
+            Assert.assertTrue(pattern, actualIds.contains(accented.getBookId()));
+            Assert.assertEquals(pattern, !pattern.endsWith("S"), actualIds.contains(plain.getBookId()));
+        }
+    }
+
+    @Test
+    public void rebuildTrigramIndexTest() throws SQLException {
+        MyLibrary my = MyLibrary.createLibrary(library, 200, 0, 0);
+        /* a database filled before the index existed */
+        Connection conn = connector.acquire();
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute(connectConfig.getType().getDbInitializer().sqlDropBookTrigram());
+            conn.commit();
+        } finally {
+            connector.release(conn);
+        }
+        LibraryManagementSystemImpl legacy = new LibraryManagementSystemImpl(connector);
+        Assert.assertFalse(legacy.isTrigramIndexComplete());
+        /* writes & fuzzy queries work without the index */
+        Book stored = RandomData.randomBook();
+        stored.setTitle("Before The Index");
+        Assert.assertTrue(legacy.storeBook(stored).ok);
+        my.books.add(stored);
+        Book modified = my.books.get(0);
+        modified.setTitle(modified.getTitle() + " Revised");
+        Assert.assertTrue(legacy.modifyBookInfo(modified).ok);
+        checkFuzzyQueries(legacy, my.books);
+        /* the rebuild creates & fills the index, later writes keep it up to date */
+        Assert.assertTrue(legacy.rebuildTrigramIndex().ok);
+        Assert.assertTrue(legacy.isTrigramIndexComplete());
+        Book after = RandomData.randomBook();
+        after.setTitle("After The Index");
+        Assert.assertTrue(legacy.storeBook(after).ok);
+        my.books.add(after);
+        checkFuzzyQueries(legacy, my.books);
+        conn = connector.acquire();
+        try (Statement stmt = conn.createStatement()) {
+            ResultSet rs = stmt.executeQuery("SELECT COUNT(DISTINCT book_id) FROM book_trigram");
+            Assert.assertTrue(rs.next());
+            Assert.assertEquals(my.books.size(), rs.getInt(1));
+            conn.commit();
+        } finally {
+            connector.release(conn);
+        }
+    }
+
+    /* fuzzy title, press & author queries of library give the same books as matching in memory */
+    private void checkFuzzyQueries(LibraryManagementSystem lib, List<Book> books) {
+        for (int i = 0; i < 50; i++) {
+            Book b = books.get(i == 0 ? books.size() - 1 : RandomUtils.nextInt(0, books.size()));
+            int field = RandomUtils.nextInt(0, 3);
+            String text = i == 0 ? b.getTitle() : field == 0 ? b.getTitle() : field == 1 ? b.getPress() : b.getAuthor();
+            int begin = RandomUtils.nextInt(0, text.length());
+            String pattern = text.substring(begin, Math.min(text.length(), begin + RandomUtils.nextInt(3, 8)));
+            BookQueryConditions c = new BookQueryConditions();
+            if (i == 0 || field == 0) {
+                c.setTitle(pattern);
+            } else if (field == 1) {
+                c.setPress(pattern);
+            } else {
+                c.setAuthor(pattern);
+            }
+            String lower = pattern.toLowerCase();
+            List<Integer> expectedIds = books.stream()
+                    .filter(o -> (c.getTitle() != null ? o.getTitle() : c.getPress() != null ? o.getPress()
+                            : o.getAuthor()).toLowerCase().contains(lower))
+                    .map(Book::getBookId).sorted().collect(Collectors.toList());
+            ApiResult queryResult = lib.queryBook(c);
+            Assert.assertTrue(queryResult.ok);
+            List<Integer> actualIds = ((BookQueryResults) queryResult.payload).getResults().stream()
+                    .map(Book::getBookId).collect(Collectors.toList());
+            Assert.assertEquals(pattern, expectedIds, actualIds);
+        }
+    }
+
+    @Test
+    public void queryBookPaginationTest() {
+        /* simply insert some books to database */
+        MyLibrary my = MyLibrary.createLibrary(library, 500, 0, 0);
+        List<BookQueryConditions> queryConditions = new ArrayList<>();
+        for (Book.SortColumn column : Book.SortColumn.values()) {
+            for (SortOrder order : SortOrder.values()) {
+                BookQueryConditions c = new BookQueryConditions();
+                c.setSortBy(column);
+                c.setSortOrder(order);
+                if (RandomUtils.nextBoolean()) {
+                    c.setCategory(RandomData.randomCategory());
+                }
+                queryConditions.add(c);
+            }
+        }
+        /* walk through all pages */
+        for (BookQueryConditions queryCondition : queryConditions) {
+            List<Book> expectedResults = verifyQueryResult(my.books, queryCondition);
+            int pageSize = RandomUtils.nextInt(1, 60);
+            queryCondition.setPageSize(pageSize);
+            List<Book> pagedResults = new ArrayList<>();
+            do {
+                ApiResult queryResult = library.queryBook(queryCondition);
+                Assert.assertTrue(queryResult.ok);
+                BookQueryResults page = (BookQueryResults) queryResult.payload;
+                Assert.assertTrue(page.getCount() <= pageSize);
+                pagedResults.addAll(page.getResults());
+                queryCondition.setPageToken(page.getNextPageToken());
+            } while (queryCondition.getPageToken() != null);
+            Assert.assertEquals(expectedResults.size(), pagedResults.size());
+            for (int i = 0; i < expectedResults.size(); i++) {
+                Assert.assertEquals(expectedResults.get(i).toString(), pagedResults.get(i).toString());
+            }
+        }
+        /* corner case: invalid page size & token */
+        BookQueryConditions c = new BookQueryConditions();
+        c.setPageSize(0);
+        Assert.assertFalse(library.queryBook(c).ok);
+        c.setPageSize(10);
+        c.setPageToken("not a token");
+        Assert.assertFalse(library.queryBook(c).ok);
+    }
+
+    @Test
+    public void queryBookFacetsTest() {
+        MyLibrary my = MyLibrary.createLibrary(library, 500, 0, 0);
+        LibraryManagementSystemImpl replicated = new LibraryManagementSystemImpl(connector);
+        Assert.assertTrue(replicated.enableCatalogReplica().ok);
+        List<BookQueryConditions> queryConditions = randomQueryConditions(30);
+        queryConditions.add(new BookQueryConditions());
+        for (BookQueryConditions queryCondition : queryConditions) {
+            BookFacets expected = new BookFacets();
+            for (Book b : verifyQueryResult(my.books, queryCondition)) {
+                expected.add(b.getCategory(), b.getPress(), b.getAuthor(), b.getPublishYear(), 1);
+            }
+            for (LibraryManagementSystem lib : Arrays.asList(library, replicated)) {
+                ApiResult facetsResult = lib.queryBookFacets(queryCondition);
+                Assert.assertTrue(facetsResult.ok);
+                Assert.assertEquals(expected.toString(), facetsResult.payload.toString());
+            }
+        }
+    }
+
+    @Test
+    public void queryBookStreamTest() {
+        MyLibrary my = MyLibrary.createLibrary(library, 500, 0, 0);
+        for (int i = 0; i < 10; i++) {
+            BookQueryConditions c = new BookQueryConditions();
+            if (RandomUtils.nextBoolean()) {
                 c.setCategory(RandomData.randomCategory());
-                selected++;
             }
-            if ((mask & 4) > 0) {
+            if (RandomUtils.nextBoolean()) {
                 c.setAuthor(RandomData.randomAuthor());
-                selected++;
             }
-            // randomly select year
-            if (RandomUtils.nextInt(1, 2 + selected) == 1) {
-                int minY = RandomUtils.nextInt(2000, 2015);
-                int maxY = Math.max(RandomUtils.nextInt(2007, 2024), minY + 7);
-                c.setMinPublishYear(minY);
-                c.setMaxPublishYear(maxY);
-                selected++;
+            c.setSortBy(Book.SortColumn.random());
+            c.setSortOrder(SortOrder.random());
+            List<Book> expectedResults = verifyQueryResult(my.books, c);
+            ApiResult queryResult = library.queryBookStream(c, 16);
+            Assert.assertTrue(queryResult.ok);
+            List<Book> streamedResults;
+            try (Stream<Book> stream = ((BookCursor) queryResult.payload).stream()) {
+                streamedResults = stream.collect(Collectors.toList());
             }
-            // randomly select price
-            if (RandomUtils.nextInt(1, 3 + selected) == 1) {
-                double minP = RandomData.randomPrice();
-                double maxP = Math.max(RandomData.randomPrice(), minP + 16.66);
-                c.setMinPrice(minP);
-                c.setMaxPrice(maxP);
+            Assert.assertEquals(expectedResults.size(), streamedResults.size());
+            for (int j = 0; j < expectedResults.size(); j++) {
+                Assert.assertEquals(expectedResults.get(j).toString(), streamedResults.get(j).toString());
             }
-            // randomly choose one column to sort
-            if (RandomUtils.nextInt(1, 4) != 1) {
-                c.setSortBy(Book.SortColumn.random());
-                c.setSortOrder(SortOrder.random());
+        }
+        /* a cursor closed early gives its connection back */
+        for (int i = 0; i < connectConfig.getPoolSize() * 2; i++) {
+            ApiResult queryResult = library.queryBookStream(new BookQueryConditions(), 16);
+            Assert.assertTrue(queryResult.ok);
+            try (BookCursor cursor = (BookCursor) queryResult.payload) {
+                Assert.assertTrue(cursor.hasNext());
+                cursor.next();
             }
-            queryConditions.add(c);
         }
-        /* loop testing */
+        Assert.assertTrue(library.queryBook(new BookQueryConditions()).ok);
+    }
+
+    @Test
+    public void catalogReplicaQueryBookTest() {
+        MyLibrary my = MyLibrary.createLibrary(library, 500, 1, 0);
+        LibraryManagementSystemImpl replicated = new LibraryManagementSystemImpl(connector);
+        Assert.assertTrue(replicated.enableCatalogReplica().ok);
+        /* sort by every column first, the changes below patch these orders in place */
+        for (Book.SortColumn column : Book.SortColumn.values()) {
+            BookQueryConditions c = new BookQueryConditions();
+            c.setSortBy(column);
+            Assert.assertTrue(replicated.queryBook(c).ok);
+        }
+        /* change the catalog through the replicated library */
+        Set<Book> bookSet = new HashSet<>(my.books);
+        for (int i = 0; i < 50; i++) {
+            Book b = RandomData.randomBook();
+            if (bookSet.add(b)) {
+                Assert.assertTrue(replicated.storeBook(b).ok);
+                my.books.add(b);
+            }
+        }
+        for (int i = 0; i < 50; i++) {
+            Book b = my.books.get(RandomUtils.nextInt(0, my.books.size()));
+            int delta = RandomUtils.nextInt(0, 20);
+            Assert.assertTrue(replicated.incBookStock(b.getBookId(), delta).ok);
+            b.setStock(b.getStock() + delta);
+        }
+        for (int i = 0; i < 20; i++) {
+            Book b = my.books.get(RandomUtils.nextInt(0, my.books.size()));
+            b.setPrice(RandomData.randomPrice());
+            b.setAuthor(RandomData.randomAuthor());
+            Assert.assertTrue(replicated.modifyBookInfo(b).ok);
+        }
+        for (int i = 0; i < 20; i++) {
+            Book b = my.books.get(RandomUtils.nextInt(0, my.books.size()));
+            if (b.getStock() == 0) {
+                continue;
+            }
+            Borrow r = new Borrow(b, my.cards.get(0));
+            r.setBorrowTime(RandomData.randomTime());
+            // the card may still hold this book
+            if (!replicated.borrowBook(r).ok) {
+                continue;
+            }
+            b.setStock(b.getStock() - 1);
+            r.setReturnTime(r.getBorrowTime() + 1);
+            if (RandomUtils.nextBoolean()) {
+                Assert.assertTrue(replicated.returnBook(r).ok);
+                b.setStock(b.getStock() + 1);
+            }
+        }
+        for (int i = 0; i < 20; i++) {
+            Book b = my.books.remove(RandomUtils.nextInt(0, my.books.size()));
+            if (!replicated.removeBook(b.getBookId()).ok) {
+                my.books.add(b);
+            }
+        }
+        /* the replica answers like the database does */
+        List<BookQueryConditions> queryConditions = randomQueryConditions(50);
+        queryConditions.add(new BookQueryConditions());
         for (BookQueryConditions queryCondition : queryConditions) {
-            ApiResult queryResult = library.queryBook(queryCondition);
-            Assert.assertTrue(queryResult.ok);
-            BookQueryResults bookResults = (BookQueryResults) queryResult.payload;
             List<Book> expectedResults = verifyQueryResult(my.books, queryCondition);
-            Assert.assertEquals(expectedResults.size(), bookResults.getCount());
+            ApiResult queryResult = replicated.queryBook(queryCondition);
+            Assert.assertTrue(queryResult.ok);
+            List<Book> replicaResults = ((BookQueryResults) queryResult.payload).getResults();
+            List<Book> sqlResults = ((BookQueryResults) library.queryBook(queryCondition).payload).getResults();
+            Assert.assertEquals(expectedResults.size(), replicaResults.size());
+            Assert.assertEquals(sqlResults.size(), replicaResults.size());
             for (int i = 0; i < expectedResults.size(); i++) {
-                Book o1 = expectedResults.get(i);
-                Book o2 = bookResults.getResults().get(i);
-                Assert.assertEquals(o1.toString(), o2.toString());
+                Assert.assertEquals(expectedResults.get(i).toString(), replicaResults.get(i).toString());
+                Assert.assertEquals(sqlResults.get(i).toString(), replicaResults.get(i).toString());
+            }
+            /* and pages the same way */
+            queryCondition.setPageSize(RandomUtils.nextInt(1, 40));
+            List<Book> pagedResults = new ArrayList<>();
+            do {
+                queryResult = replicated.queryBook(queryCondition);
+                Assert.assertTrue(queryResult.ok);
+                BookQueryResults page = (BookQueryResults) queryResult.payload;
+                pagedResults.addAll(page.getResults());
+                queryCondition.setPageToken(page.getNextPageToken());
+            } while (queryCondition.getPageToken() != null);
+            Assert.assertEquals(expectedResults.size(), pagedResults.size());
+            for (int i = 0; i < expectedResults.size(); i++) {
+                Assert.assertEquals(expectedResults.get(i).toString(), pagedResults.get(i).toString());
             }
         }
+        Map<String, Long> indexMemory = replicated.getCatalogIndexMemory();
+        Assert.assertEquals(5, indexMemory.size());
+        for (long bytes : indexMemory.values()) {
+            Assert.assertTrue(bytes > 0);
+        }
+        /* reset clears the replica as well */
+        Assert.assertTrue(replicated.resetDatabase().ok);
+        ApiResult queryResult = replicated.queryBook(new BookQueryConditions());
+        Assert.assertTrue(queryResult.ok);
+        Assert.assertEquals(0, ((BookQueryResults) queryResult.payload).getCount());
+    }
+
+    @Test
+    public void catalogReplicaIgnoresCaseTest() {
+        String[] titles = {"alpha", "Alpha", "ALPHA beta", "_under", "Zeta", "zeta Alpha", "[bracket", "beta"};
+        String[] categories = {"Science", "science", "SCIENCE", "Art"};
+        for (int i = 0; i < titles.length; i++) {
+            Book b = RandomData.randomBook();
+            b.setTitle(titles[i]);
+            b.setCategory(categories[i % categories.length]);
+            b.setPress(i % 2 == 0 ? "Mixed Press" : "mixed press");
+            Assert.assertTrue(library.storeBook(b).ok);
+        }
+        LibraryManagementSystemImpl replicated = new LibraryManagementSystemImpl(connector);
+        Assert.assertTrue(replicated.enableCatalogReplica().ok);
+        List<BookQueryConditions> queryConditions = new ArrayList<>();
+        for (Book.SortColumn column : new Book.SortColumn[]{Book.SortColumn.TITLE, Book.SortColumn.CATEGORY,
+                Book.SortColumn.PRESS}) {
+            for (SortOrder order : SortOrder.values()) {
+                BookQueryConditions c = new BookQueryConditions();
+                c.setSortBy(column);
+                c.setSortOrder(order);
+                queryConditions.add(c);
+            }
+        }
+        BookQueryConditions c = new BookQueryConditions();
+        c.setTitle("ALPHA");
+        c.setSortBy(Book.SortColumn.TITLE);
+        queryConditions.add(c);
+        c = new BookQueryConditions();
+        c.setCategory("science");
+        c.setPress("MIXED");
+        queryConditions.add(c);
+        for (BookQueryConditions queryCondition : queryConditions) {
+            List<Book> sqlResults = ((BookQueryResults) library.queryBook(queryCondition).payload).getResults();
+            List<Book> replicaResults = ((BookQueryResults) replicated.queryBook(queryCondition).payload).getResults();
+            Assert.assertFalse(sqlResults.isEmpty());
+            Assert.assertEquals(sqlResults.toString(), replicaResults.toString());
+            /* pages start right after the token, also inside a group of equal keys */
+            queryCondition.setPageSize(RandomUtils.nextInt(1, 4));
+            List<Book> pagedResults = new ArrayList<>();
+            do {
+                BookQueryResults page = (BookQueryResults) replicated.queryBook(queryCondition).payload;
+                pagedResults.addAll(page.getResults());
+                queryCondition.setPageToken(page.getNextPageToken());
+            } while (queryCondition.getPageToken() != null);
+            Assert.assertEquals(sqlResults.toString(), pagedResults.toString());
+        }
+        /* values the collation may match or order otherwise are left to the database */
+        Book accented = RandomData.randomBook();
+        accented.setTitle("Café Society");
+        accented.setPress("Éditions Mixed");
+        Assert.assertTrue(replicated.storeBook(accented).ok);
+        queryConditions.clear();
+        for (String title : new String[]{"cafe", "CAFÉ", "alpha"}) {
+            c = new BookQueryConditions();
+            c.setTitle(title);
+            queryConditions.add(c);
+        }
+        c = new BookQueryConditions();
+        c.setPress("editions");
+        c.setSortBy(Book.SortColumn.PRESS);
+        queryConditions.add(c);
+        for (BookQueryConditions queryCondition : queryConditions) {
+            List<Book> sqlResults = ((BookQueryResults) library.queryBook(queryCondition).payload).getResults();
+            List<Book> replicaResults = ((BookQueryResults) replicated.queryBook(queryCondition).payload).getResults();
+            Assert.assertEquals(sqlResults.toString(), replicaResults.toString());
+        }
+        Assert.assertTrue(((BookQueryResults) replicated.queryBook(queryConditions.get(0)).payload).getResults()
+                .stream().anyMatch(o -> o.getBookId() == accented.getBookId()));
+        Assert.assertEquals(library.queryBookFacets(new BookQueryConditions()).payload.toString(),
+                replicated.queryBookFacets(new BookQueryConditions()).payload.toString());
+        /* the replica answers again once such values are gone, neighbours are tracked through changes */
+        List<Book> plainBooks = new ArrayList<>();
+        for (String title : new String[]{"alpha", "Beta", "gamma 2", "gamma 10"}) {
+            Book b = RandomData.randomBook();
+            b.setBookId(plainBooks.size() + 1);
+            b.setTitle(title);
+            plainBooks.add(b);
+        }
+        CatalogReplica replica = new CatalogReplica(plainBooks);
+        BookQueryConditions byTitle = new BookQueryConditions();
+        byTitle.setSortBy(Book.SortColumn.TITLE);
+        BookQueryConditions cafe = new BookQueryConditions();
+        cafe.setTitle("cafe");
+        BookQueryConditions accentedCafe = new BookQueryConditions();
+        accentedCafe.setTitle("café");
+        Assert.assertNotNull(replica.query(byTitle));
+        Assert.assertNull(replica.query(accentedCafe));
+        Book odd = RandomData.randomBook();
+        odd.setBookId(10);
+        odd.setTitle("_under");
+        replica.put(odd);
+        Assert.assertNull(replica.query(byTitle));
+        Assert.assertNotNull(replica.query(cafe));
+        odd.setTitle("Café");
+        replica.modify(odd);
+        // its neighbours Beta & gamma differ from it in the first letter, so the order is certain
+        Assert.assertNotNull(replica.query(byTitle));
+        Assert.assertNull(replica.query(cafe));
+        odd.setTitle("delta");
+        replica.modify(odd);
+        Assert.assertNotNull(replica.query(byTitle));
+        Assert.assertNotNull(replica.query(cafe));
+        odd.setTitle("gamma");
+        Book hyphen = RandomData.randomBook();
+        hyphen.setBookId(11);
+        hyphen.setTitle("gamma-1");
+        replica.putAll(Arrays.asList(odd, hyphen));
+        Assert.assertNull(replica.query(byTitle));
+        replica.remove(11);
+        Assert.assertEquals(Arrays.asList("alpha", "Beta", "gamma", "gamma 10", "gamma 2"),
+                replica.query(byTitle).getResults().stream().map(Book::getTitle).collect(Collectors.toList()));
+    }
+
+    @Test
+    public void queryResultCacheTest() {
+        MyLibrary my = MyLibrary.createLibrary(library, 300, 1, 0);
+        LibraryManagementSystemImpl cached = new LibraryManagementSystemImpl(connector);
+        cached.enableQueryCache(1000, 60000);
+        List<BookQueryConditions> queryConditions = randomQueryConditions(30);
+        queryConditions.add(new BookQueryConditions());
+        for (int round = 0; round < 6; round++) {
+            /* query every combination twice, the second time is a hit */
+            for (int k = 0; k < 2; k++) {
+                for (BookQueryConditions queryCondition : queryConditions) {
+                    List<Book> expectedResults = verifyQueryResult(my.books, queryCondition);
+                    ApiResult queryResult = cached.queryBook(queryCondition);
+                    Assert.assertTrue(queryResult.ok);
+                    BookQueryResults bookResults = (BookQueryResults) queryResult.payload;
+                    Assert.assertEquals(expectedResults.size(), bookResults.getCount());
+                    for (int i = 0; i < expectedResults.size(); i++) {
+                        Assert.assertEquals(expectedResults.get(i).toString(),
+                                bookResults.getResults().get(i).toString());
+                    }
+                }
+            }
+            /* change some books through the cached library */
+            Book b = my.books.get(RandomUtils.nextInt(0, my.books.size()));
+            switch (round % 3) {
+                case 0:
+                    Assert.assertTrue(cached.incBookStock(b.getBookId(), 3).ok);
+                    b.setStock(b.getStock() + 3);
+                    Book nb = RandomData.randomBook();
+                    if (!my.books.contains(nb)) {
+                        Assert.assertTrue(cached.storeBook(nb).ok);
+                        my.books.add(nb);
+                    }
+                    break;
+                case 1:
+                    b.setAuthor(RandomData.randomAuthor());
+                    b.setPublishYear(RandomUtils.nextInt(2000, 2024));
+                    Assert.assertTrue(cached.modifyBookInfo(b).ok);
+                    Borrow r = new Borrow(my.books.get(0), my.cards.get(0));
+                    r.setBorrowTime(RandomData.randomTime());
+                    if (my.books.get(0).getStock() > 0 && cached.borrowBook(r).ok) {
+                        my.books.get(0).setStock(my.books.get(0).getStock() - 1);
+                    }
+                    break;
+                default:
+                    if (cached.removeBook(b.getBookId()).ok) {
+                        my.books.remove(b);
+                    }
+            }
+        }
+        QueryResultCache cache = cached.getQueryCache();
+        Assert.assertTrue(cache.getHits() >= 6 * queryConditions.size());
+        Assert.assertTrue(cache.getInvalidations() > 0);
+        Assert.assertTrue(cache.getHitRatio() >= 0.5);
+        /* capacity bounds the cache */
+        cached.enableQueryCache(5, 60000);
+        for (BookQueryConditions queryCondition : queryConditions) {
+            Assert.assertTrue(cached.queryBook(queryCondition).ok);
+        }
+        Assert.assertEquals(5, cached.getQueryCache().size());
+        Assert.assertTrue(cached.getQueryCache().getEvictions() > 0);
+        /* values equal to a cached condition only under the collation drop it as well */
+        BookQueryConditions cafe = new BookQueryConditions();
+        cafe.setTitle("cafe");
+        Assert.assertTrue(cached.queryBook(cafe).ok);
+        Book accented = RandomData.randomBook();
+        accented.setTitle("Café X");
+        Assert.assertTrue(cached.storeBook(accented).ok);
+        List<Book> results = ((BookQueryResults) cached.queryBook(cafe).payload).getResults();
+        Assert.assertTrue(results.stream().anyMatch(o -> o.getBookId() == accented.getBookId()));
+        Book renamed = my.books.get(0);
+        renamed.setTitle("Cafés Y");
+        Assert.assertTrue(cached.modifyBookInfo(renamed).ok);
+        results = ((BookQueryResults) cached.queryBook(cafe).payload).getResults();
+        Assert.assertTrue(results.stream().anyMatch(o -> o.getBookId() == renamed.getBookId()));
+    }
+
+    @Test
+    public void compressedBitmapTest() {
+        /* sparse & dense chunks, compared against plain sets */
+        List<CompressedBitmap> bitmaps = new ArrayList<>();
+        List<Set<Integer>> sets = new ArrayList<>();
+        for (int k = 0; k < 4; k++) {
+            CompressedBitmap bitmap = new CompressedBitmap();
+            Set<Integer> set = new TreeSet<>();
+            int n = k % 2 == 0 ? 3000 : 20000;
+            for (int i = 0; i < n; i++) {
+                int x = RandomUtils.nextInt(0, 1 << 17);
+                bitmap.add(x);
+                set.add(x);
+            }
+            for (int i = 0; i < n / 4; i++) {
+                int x = RandomUtils.nextInt(0, 1 << 17);
+                bitmap.remove(x);
+                set.remove(x);
+            }
+            Assert.assertEquals(set.size(), bitmap.cardinality());
+            bitmaps.add(bitmap);
+            sets.add(set);
+        }
+        for (int a = 0; a < bitmaps.size(); a++) {
+            for (int b = 0; b < bitmaps.size(); b++) {
+                Set<Integer> and = new TreeSet<>(sets.get(a));
+                and.retainAll(sets.get(b));
+                Set<Integer> or = new TreeSet<>(sets.get(a));
+                or.addAll(sets.get(b));
+                int[] andValues = CompressedBitmap.and(bitmaps.get(a), bitmaps.get(b)).toArray();
+                int[] orValues = CompressedBitmap.or(bitmaps.get(a), bitmaps.get(b)).toArray();
+                Assert.assertArrayEquals(and.stream().mapToInt(Integer::intValue).toArray(), andValues);
+                Assert.assertArrayEquals(or.stream().mapToInt(Integer::intValue).toArray(), orValues);
+            }
+        }
+        for (int i = 0; i < 1000; i++) {
+            int x = RandomUtils.nextInt(0, 1 << 17);
+            Assert.assertEquals(sets.get(1).contains(x), bitmaps.get(1).contains(x));
+        }
     }
 
     @Test
@@ -584,6 +1132,75 @@ public class LibraryTest {
         }
     }
 
+    @Test
+    public void bulkBorrowAndReturnBookTest() {
+        MyLibrary my = MyLibrary.createLibrary(library, 50, 20, 0);
+        Map<Integer, Integer> stockMap = my.books.stream().collect(
+                Collectors.toMap(Book::getBookId, Book::getStock));
+        Assert.assertTrue(library.incBookStock(my.books.get(0).getBookId(), -my.books.get(0).getStock()).ok);
+        stockMap.put(my.books.get(0).getBookId(), 0);
+        /* random borrows, some of them repeated, one with a missing card */
+        List<Borrow> borrows = new ArrayList<>();
+        for (int i = 0; i < 400; i++) {
+            Borrow r = new Borrow(my.books.get(RandomUtils.nextInt(0, my.nBooks())),
+                    my.cards.get(RandomUtils.nextInt(0, my.nCards())));
+            r.setBorrowTime(1000 + i);
+            borrows.add(r);
+        }
+        borrows.add(150, new Borrow(my.books.get(1).getBookId(), -1));
+        /* expected outcome if they were borrowed one by one */
+        Set<Pair<Integer, Integer>> open = new HashSet<>();
+        List<Boolean> expected = new ArrayList<>();
+        for (Borrow r : borrows) {
+            Pair<Integer, Integer> key = new ImmutablePair<>(r.getCardId(), r.getBookId());
+            boolean ok = r.getCardId() > 0 && stockMap.get(r.getBookId()) > 0 && !open.contains(key);
+            if (ok) {
+                open.add(key);
+                stockMap.put(r.getBookId(), stockMap.get(r.getBookId()) - 1);
+            }
+            expected.add(ok);
+        }
+        ApiResult result = library.borrowBooks(borrows);
+        Assert.assertTrue(result.ok);
+        BatchResults batch = (BatchResults) result.payload;
+        Assert.assertEquals(borrows.size(), batch.getCount());
+        for (int i = 0; i < borrows.size(); i++) {
+            Assert.assertEquals(expected.get(i), batch.getResults().get(i).ok);
+        }
+        /* return the successful ones, some twice & some with a wrong time */
+        List<Borrow> returns = new ArrayList<>();
+        List<Boolean> expectedReturns = new ArrayList<>();
+        for (int i = 0; i < borrows.size(); i++) {
+            if (!expected.get(i)) {
+                continue;
+            }
+            Borrow r = borrows.get(i);
+            int k = RandomUtils.nextInt(0, 4);
+            r.setReturnTime(k == 0 ? r.getBorrowTime() : r.getBorrowTime() + 5000);
+            returns.add(r);
+            expectedReturns.add(k != 0);
+            if (k == 0) {
+                continue;
+            }
+            stockMap.put(r.getBookId(), stockMap.get(r.getBookId()) + 1);
+            if (k == 1) {
+                returns.add(r);
+                expectedReturns.add(false);
+            }
+        }
+        result = library.returnBooks(returns);
+        Assert.assertTrue(result.ok);
+        batch = (BatchResults) result.payload;
+        for (int i = 0; i < returns.size(); i++) {
+            Assert.assertEquals(expectedReturns.get(i), batch.getResults().get(i).ok);
+        }
+        /* stock of every book is right */
+        BookQueryResults books = (BookQueryResults) library.queryBook(new BookQueryConditions()).payload;
+        for (Book b : books.getResults()) {
+            Assert.assertEquals(stockMap.get(b.getBookId()).intValue(), b.getStock());
+        }
+    }
+
     @Test
     public void parallelBorrowBookTest() {
         int nThreads = BorrowThread.nThreads;
@@ -628,6 +1245,1023 @@ public class LibraryTest {
         }
     }
 
+    @Test
+    public void parallelBorrowBookSharedLibraryTest() {
+        int nThreads = BorrowThread.nThreads;
+        MyLibrary my = MyLibrary.createLibrary(library, 1, nThreads, 0);
+        Book book = my.books.get(0);
+        // let book.stock = 1
+        Assert.assertTrue(library.incBookStock(book.getBookId(), -book.getStock() + 1).ok);
+        /* all threads share one library, connections come from its pool */
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicInteger successOps = new AtomicInteger(0);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < nThreads; i++) {
+            Borrow borrow = new Borrow(book, my.cards.get(i));
+            borrow.resetBorrowTime();
+            Thread thd = new Thread(() -> {
+                try {
+                    start.await();
+                    if (library.borrowBook(borrow).ok) {
+                        successOps.incrementAndGet();
+                    }
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            });
+            thd.start();
+            threads.add(thd);
+        }
+        start.countDown();
+        for (Thread thd : threads) {
+            try {
+                thd.join();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+        // only one thread can successfully borrow the book
+        Assert.assertEquals(1, successOps.get());
+        Assert.assertTrue(connector.getPoolCount() <= connectConfig.getPoolSize());
+    }
+
+    @Test
+    public void parallelBorrowBookSameCardTest() {
+        int nThreads = 16;
+        MyLibrary my = MyLibrary.createLibrary(library, 1, 1, 0);
+        Book book = my.books.get(0);
+        // enough stock for everyone, but one card may only hold one copy
+        Assert.assertTrue(library.incBookStock(book.getBookId(), -book.getStock() + nThreads).ok);
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicInteger successOps = new AtomicInteger(0);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < nThreads; i++) {
+            Borrow borrow = new Borrow(book, my.cards.get(0));
+            borrow.setBorrowTime(1000 + i);
+            Thread thd = new Thread(() -> {
+                try {
+                    start.await();
+                    if (library.borrowBook(borrow).ok) {
+                        successOps.incrementAndGet();
+                    }
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            });
+            thd.start();
+            threads.add(thd);
+        }
+        start.countDown();
+        for (Thread thd : threads) {
+            try {
+                thd.join();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+        Assert.assertEquals(1, successOps.get());
+        BookQueryConditions c = new BookQueryConditions();
+        List<Book> books = ((BookQueryResults) library.queryBook(c).payload).getResults();
+        Assert.assertEquals(nThreads - 1, books.get(0).getStock());
+    }
+
+    @Test
+    public void stockReservationsTest() {
+        int nThreads = 64;
+        MyLibrary my = MyLibrary.createLibrary(library, 2, nThreads, 0);
+        Book book = my.books.get(0);
+        Assert.assertTrue(library.incBookStock(book.getBookId(), -book.getStock() + 10).ok);
+        LibraryManagementSystemImpl reserved = new LibraryManagementSystemImpl(connector);
+        reserved.enableStockReservations(20);
+        /* a hot book, only 10 of the borrows are admitted */
+        CountDownLatch start = new CountDownLatch(1);
+        List<Borrow> succeeded = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < nThreads; i++) {
+            Borrow borrow = new Borrow(book, my.cards.get(i));
+            borrow.setBorrowTime(1000 + i);
+            Thread thd = new Thread(() -> {
+                try {
+                    start.await();
+                    if (reserved.borrowBook(borrow).ok) {
+                        succeeded.add(borrow);
+                    }
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            });
+            thd.start();
+            threads.add(thd);
+        }
+        start.countDown();
+        for (Thread thd : threads) {
+            try {
+                thd.join();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+        Assert.assertEquals(10, succeeded.size());
+        Assert.assertFalse(reserved.borrowBook(new Borrow(book, my.cards.get(0))).ok);
+        /* returns & stock changes go through the same counters */
+        for (int i = 0; i < 5; i++) {
+            Borrow r = succeeded.get(i);
+            r.setReturnTime(r.getBorrowTime() + 1);
+            Assert.assertTrue(reserved.returnBook(r).ok);
+            Assert.assertFalse(reserved.returnBook(r).ok);
+        }
+        Assert.assertFalse(reserved.incBookStock(book.getBookId(), -6).ok);
+        Assert.assertTrue(reserved.incBookStock(book.getBookId(), -2).ok);
+        Assert.assertEquals(3, reserved.getStockReservations().peek(book.getBookId()).intValue());
+        /* queryBook flushes the counters first */
+        BookQueryConditions c = new BookQueryConditions();
+        c.setMaxPublishYear(book.getPublishYear());
+        c.setMinPublishYear(book.getPublishYear());
+        c.setCategory(book.getCategory());
+        c.setTitle(book.getTitle());
+        List<Book> results = ((BookQueryResults) reserved.queryBook(c).payload).getResults();
+        Assert.assertEquals(3, results.get(0).getStock());
+        /* removed books are forgotten */
+        Book other = my.books.get(1);
+        Assert.assertTrue(reserved.incBookStock(other.getBookId(), 1).ok);
+        Assert.assertTrue(reserved.removeBook(other.getBookId()).ok);
+        Assert.assertFalse(reserved.incBookStock(other.getBookId(), 1).ok);
+        /* enabling again writes back and closes the counters in use */
+        StockReservations old = reserved.getStockReservations();
+        Assert.assertTrue(reserved.enableStockReservations(60000).ok);
+        Assert.assertTrue(old != reserved.getStockReservations());
+        Assert.assertFalse(reserved.incBookStock(book.getBookId(), -4).ok);
+        /* the database holds the same stock once the layer is closed */
+        Assert.assertTrue(reserved.incBookStock(book.getBookId(), 4).ok);
+        Assert.assertTrue(reserved.disableStockReservations().ok);
+        Assert.assertTrue(reserved.getStockReservations() == null);
+        results = ((BookQueryResults) library.queryBook(c).payload).getResults();
+        Assert.assertEquals(7, results.get(0).getStock());
+    }
+
+    @Test
+    public void stockReservationsFlushFailureTest() throws InterruptedException {
+        AtomicInteger failing = new AtomicInteger(3);
+        Map<Integer, Integer> written = new ConcurrentHashMap<>();
+        StockReservations res = new StockReservations(4, 5, bookId -> 10, deltas -> {
+            if (failing.getAndDecrement() > 0) {
+                throw new SQLException("write failed");
+            }
+            deltas.forEach((id, delta) -> written.merge(id, delta, Integer::sum));
+        });
+        Assert.assertEquals(StockReservations.Outcome.OK, res.tryAdd(1, -4));
+        /* the flusher counts its failures and keeps the deltas until a write succeeds */
+        for (int i = 0; i < 200 && written.isEmpty(); i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(3, res.getFlushFailures());
+        Assert.assertEquals(Collections.singletonMap(1, -4), written);
+        res.close();
+        /* a failed final write is reported by close() */
+        StockReservations broken = new StockReservations(4, 60000, bookId -> 10, deltas -> {
+            throw new SQLException("write failed");
+        });
+        Assert.assertEquals(StockReservations.Outcome.OK, broken.tryAdd(1, 2));
+        try {
+            broken.close();
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            Assert.assertTrue(e.getMessage().contains("write failed"));
+        }
+        Assert.assertEquals(1, broken.getFlushFailures());
+    }
+
+    @Test
+    public void openLoanIndexTest() {
+        MyLibrary my = MyLibrary.createLibrary(library, 20, 10, 50);
+        /* some loans are open before the index is loaded */
+        Set<Pair<Integer, Integer>> open = new HashSet<>();
+        Map<Integer, Integer> stockMap = my.books.stream().collect(
+                Collectors.toMap(Book::getBookId, Book::getStock));
+        long time = 1000;
+        for (int i = 0; i < 10; i++) {
+            Borrow r = new Borrow(my.books.get(i), my.cards.get(i));
+            r.setBorrowTime(time++);
+            if (library.borrowBook(r).ok) {
+                open.add(new ImmutablePair<>(r.getCardId(), r.getBookId()));
+                stockMap.put(r.getBookId(), stockMap.get(r.getBookId()) - 1);
+            }
+        }
+        LibraryManagementSystemImpl indexed = new LibraryManagementSystemImpl(connector);
+        Assert.assertTrue(indexed.enableOpenLoanIndex().ok);
+        OpenLoanIndex index = indexed.getOpenLoanIndex();
+        /* random borrows & returns give the same outcome as the database checks */
+        Map<Pair<Integer, Integer>, Borrow> openBorrows = new HashMap<>();
+        for (int i = 0; i < 300; i++) {
+            Book b = my.books.get(RandomUtils.nextInt(0, my.nBooks()));
+            Card c = my.cards.get(RandomUtils.nextInt(0, my.nCards()));
+            Pair<Integer, Integer> key = new ImmutablePair<>(c.getCardId(), b.getBookId());
+            Assert.assertEquals(open.contains(key), index.hasOpenLoan(c.getCardId(), b.getBookId()));
+            if (openBorrows.containsKey(key) && RandomUtils.nextBoolean()) {
+                Borrow r = openBorrows.remove(key);
+                r.setReturnTime(time++);
+                Assert.assertTrue(indexed.returnBook(r).ok);
+                open.remove(key);
+                stockMap.put(b.getBookId(), stockMap.get(b.getBookId()) + 1);
+                continue;
+            }
+            Borrow r = new Borrow(b, c);
+            r.setBorrowTime(time++);
+            boolean expected = !open.contains(key) && stockMap.get(b.getBookId()) > 0;
+            Assert.assertEquals(expected, indexed.borrowBook(r).ok);
+            if (expected) {
+                open.add(key);
+                openBorrows.put(key, r);
+                stockMap.put(b.getBookId(), stockMap.get(b.getBookId()) - 1);
+            }
+        }
+        /* a second remove while the first is running is told so */
+        Assert.assertEquals(OpenLoanIndex.Removal.OK, index.tryRemoveBook(-1));
+        Assert.assertEquals(OpenLoanIndex.Removal.REMOVING, index.tryRemoveBook(-1));
+        Assert.assertEquals("Book is being removed", indexed.removeBook(-1).message);
+        index.endRemoveBook(-1);
+        Assert.assertEquals(OpenLoanIndex.Removal.OK, index.tryRemoveCard(-1));
+        Assert.assertEquals(OpenLoanIndex.Removal.REMOVING, index.tryRemoveCard(-1));
+        Assert.assertEquals("Card is being removed", indexed.removeCard(-1).message);
+        index.endRemoveCard(-1);
+        Assert.assertEquals("Book does not exist", indexed.removeBook(-1).message);
+        Assert.assertEquals("Card does not exist", indexed.removeCard(-1).message);
+        /* remove checks are answered by the index */
+        for (Book b : my.books) {
+            long n = open.stream().filter(k -> k.getRight() == b.getBookId()).count();
+            Assert.assertEquals(n, index.countByBook(b.getBookId()));
+            ApiResult removed = indexed.removeBook(b.getBookId());
+            Assert.assertEquals(n == 0, removed.ok);
+            if (n > 0) {
+                Assert.assertEquals(OpenLoanIndex.Removal.OPEN_LOANS, index.tryRemoveBook(b.getBookId()));
+                Assert.assertEquals("Book has been borrowed", removed.message);
+            }
+        }
+        for (Card c : my.cards) {
+            long n = open.stream().filter(k -> k.getLeft() == c.getCardId()).count();
+            Assert.assertEquals(n, index.countByCard(c.getCardId()));
+            ApiResult removed = indexed.removeCard(c.getCardId());
+            Assert.assertEquals(n == 0, removed.ok);
+            if (n > 0) {
+                Assert.assertEquals(OpenLoanIndex.Removal.OPEN_LOANS, index.tryRemoveCard(c.getCardId()));
+                Assert.assertEquals("Card has books that didn't returned", removed.message);
+            }
+        }
+    }
+
+    @Test
+    public void statementCacheTest() throws SQLException {
+        /* a fresh pool, so that the first connection starts with an empty cache */
+        DatabaseConnector cached = new DatabaseConnector(connectConfig);
+        Assert.assertTrue(cached.connect());
+        int capacity = connectConfig.getStatementCacheSize();
+        Connection conn = cached.acquire();
+        try {
+            List<PreparedStatement> prepared = new ArrayList<>();
+            for (int i = 0; i < capacity; i++) {
+                prepared.add(cached.prepare(conn, "SELECT " + i));
+            }
+            Assert.assertEquals(0, cached.getStatementCacheHits());
+            Assert.assertEquals(capacity, cached.getStatementCacheMisses());
+            // the same sql hits the cached statement
+            for (int round = 0; round < 3; round++) {
+                for (int i = 0; i < capacity; i++) {
+                    Assert.assertSame(prepared.get(i), cached.prepare(conn, "SELECT " + i));
+                }
+            }
+            Assert.assertEquals(3L * capacity, cached.getStatementCacheHits());
+            Assert.assertEquals(capacity, cached.getStatementCacheMisses());
+            Assert.assertEquals(0, cached.getStatementCacheEvictions());
+            for (PreparedStatement stmt : prepared) {
+                Assert.assertFalse(stmt.isClosed());
+            }
+            // past capacity the least recently used statement is evicted & closed
+            PreparedStatement extra = cached.prepare(conn, "SELECT " + capacity);
+            Assert.assertEquals(capacity + 1, cached.getStatementCacheMisses());
+            Assert.assertEquals(1, cached.getStatementCacheEvictions());
+            Assert.assertTrue(prepared.get(0).isClosed());
+            for (int i = 1; i < capacity; i++) {
+                Assert.assertFalse(prepared.get(i).isClosed());
+            }
+            // an evicted sql is prepared again, evicting the next one
+            PreparedStatement again = cached.prepare(conn, "SELECT 0");
+            Assert.assertNotSame(prepared.get(0), again);
+            Assert.assertFalse(again.isClosed());
+            Assert.assertEquals(capacity + 2, cached.getStatementCacheMisses());
+            Assert.assertEquals(2, cached.getStatementCacheEvictions());
+            Assert.assertTrue(prepared.get(1).isClosed());
+            Assert.assertSame(extra, cached.prepare(conn, "SELECT " + capacity));
+            Assert.assertEquals(3L * capacity + 1, cached.getStatementCacheHits());
+        } finally {
+            Assert.assertTrue(cached.release(conn));
+            Assert.assertTrue(cached.release());
+        }
+    }
+
+    @Test
+    public void transientFailureRetryTest() {
+        /* deadlocks, serialization failures & lock timeouts are transient */
+        Assert.assertTrue(DatabaseType.MYSQL.isTransient(new SQLException("deadlock", "40001", 1213)));
+        Assert.assertTrue(DatabaseType.MYSQL.isTransient(new SQLException("lock wait", "HY000", 1205)));
+        Assert.assertTrue(DatabaseType.SQLSERVER.isTransient(new SQLException("victim", "40001", 1205)));
+        Assert.assertTrue(DatabaseType.SQLSERVER.isTransient(new SQLException("timeout", "S0001", 1222)));
+        Assert.assertTrue(DatabaseType.POSTGRES.isTransient(new SQLException("deadlock", "40P01", 0)));
+        Assert.assertTrue(DatabaseType.POSTGRES.isTransient(new SQLException("lock", "55P03", 0)));
+        Assert.assertFalse(DatabaseType.MYSQL.isTransient(new SQLException("duplicate", "23000", 1062)));
+        Assert.assertFalse(DatabaseType.SQLSERVER.isTransient(new SQLException("timeout", "HY000", 1213)));
+        /* also when wrapped or chained */
+        SQLException chained = new SQLException("batch", "HY000", 0);
+        chained.setNextException(new SQLException("deadlock", "40001", 1213));
+        Assert.assertTrue(DatabaseType.MYSQL.isTransient(chained));
+        Assert.assertTrue(DatabaseType.MYSQL.isTransient(new SQLException("wrapped", chained)));
+        /* bulk borrows locking the same books in opposite orders deadlock, they are retried */
+        MyLibrary my = MyLibrary.createLibrary(library, 8, 8, 0);
+        for (Book book : my.books) {
+            Assert.assertTrue(library.incBookStock(book.getBookId(), 1000).ok);
+        }
+        Map<Integer, Integer> stockMap = my.books.stream().collect(
+                Collectors.toMap(Book::getBookId, b -> b.getStock() + 1000));
+        int nThreads = my.nCards();
+        int nRounds = 20;
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(nThreads);
+        AtomicInteger failures = new AtomicInteger();
+        for (int t = 0; t < nThreads; t++) {
+            Card card = my.cards.get(t);
+            boolean reversed = t % 2 == 1;
+            new Thread(() -> {
+                try {
+                    start.await();
+                    long time = 1;
+                    for (int round = 0; round < nRounds; round++) {
+                        List<Borrow> borrows = new ArrayList<>();
+                        for (Book book : my.books) {
+                            Borrow r = new Borrow(book, card);
+                            r.setBorrowTime(time);
+                            borrows.add(r);
+                        }
+                        if (reversed) {
+                            Collections.reverse(borrows);
+                        }
+                        ApiResult result = library.borrowBooks(borrows);
+                        for (ApiResult r : ((BatchResults) result.payload).getResults()) {
+                            if (!r.ok) {
+                                failures.incrementAndGet();
+                            }
+                        }
+                        for (Borrow r : borrows) {
+                            r.setReturnTime(time + 1);
+                        }
+                        result = library.returnBooks(borrows);
+                        for (ApiResult r : ((BatchResults) result.payload).getResults()) {
+                            if (!r.ok) {
+                                failures.incrementAndGet();
+                            }
+                        }
+                        time += 2;
+                    }
+                } catch (InterruptedException e) {
+                    failures.incrementAndGet();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        start.countDown();
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Assert.fail();
+        }
+        Assert.assertEquals(0, failures.get());
+        ApiResult queryResult = library.queryBook(new BookQueryConditions());
+        Assert.assertTrue(queryResult.ok);
+        for (Book book : ((BookQueryResults) queryResult.payload).getResults()) {
+            Assert.assertEquals(stockMap.get(book.getBookId()).intValue(), book.getStock());
+        }
+        RetryStats.Counters counters = ((LibraryManagementSystemImpl) library).getRetryStats().of("borrowBooks");
+        Assert.assertEquals((long) nThreads * nRounds, counters.getCalls());
+        Assert.assertEquals(0, counters.getExhausted());
+        Assert.assertTrue(counters.getWaitMillis() <= counters.getRetries() * connectConfig.getRetryMaxDelay());
+    }
+
+    @Test
+    public void groupCommitTest() {
+        MyLibrary my = MyLibrary.createLibrary(library, 10, 16, 0);
+        for (Book book : my.books) {
+            Assert.assertTrue(library.incBookStock(book.getBookId(), 100).ok);
+        }
+        LibraryManagementSystemImpl grouped = new LibraryManagementSystemImpl(connector);
+        grouped.enableGroupCommit(2000);
+        int nThreads = my.nCards();
+        int nRounds = 30;
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(nThreads);
+        AtomicInteger failures = new AtomicInteger();
+        int[] borrowed = new int[nThreads];
+        for (int t = 0; t < nThreads; t++) {
+            int id = t;
+            Card card = my.cards.get(t);
+            new Thread(() -> {
+                try {
+                    start.await();
+                    long time = 1;
+                    for (int round = 0; round < nRounds; round++) {
+                        Book book = my.books.get(RandomUtils.nextInt(0, my.nBooks()));
+                        Borrow r = new Borrow(book, card);
+                        r.setBorrowTime(time);
+                        if (!grouped.borrowBook(r).ok) {
+                            failures.incrementAndGet();
+                            continue;
+                        }
+                        borrowed[id]++;
+                        /* failures in the same group do not affect the others */
+                        Borrow again = new Borrow(book, card);
+                        again.setBorrowTime(time + 1);
+                        if (grouped.borrowBook(again).ok) {
+                            failures.incrementAndGet();
+                        }
+                        Borrow missing = new Borrow(-1, card.getCardId());
+                        missing.setBorrowTime(time + 1);
+                        if (grouped.borrowBook(missing).ok) {
+                            failures.incrementAndGet();
+                        }
+                        r.setReturnTime(time + 2);
+                        if (!grouped.returnBook(r).ok) {
+                            failures.incrementAndGet();
+                        }
+                        time += 3;
+                    }
+                } catch (InterruptedException e) {
+                    failures.incrementAndGet();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        start.countDown();
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Assert.fail();
+        }
+        Assert.assertEquals(0, failures.get());
+        GroupCommitter committer = grouped.getGroupCommitter();
+        Assert.assertTrue(committer.getGroups() < committer.getTransactions());
+        /* batch writes bypass the committer */
+        long transactions = committer.getTransactions();
+        Book extra = RandomData.randomBook();
+        while (my.books.contains(extra)) {
+            extra = RandomData.randomBook();
+        }
+        Assert.assertTrue(grouped.storeBook(Collections.singletonList(extra)).ok);
+        Assert.assertEquals(transactions, committer.getTransactions());
+        Assert.assertTrue(library.removeBook(extra.getBookId()).ok);
+        grouped.disableGroupCommit();
+        Assert.assertNull(grouped.getGroupCommitter());
+        /* every committed change is visible */
+        ApiResult queryResult = library.queryBook(new BookQueryConditions());
+        Assert.assertTrue(queryResult.ok);
+        for (Book book : ((BookQueryResults) queryResult.payload).getResults()) {
+            Book origin = my.books.stream().filter(b -> b.getBookId() == book.getBookId()).findFirst().get();
+            Assert.assertEquals(origin.getStock() + 100, book.getStock());
+        }
+        for (int t = 0; t < nThreads; t++) {
+            ApiResult result = library.showBorrowHistory(my.cards.get(t).getCardId());
+            Assert.assertTrue(result.ok);
+            Assert.assertEquals(borrowed[t], ((BorrowHistories) result.payload).getCount());
+        }
+    }
+
+    @Test
+    public void pagedBorrowHistoryTest() {
+        MyLibrary my = MyLibrary.createLibrary(library, 50, 5, 200);
+        /* ties on borrow_time are ordered by book_id */
+        Card card = my.cards.get(0);
+        for (int i = 0; i < 10; i++) {
+            Borrow r = new Borrow(my.books.get(i), card);
+            r.setBorrowTime(1);
+            if (library.borrowBook(r).ok) {
+                r.setReturnTime(2);
+                Assert.assertTrue(library.returnBook(r).ok);
+            }
+        }
+        for (Card c : my.cards) {
+            ApiResult result = library.showBorrowHistory(c.getCardId());
+            Assert.assertTrue(result.ok);
+            List<BorrowHistories.Item> expected = ((BorrowHistories) result.payload).getItems();
+            for (int pageSize : new int[]{1, 7, 1000}) {
+                List<BorrowHistories.Item> items = new ArrayList<>();
+                String token = null;
+                do {
+                    result = library.showBorrowHistory(c.getCardId(), pageSize, token);
+                    Assert.assertTrue(result.ok);
+                    BorrowHistories page = (BorrowHistories) result.payload;
+                    Assert.assertTrue(page.getCount() <= pageSize);
+                    items.addAll(page.getItems());
+                    token = page.getNextPageToken();
+                } while (token != null);
+                Assert.assertEquals(expected.size(), items.size());
+                for (int i = 0; i < items.size(); i++) {
+                    Assert.assertEquals(expected.get(i).toString(), items.get(i).toString());
+                }
+            }
+        }
+        Assert.assertFalse(library.showBorrowHistory(card.getCardId(), 0, null).ok);
+        Assert.assertFalse(library.showBorrowHistory(card.getCardId(), 10, "not-a-token").ok);
+    }
+
+    @Test
+    public void borrowHistoryCacheTest() {
+        MyLibrary my = MyLibrary.createLibrary(library, 30, 8, 100);
+        LibraryManagementSystemImpl cached = new LibraryManagementSystemImpl(connector);
+        cached.enableBorrowHistoryCache(1000);
+        BorrowHistoryCache histories = cached.getBorrowHistoryCache();
+        for (Card card : my.cards) {
+            Assert.assertTrue(cached.showBorrowHistory(card.getCardId()).ok);
+        }
+        Assert.assertEquals(my.nCards(), histories.size());
+        /* the cached histories are patched by every change */
+        List<Borrow> open = new ArrayList<>();
+        long time = System.currentTimeMillis();
+        for (int i = 0; i < 200; i++) {
+            int op = RandomUtils.nextInt(0, 10);
+            if (op < 5) {
+                Borrow r = new Borrow(my.books.get(RandomUtils.nextInt(0, my.nBooks())),
+                        my.cards.get(RandomUtils.nextInt(0, my.nCards())));
+                r.setBorrowTime(time++);
+                if (cached.borrowBook(r).ok) {
+                    open.add(r);
+                }
+            } else if (op < 8 && !open.isEmpty()) {
+                Borrow r = open.remove(RandomUtils.nextInt(0, open.size()));
+                r.setReturnTime(time++);
+                Assert.assertTrue(cached.returnBook(r).ok);
+            } else if (op < 9) {
+                Book b = my.books.get(RandomUtils.nextInt(0, my.nBooks()));
+                b.setTitle(RandomData.randomTitle());
+                b.setPrice(RandomData.randomPrice());
+                Assert.assertTrue(cached.modifyBookInfo(b).ok);
+            } else {
+                int pos = RandomUtils.nextInt(0, my.nBooks());
+                Book b = my.books.get(pos);
+                if (cached.removeBook(b.getBookId()).ok) {
+                    my.books.remove(pos);
+                }
+            }
+            Card card = my.cards.get(RandomUtils.nextInt(0, my.nCards()));
+            ApiResult expected = library.showBorrowHistory(card.getCardId());
+            ApiResult actual = cached.showBorrowHistory(card.getCardId());
+            Assert.assertTrue(expected.ok && actual.ok);
+            List<BorrowHistories.Item> expectedItems = ((BorrowHistories) expected.payload).getItems();
+            List<BorrowHistories.Item> actualItems = ((BorrowHistories) actual.payload).getItems();
+            Assert.assertEquals(expectedItems.size(), actualItems.size());
+            for (int j = 0; j < expectedItems.size(); j++) {
+                Assert.assertEquals(expectedItems.get(j).toString(), actualItems.get(j).toString());
+            }
+            /* pages are cut from the cached history */
+            ApiResult page = cached.showBorrowHistory(card.getCardId(), 3, null);
+            Assert.assertTrue(page.ok);
+            List<BorrowHistories.Item> pageItems = ((BorrowHistories) page.payload).getItems();
+            for (int j = 0; j < pageItems.size(); j++) {
+                Assert.assertEquals(expectedItems.get(j).toString(), pageItems.get(j).toString());
+            }
+        }
+        Assert.assertTrue(histories.getHits() > 0);
+        /* histories are evicted once they hold too many records */
+        LibraryManagementSystemImpl small = new LibraryManagementSystemImpl(connector);
+        small.enableBorrowHistoryCache(20);
+        for (Card card : my.cards) {
+            Assert.assertTrue(small.showBorrowHistory(card.getCardId()).ok);
+        }
+        Assert.assertTrue(small.getBorrowHistoryCache().items() <= 20);
+    }
+
+    @Test
+    public void compactBorrowHistoriesTest() {
+        /* the item view gives back what was added, each book is stored once */
+        List<Book> books = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            Book b = RandomData.randomBook();
+            b.setBookId(i + 1);
+            books.add(b);
+        }
+        List<BorrowHistories.Item> expected = new ArrayList<>();
+        CompactBorrowHistories.Builder builder = new CompactBorrowHistories.Builder();
+        for (int i = 0; i < 100; i++) {
+            Book b = books.get(RandomUtils.nextInt(0, books.size()));
+            Borrow r = new Borrow(b.getBookId(), 7);
+            r.setBorrowTime(RandomData.randomTime());
+            r.setReturnTime(RandomUtils.nextBoolean() ? 0 : r.getBorrowTime() + 1);
+            expected.add(new BorrowHistories.Item(7, b, r));
+            builder.add(7, b.getBookId(), r.getBorrowTime(), r.getReturnTime(), b.getCategory(), b.getTitle(),
+                    b.getPress(), b.getPublishYear(), b.getAuthor(), b.getPrice());
+        }
+        CompactBorrowHistories histories = builder.build();
+        Assert.assertEquals(expected.size(), histories.getCount());
+        Assert.assertTrue(histories.getBookCount() <= books.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Assert.assertEquals(expected.get(i).toString(), histories.getItems().get(i).toString());
+            Assert.assertEquals(expected.get(i).getBookId(), histories.getBookId(i));
+            Assert.assertEquals(expected.get(i).getBorrowTime(), histories.getBorrowTime(i));
+        }
+        /* showBorrowHistory answers with the compact form */
+        MyLibrary my = MyLibrary.createLibrary(library, 5, 1, 30);
+        ApiResult result = library.showBorrowHistory(my.cards.get(0).getCardId());
+        Assert.assertTrue(result.ok);
+        Assert.assertTrue(result.payload instanceof CompactBorrowHistories);
+        CompactBorrowHistories compact = (CompactBorrowHistories) result.payload;
+        Assert.assertEquals(30, compact.getCount());
+        Assert.assertTrue(compact.getBookCount() <= 5);
+    }
+
+    @Test
+    public void showBorrowHistoriesTest() {
+        /* more cards than one chunk, so that chunks run in parallel */
+        MyLibrary my = MyLibrary.createLibrary(library, 50, 600, 1500);
+        List<Integer> cardIds = my.cards.stream().map(Card::getCardId).collect(Collectors.toList());
+        Collections.shuffle(cardIds);
+        cardIds.add(cardIds.get(0));
+        cardIds.add(-1);
+        ApiResult result = library.showBorrowHistories(cardIds);
+        Assert.assertTrue(result.ok);
+        CardBorrowHistories histories = (CardBorrowHistories) result.payload;
+        Assert.assertEquals(my.nCards() + 1, histories.getCount());
+        /* grouped in the order of the given cards */
+        Iterator<Integer> it = histories.getHistories().keySet().iterator();
+        for (int i = 0; i < my.nCards(); i++) {
+            Assert.assertEquals(cardIds.get(i), it.next());
+        }
+        Assert.assertEquals(0, histories.get(-1).getCount());
+        for (Card card : my.cards) {
+            ApiResult expected = library.showBorrowHistory(card.getCardId());
+            Assert.assertTrue(expected.ok);
+            List<BorrowHistories.Item> expectedItems = ((BorrowHistories) expected.payload).getItems();
+            List<BorrowHistories.Item> actualItems = histories.get(card.getCardId()).getItems();
+            Assert.assertEquals(expectedItems.size(), actualItems.size());
+            for (int i = 0; i < expectedItems.size(); i++) {
+                Assert.assertEquals(expectedItems.get(i).toString(), actualItems.get(i).toString());
+            }
+        }
+        /* an empty request */
+        result = library.showBorrowHistories(Collections.emptyList());
+        Assert.assertTrue(result.ok);
+        Assert.assertEquals(0, ((CardBorrowHistories) result.payload).getCount());
+    }
+
+    @Test
+    public void upsertBooksTest() {
+        MyLibrary my = MyLibrary.createLibrary(library, 100, 1, 0);
+        Map<Integer, Integer> stockMap = my.books.stream().collect(
+                Collectors.toMap(Book::getBookId, Book::getStock));
+        /* a conflict is reported per row, nothing is stored */
+        Set<Book> bookSet = new HashSet<>(my.books);
+        List<Book> fresh = new ArrayList<>();
+        while (fresh.size() < 50) {
+            Book b = RandomData.randomBook();
+            if (bookSet.add(b)) {
+                fresh.add(b);
+            }
+        }
+        List<Book> conflicting = new ArrayList<>(fresh);
+        Book stored = my.books.get(0).clone();
+        stored.setPrice(stored.getPrice() + 1);
+        conflicting.add(7, stored);
+        ApiResult result = library.storeBook(conflicting);
+        Assert.assertFalse(result.ok);
+        BatchResults rowResults = (BatchResults) result.payload;
+        Assert.assertEquals(conflicting.size() - 1, rowResults.getSucceeded());
+        Assert.assertFalse(rowResults.getResults().get(7).ok);
+        Assert.assertEquals(my.nBooks(), ((BookQueryResults) library.queryBook(new BookQueryConditions()).payload).getCount());
+        /* existing and repeated books add to the stock */
+        List<Book> upserts = new ArrayList<>();
+        List<String> outcomes = new ArrayList<>();
+        Map<Book, Integer> freshStock = new HashMap<>();
+        for (int i = 0; i < 300; i++) {
+            Book b;
+            if (RandomUtils.nextBoolean()) {
+                b = my.books.get(RandomUtils.nextInt(0, my.nBooks())).clone();
+                b.setPrice(RandomData.randomPrice());
+                stockMap.merge(b.getBookId(), b.getStock(), Integer::sum);
+                outcomes.add("Stock added");
+            } else {
+                b = fresh.get(RandomUtils.nextInt(0, fresh.size())).clone();
+                outcomes.add(freshStock.containsKey(b) ? "Stock added" : "Book stored");
+                freshStock.merge(b, b.getStock(), Integer::sum);
+            }
+            b.setBookId(0);
+            upserts.add(b);
+        }
+        result = library.upsertBooks(upserts);
+        Assert.assertTrue(result.ok);
+        rowResults = (BatchResults) result.payload;
+        Assert.assertEquals(upserts.size(), rowResults.getSucceeded());
+        for (int i = 0; i < upserts.size(); i++) {
+            Assert.assertEquals(outcomes.get(i), rowResults.getResults().get(i).message);
+            Assert.assertTrue(upserts.get(i).getBookId() > 0);
+        }
+        for (Map.Entry<Book, Integer> entry : freshStock.entrySet()) {
+            Book b = upserts.stream().filter(u -> u.equals(entry.getKey())).findFirst().get();
+            stockMap.put(b.getBookId(), entry.getValue());
+        }
+        List<Book> results = ((BookQueryResults) library.queryBook(new BookQueryConditions()).payload).getResults();
+        Assert.assertEquals(stockMap.size(), results.size());
+        for (Book b : results) {
+            Assert.assertEquals(stockMap.get(b.getBookId()).intValue(), b.getStock());
+        }
+    }
+
+    @Test
+    public void importBooksTest() throws IOException, InterruptedException {
+        LibraryManagementSystemImpl impl = (LibraryManagementSystemImpl) library;
+        Set<Book> bookSet = new HashSet<>();
+        while (bookSet.size() < 100) {
+            bookSet.add(RandomData.randomBook());
+        }
+        List<Book> books = new ArrayList<>(bookSet);
+        /* quoted fields, a header, blank lines and some invalid records */
+        books.get(0).setTitle("Commas, \"Quotes\"");
+        books.get(1).setTitle("Two\nLines");
+        StringBuilder csv = new StringBuilder("category,title,press,publish_year,author,price,stock\r\n");
+        int invalid = 0;
+        for (int i = 0; i < books.size(); i++) {
+            Book b = books.get(i);
+            csv.append(String.format(Locale.ROOT, "%s,\"%s\",%s,%d,%s,%.2f,%d\r\n", b.getCategory(),
+                    b.getTitle().replace("\"", "\"\""), b.getPress(), b.getPublishYear(), b.getAuthor(),
+                    b.getPrice(), b.getStock()));
+            if (i % 10 == 0) {
+                csv.append("\n").append("a,b,c,not-a-year,e,1.0,1\n").append("only,three,fields\n");
+                invalid += 2;
+            }
+        }
+        Path csvFile = Files.createTempFile("books", ".csv");
+        Files.write(csvFile, csv.toString().getBytes(StandardCharsets.UTF_8));
+        ApiResult result = impl.importBooks(csvFile, CatalogImporter.Format.CSV, 7, false);
+        Files.delete(csvFile);
+        Assert.assertTrue(result.ok);
+        CatalogImporter.ImportReport report = (CatalogImporter.ImportReport) result.payload;
+        Assert.assertEquals(books.size(), report.getStored());
+        Assert.assertEquals(invalid, report.getInvalid());
+        Assert.assertEquals((books.size() + 6) / 7, report.getChunks().size());
+        List<Book> stored = ((BookQueryResults) library.queryBook(new BookQueryConditions()).payload).getResults();
+        Assert.assertEquals(books.size(), stored.size());
+        Map<Book, Book> storedMap = stored.stream().collect(Collectors.toMap(b -> b, b -> b));
+        for (Book b : books) {
+            Book o = storedMap.get(b);
+            Assert.assertNotNull(o);
+            Assert.assertEquals(b.getStock(), o.getStock());
+        }
+        /* json lines: a chunk holding a stored book fails as a whole, unless upserting */
+        StringBuilder jsonl = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            Book b = i < 10 ? books.get(i) : RandomData.randomBook();
+            jsonl.append(String.format(Locale.ROOT, "{\"category\": \"%s\", \"title\": \"%s\", \"press\": \"%s\", " +
+                            "\"publishYear\": %d, \"author\": \"%s\", \"price\": %.2f, \"stock\": 1}\n",
+                    b.getCategory(), b.getTitle().replace("\"", "\\\"").replace("\n", "\\n"), b.getPress(),
+                    b.getPublishYear(), b.getAuthor(), b.getPrice()));
+        }
+        jsonl.append("{\"category\": \"x\"}\n");
+        Path jsonFile = Files.createTempFile("books", ".jsonl");
+        Files.write(jsonFile, jsonl.toString().getBytes(StandardCharsets.UTF_8));
+        result = impl.importBooks(jsonFile, CatalogImporter.Format.JSONL, 10, false);
+        Assert.assertTrue(result.ok);
+        report = (CatalogImporter.ImportReport) result.payload;
+        Assert.assertFalse(report.getChunks().get(0).isOk());
+        Assert.assertEquals(1, report.getInvalid());
+        result = impl.importBooks(jsonFile, CatalogImporter.Format.JSONL, 10, true);
+        Files.delete(jsonFile);
+        Assert.assertTrue(result.ok);
+        report = (CatalogImporter.ImportReport) result.payload;
+        Assert.assertEquals(20, report.getStored());
+        for (Book b : books.subList(0, 10)) {
+            ApiResult q = library.queryBook(new BookQueryConditions());
+            Book o = ((BookQueryResults) q.payload).getResults().stream().filter(b::equals).findFirst().get();
+            Assert.assertEquals(b.getStock() + 1, o.getStock());
+        }
+        /* a record made of commas is bounded & skipped like any long record */
+        StringBuilder commas = new StringBuilder("a,b,c,2000,d,1.0,1\n");
+        for (int i = 0; i < 200000; i++) {
+            commas.append(',');
+        }
+        commas.append("\ne,f,g,2001,h,2.0,2\n");
+        Path commaFile = Files.createTempFile("books", ".csv");
+        Files.write(commaFile, commas.toString().getBytes(StandardCharsets.UTF_8));
+        List<Book> parsed = new ArrayList<>();
+        report = new CatalogImporter(CatalogImporter.Format.CSV, 10).importFile(commaFile, chunk -> {
+            parsed.addAll(chunk);
+            return new ApiResult(true, "");
+        });
+        Files.delete(commaFile);
+        Assert.assertEquals(2, parsed.size());
+        Assert.assertEquals(1, report.getInvalid());
+        Assert.assertEquals("line 2: Record is too long", report.getChunks().get(0).getErrors().get(0));
+    }
+
+    @Test
+    public void bulkLoadBooksTest() throws IOException, SQLException {
+        MyLibrary my = MyLibrary.createLibrary(library, 20, 0, 0);
+        Set<Book> bookSet = new HashSet<>(my.books);
+        List<Book> books = new ArrayList<>();
+        while (books.size() < 1500) {
+            Book b = RandomData.randomBook();
+            if (bookSet.add(b)) {
+                books.add(b);
+            }
+        }
+        /* characters escaped in the text formats of the bulk loaders */
+        books.get(0).setTitle("Tab\tand\\backslash");
+        books.get(1).setTitle("Two\r\nLines \\N");
+        books.get(2).setTitle("图书 'quoted' \"title\"");
+        books.get(3).setPrice(0.0);
+        LibraryManagementSystemImpl impl = (LibraryManagementSystemImpl) library;
+        long bulkLoaded = impl.getBulkLoadedRows();
+        ApiResult result = library.storeBook(books);
+        Assert.assertTrue(result.ok);
+        /* the native loader ran, not the batch insert */
+        Assert.assertEquals(bulkLoaded + books.size(), impl.getBulkLoadedRows());
+        Set<Integer> ids = new HashSet<>();
+        for (Book b : books) {
+            Assert.assertTrue(b.getBookId() > 0);
+            Assert.assertTrue(ids.add(b.getBookId()));
+        }
+        List<Book> stored = ((BookQueryResults) library.queryBook(new BookQueryConditions()).payload).getResults();
+        Assert.assertEquals(my.nBooks() + books.size(), stored.size());
+        Map<Integer, Book> storedMap = stored.stream().collect(Collectors.toMap(Book::getBookId, b -> b));
+        for (Book b : books) {
+            Book o = storedMap.get(b.getBookId());
+            Assert.assertNotNull(o);
+            Assert.assertEquals(b.getCategory(), o.getCategory());
+            Assert.assertEquals(b.getTitle(), o.getTitle());
+            Assert.assertEquals(b.getPress(), o.getPress());
+            Assert.assertEquals(b.getPublishYear(), o.getPublishYear());
+            Assert.assertEquals(b.getAuthor(), o.getAuthor());
+            Assert.assertEquals(b.getPrice(), o.getPrice(), 0.001);
+            Assert.assertEquals(b.getStock(), o.getStock());
+        }
+        /* a conflicting bulk store stores nothing */
+        List<Book> more = new ArrayList<>();
+        while (more.size() < 1200) {
+            Book b = RandomData.randomBook();
+            if (bookSet.add(b)) {
+                more.add(b);
+            }
+        }
+        more.add(600, books.get(600).clone());
+        Assert.assertFalse(library.storeBook(more).ok);
+        Assert.assertEquals(stored.size(), ((BookQueryResults) library.queryBook(new BookQueryConditions()).payload).getCount());
+        if (connectConfig.getType() != DatabaseType.MYSQL) {
+            return;
+        }
+        /* the driver sends no file from outside the directory of the loader */
+        Path outside = Files.createTempFile("outside", ".tsv");
+        Connection conn = connector.acquire();
+        try (Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate("LOAD DATA LOCAL INFILE '" + outside.toAbsolutePath() + "' INTO TABLE book");
+            Assert.fail();
+        } catch (SQLException e) {
+            conn.rollback();
+        } finally {
+            connector.release(conn);
+            Files.delete(outside);
+        }
+    }
+
+    @Test
+    public void batchRegisterCardTest() {
+        MyLibrary my = MyLibrary.createLibrary(library, 0, 50, 0);
+        for (Card c : my.cards) {
+            Assert.assertTrue(c.getCardId() > 0);
+        }
+        /* an existing or repeated card fails the whole batch */
+        List<Card> cards = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            cards.add(new Card(0, String.format("Fresh%05d", i), RandomData.randomDepartment(), Card.CardType.random()));
+        }
+        List<Card> conflicting = new ArrayList<>(cards);
+        conflicting.add(100, my.cards.get(3).clone());
+        Card upper = cards.get(5).clone();
+        upper.setName(upper.getName().toUpperCase() + " ");
+        conflicting.add(upper);
+        ApiResult result = library.registerCard(conflicting);
+        Assert.assertFalse(result.ok);
+        BatchResults rowResults = (BatchResults) result.payload;
+        Assert.assertEquals(conflicting.size() - 2, rowResults.getSucceeded());
+        Assert.assertFalse(rowResults.getResults().get(100).ok);
+        Assert.assertFalse(rowResults.getResults().get(conflicting.size() - 1).ok);
+        Assert.assertEquals(my.nCards(), ((CardList) library.showCards().payload).getCount());
+        /* a large batch goes through the bulk loader */
+        for (int i = 300; i < 1500; i++) {
+            cards.add(new Card(0, String.format("Fresh%05d", i), RandomData.randomDepartment(), Card.CardType.random()));
+        }
+        long bulkLoaded = ((LibraryManagementSystemImpl) library).getBulkLoadedRows();
+        Assert.assertTrue(library.registerCard(cards).ok);
+        Assert.assertEquals(bulkLoaded + cards.size(), ((LibraryManagementSystemImpl) library).getBulkLoadedRows());
+        Map<Integer, Card> shown = ((CardList) library.showCards().payload).getCards().stream()
+                .collect(Collectors.toMap(Card::getCardId, c -> c));
+        Assert.assertEquals(my.nCards() + cards.size(), shown.size());
+        for (Card c : cards) {
+            Assert.assertEquals(c, shown.get(c.getCardId()));
+        }
+        Assert.assertTrue(library.registerCard(new ArrayList<>()).ok);
+    }
+
+    @Test
+    public void incBookStocksTest() {
+        MyLibrary my = MyLibrary.createLibrary(library, 200, 0, 0);
+        Map<Integer, Integer> stockMap = my.books.stream().collect(Collectors.toMap(Book::getBookId, Book::getStock));
+        LibraryManagementSystemImpl reserved = new LibraryManagementSystemImpl(connector);
+        reserved.enableStockReservations(20);
+        for (LibraryManagementSystem lib : Arrays.asList(library, reserved)) {
+            Map<Integer, Integer> deltas = new HashMap<>();
+            for (Book b : my.books) {
+                if (RandomUtils.nextBoolean()) {
+                    deltas.put(b.getBookId(), RandomUtils.nextInt(0, 5) - stockMap.get(b.getBookId()) / 2);
+                }
+            }
+            /* a missing book and one going negative, nothing is applied */
+            Map<Integer, Integer> failing = new HashMap<>(deltas);
+            Book low = my.books.get(7);
+            failing.put(low.getBookId(), -stockMap.get(low.getBookId()) - 1);
+            failing.put(-1, 3);
+            ApiResult result = lib.incBookStocks(failing);
+            Assert.assertFalse(result.ok);
+            StockChangeResults failed = (StockChangeResults) result.payload;
+            Assert.assertEquals(Collections.singletonList(-1), failed.getMissing());
+            Assert.assertEquals(Collections.singletonList(low.getBookId()), failed.getNotEnough());
+            for (Book b : ((BookQueryResults) lib.queryBook(new BookQueryConditions()).payload).getResults()) {
+                Assert.assertEquals(stockMap.get(b.getBookId()).intValue(), b.getStock());
+            }
+            Assert.assertTrue(lib.incBookStocks(deltas).ok);
+            deltas.forEach((id, delta) -> stockMap.merge(id, delta, Integer::sum));
+            for (Book b : ((BookQueryResults) lib.queryBook(new BookQueryConditions()).payload).getResults()) {
+                Assert.assertEquals(stockMap.get(b.getBookId()).intValue(), b.getStock());
+            }
+        }
+        Assert.assertTrue(reserved.disableStockReservations().ok);
+        for (Book b : ((BookQueryResults) library.queryBook(new BookQueryConditions()).payload).getResults()) {
+            Assert.assertEquals(stockMap.get(b.getBookId()).intValue(), b.getStock());
+        }
+    }
+
+    @Test
+    public void parallelIncBookStocksTest() throws InterruptedException {
+        MyLibrary my = MyLibrary.createLibrary(library, 4, 0, 0);
+        Map<Integer, AtomicInteger> expected = new HashMap<>();
+        for (Book b : my.books) {
+            Assert.assertTrue(library.incBookStock(b.getBookId(), 20 - b.getStock()).ok);
+            expected.put(b.getBookId(), new AtomicInteger(20));
+        }
+        LibraryManagementSystemImpl reserved = new LibraryManagementSystemImpl(connector);
+        reserved.enableStockReservations(20);
+        StockReservations res = reserved.getStockReservations();
+        int nThreads = 8;
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(nThreads);
+        AtomicInteger negative = new AtomicInteger();
+        for (int t = 0; t < nThreads; t++) {
+            new Thread(() -> {
+                try {
+                    start.await();
+                    for (int round = 0; round < 100; round++) {
+                        Map<Integer, Integer> deltas = new HashMap<>();
+                        for (Book b : my.books) {
+                            if (RandomUtils.nextBoolean()) {
+                                deltas.put(b.getBookId(), RandomUtils.nextInt(0, 6) - 3);
+                            }
+                        }
+                        if (reserved.incBookStocks(deltas).ok) {
+                            deltas.forEach((id, delta) -> expected.get(id).addAndGet(delta));
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        /* undoing a failed call never takes a counter below zero */
+        Thread watcher = new Thread(() -> {
+            while (done.getCount() > 0) {
+                for (Book b : my.books) {
+                    Integer stock = res.peek(b.getBookId());
+                    if (stock != null && stock < 0) {
+                        negative.incrementAndGet();
+                    }
+                }
+            }
+        });
+        watcher.start();
+        start.countDown();
+        done.await();
+        watcher.join();
+        Assert.assertEquals(0, negative.get());
+        Assert.assertTrue(reserved.disableStockReservations().ok);
+        for (Book b : ((BookQueryResults) library.queryBook(new BookQueryConditions()).payload).getResults()) {
+            Assert.assertEquals(expected.get(b.getBookId()).get(), b.getStock());
+        }
+    }
+
     @Test
     public void registerAndShowAndRemoveCardTest() {
         /* simply insert N cards */
@@ -671,6 +2305,49 @@ public class LibraryTest {
         }
     }
 
+    private List<BookQueryConditions> randomQueryConditions(int n) {
+        List<BookQueryConditions> queryConditions = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            BookQueryConditions c = new BookQueryConditions();
+            int mask = RandomUtils.nextInt(0, 32);
+            int selected = 0;
+            if ((mask & 1) > 0) {
+                c.setPress(RandomData.randomPress());
+                selected++;
+            }
+            if ((mask & 2) > 0) {
+                c.setCategory(RandomData.randomCategory());
+                selected++;
+            }
+            if ((mask & 4) > 0) {
+                c.setAuthor(RandomData.randomAuthor());
+                selected++;
+            }
+            // randomly select year
+            if (RandomUtils.nextInt(1, 2 + selected) == 1) {
+                int minY = RandomUtils.nextInt(2000, 2015);
+                int maxY = Math.max(RandomUtils.nextInt(2007, 2024), minY + 7);
+                c.setMinPublishYear(minY);
+                c.setMaxPublishYear(maxY);
+                selected++;
+            }
+            // randomly select price
+            if (RandomUtils.nextInt(1, 3 + selected) == 1) {
+                double minP = RandomData.randomPrice();
+                double maxP = Math.max(RandomData.randomPrice(), minP + 16.66);
+                c.setMinPrice(minP);
+                c.setMaxPrice(maxP);
+            }
+            // randomly choose one column to sort
+            if (RandomUtils.nextInt(1, 4) != 1) {
+                c.setSortBy(Book.SortColumn.random());
+                c.setSortOrder(SortOrder.random());
+            }
+            queryConditions.add(c);
+        }
+        return queryConditions;
+    }
+
     private List<Book> verifyQueryResult(List<Book> books, BookQueryConditions conditions) {
         Stream<Book> stream = books.stream();
         if (conditions.getCategory() != null) {
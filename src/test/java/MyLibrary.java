@@ -50,8 +50,8 @@ public class MyLibrary {
             c.setDepartment(RandomData.randomDepartment());
             c.setType(Card.CardType.random());
             cardList.add(c);
-            Assert.assertTrue(library.registerCard(c).ok);
         }
+        Assert.assertTrue(library.registerCard(cardList).ok);
         /* create histories */
         List<Borrow> borrowList = new ArrayList<>();
         PriorityQueue<Long> mills = new PriorityQueue<>();